@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a pair of archives to compare: a base archive and a copy of it where a given ratio of the entries
+ * are changed, removed or added. The archives only depend on the settings and the seed, so that the same
+ * archives are compared from one run to the other.
+ * <p/>
+ * The entries are spread over the leaves of a tree of nested archives of the given depth, each archive holding
+ * {@link #getFanOut()} nested archives. A quarter of the entries each are classes, properties, xml files and
+ * images; the text entries are made of lines, the other ones of random bytes.
+ * <p/>
+ * Nested archives are written straight into their parent, so that the memory used does not depend on
+ * the number of entries.
+ *
+ * @author Maxime Falaize
+ */
+public class ArchiveGenerator {
+
+    public static final int DEFAULT_FAN_OUT = 4;
+    public static final int DEFAULT_ENTRY_SIZE = 512;
+
+    /**
+     * All the entries have the same time, so that only their contents tell whether they changed
+     */
+    private static final long TIME = 1420070400000L;
+
+    private static final String[] EXTENSIONS = {".class", ".properties", ".xml", ".png"};
+
+    private final long seed;
+    private int entries = 1000;
+    private int depth = 0;
+    private int fanOut = DEFAULT_FAN_OUT;
+    private int entrySize = DEFAULT_ENTRY_SIZE;
+    private double changeRatio = 0.01;
+    private double removeRatio = 0;
+    private double addRatio = 0;
+
+    /**
+     * @param seed The seed the archives depend on
+     */
+    public ArchiveGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param entries The number of entries of the base archive, nested archives excluded
+     */
+    public void setEntries(int entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("entries must not be negative: " + entries);
+        }
+        this.entries = entries;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param depth The number of levels of nested archives, 0 for an archive without nested archives
+     */
+    public void setDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative: " + depth);
+        }
+        this.depth = depth;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @param fanOut The number of nested archives in each archive which is not a leaf
+     */
+    public void setFanOut(int fanOut) {
+        if (fanOut < 1) {
+            throw new IllegalArgumentException("fanOut must be at least 1: " + fanOut);
+        }
+        this.fanOut = fanOut;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @param bytes The size of the content of each entry
+     */
+    public void setEntrySize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        entrySize = bytes;
+    }
+
+    public int getEntrySize() {
+        return entrySize;
+    }
+
+    /**
+     * @param ratio The ratio of the entries whose content changes
+     */
+    public void setChangeRatio(double ratio) {
+        changeRatio = checkRatio(ratio);
+    }
+
+    public double getChangeRatio() {
+        return changeRatio;
+    }
+
+    /**
+     * @param ratio The ratio of the entries missing from the changed archive
+     */
+    public void setRemoveRatio(double ratio) {
+        removeRatio = checkRatio(ratio);
+    }
+
+    public double getRemoveRatio() {
+        return removeRatio;
+    }
+
+    /**
+     * @param ratio The ratio of the entries followed by a new entry in the changed archive
+     */
+    public void setAddRatio(double ratio) {
+        addRatio = checkRatio(ratio);
+    }
+
+    public double getAddRatio() {
+        return addRatio;
+    }
+
+    private static double checkRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1: " + ratio);
+        }
+        return ratio;
+    }
+
+    /**
+     * Writes the base archive and its changed copy.
+     *
+     * @param base    The base archive to write
+     * @param changed The changed archive to write
+     * @throws IOException if an archive cannot be written
+     */
+    public void generate(File base, File changed) throws IOException {
+        write(base, false);
+        write(changed, true);
+    }
+
+    private void write(File file, boolean changed) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            ZipOutputStream zos = new ZipOutputStream(out);
+            writeArchive(zos, 0, 0, entries, changed);
+            zos.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the entries from one index to the other, in nested archives if the archive is not a leaf.
+     */
+    private void writeArchive(ZipOutputStream zos, int level, int from, int to, boolean changed) throws IOException {
+        if (level == depth) {
+            for (int i = from; i < to; i++) {
+                double r = random(i, 0);
+                if (!changed || r >= removeRatio) {
+                    boolean modified = changed && r < removeRatio + changeRatio;
+                    writeEntry(zos, getName(i, ""), i, modified);
+                }
+                if (changed && random(i, 1) < addRatio) {
+                    writeEntry(zos, getName(i, "-added"), i, true);
+                }
+            }
+            return;
+        }
+        for (int j = 0; j < fanOut; j++) {
+            ZipEntry entry = new ZipEntry("lib/module-" + j + ".jar");
+            entry.setTime(TIME);
+            zos.putNextEntry(entry);
+            // the nested archive is finished, not closed, to leave its parent open
+            ZipOutputStream nested = new ZipOutputStream(zos);
+            writeArchive(nested, level + 1, from + (int) ((long) (to - from) * j / fanOut),
+                    from + (int) ((long) (to - from) * (j + 1) / fanOut), changed);
+            nested.finish();
+            zos.closeEntry();
+        }
+    }
+
+    private static String getName(int i, String suffix) {
+        return "com/example/p" + (i / 100) + "/Entry" + i + suffix + EXTENSIONS[i % EXTENSIONS.length];
+    }
+
+    private void writeEntry(ZipOutputStream zos, String name, int i, boolean modified) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(TIME);
+        zos.putNextEntry(entry);
+        zos.write(getContent(i, modified));
+        zos.closeEntry();
+    }
+
+    /**
+     * @return the content of an entry: lines of properties for the text entries, random bytes for the other ones.
+     * A modified content differs by one line or one byte in its middle.
+     */
+    private byte[] getContent(int i, boolean modified) {
+        byte[] content = new byte[entrySize];
+        String extension = EXTENSIONS[i % EXTENSIONS.length];
+        if (extension.equals(".class") || extension.equals(".png")) {
+            for (int k = 0; k < content.length; k += 8) {
+                long value = mix(seed ^ mix(i) ^ mix(~k));
+                for (int b = 0; b < 8 && k + b < content.length; b++) {
+                    content[k + b] = (byte) (value >>> (8 * b));
+                }
+            }
+            if (modified && content.length > 0) {
+                content[content.length / 2] ^= 1;
+            }
+            return content;
+        }
+
+        StringBuilder sb = new StringBuilder(entrySize + 64);
+        int line = 0;
+        while (sb.length() < entrySize) {
+            long value = mix(seed ^ mix(i) ^ mix(~line));
+            if (modified && sb.length() >= entrySize / 2) {
+                value = ~value;
+                modified = false;
+            }
+            sb.append("entry").append(i).append(".key").append(line++).append('=')
+                    .append(Long.toHexString(value)).append('\n');
+        }
+        for (int k = 0; k < content.length; k++) {
+            content[k] = (byte) sb.charAt(k);
+        }
+        return content;
+    }
+
+    /**
+     * @return a number between 0 and 1 depending on the seed, the entry and the kind of decision
+     */
+    private double random(int i, int decision) {
+        return (mix(seed ^ mix(i) ^ mix(decision + 0x9E3779B9L)) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * The finalizer of SplitMix64.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Writes base.zip and changed.zip in a directory.
+     *
+     * @param args directory, then optionally the number of entries, the depth, the change ratio and the seed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ArchiveGenerator <directory> [entries] [depth] [changeRatio] [seed]");
+            System.exit(2);
+        }
+        File directory = new File(args[0]);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        ArchiveGenerator generator = new ArchiveGenerator(args.length > 4 ? Long.parseLong(args[4]) : 0);
+        if (args.length > 1) {
+            generator.setEntries(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.setDepth(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setChangeRatio(Double.parseDouble(args[3]));
+        }
+        generator.generate(new File(directory, "base.zip"), new File(directory, "changed.zip"));
+    }
+}
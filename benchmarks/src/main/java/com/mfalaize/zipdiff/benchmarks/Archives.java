@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The pair of archives compared by the benchmarks, generated by {@link ArchiveGenerator} once per set of
+ * parameters. They are kept in the directory given by the <code>zipdiff.benchmarks.dir</code> system property,
+ * a directory of the temporary directory by default, and reused by the later runs.
+ * <p/>
+ * The archives of 1M entries are not generated by default, e.g. <code>-p entries=1000000</code> includes them.
+ *
+ * @author Maxime Falaize
+ */
+@State(Scope.Benchmark)
+public class Archives {
+
+    public static final long SEED = 42;
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    @Param({"0", "3"})
+    public int depth;
+
+    @Param({"0.01"})
+    public double changeRatio;
+
+    private File base;
+    private File changed;
+
+    /**
+     * @return the directory in which the generated archives are kept
+     * @throws IOException if it cannot be created
+     */
+    static File getDirectory() throws IOException {
+        File directory = new File(System.getProperty("zipdiff.benchmarks.dir",
+                new File(System.getProperty("java.io.tmpdir"), "zipdiff-benchmarks").getPath()));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+
+    @Setup
+    public void generate() throws IOException {
+        File directory = getDirectory();
+        String suffix = "-" + entries + "-" + depth + "-" + changeRatio + "-" + SEED + ".zip";
+        base = new File(directory, "base" + suffix);
+        changed = new File(directory, "changed" + suffix);
+        if (!base.isFile() || !changed.isFile()) {
+            ArchiveGenerator generator = new ArchiveGenerator(SEED);
+            generator.setEntries(entries);
+            generator.setDepth(depth);
+            generator.setChangeRatio(changeRatio);
+            generator.setAddRatio(changeRatio / 2);
+            generator.setRemoveRatio(changeRatio / 2);
+            // written under other names first, so that an interrupted run does not leave partial archives
+            File base = new File(directory, "base" + suffix + ".tmp");
+            File changed = new File(directory, "changed" + suffix + ".tmp");
+            generator.generate(base, changed);
+            if (!base.renameTo(this.base) || !changed.renameTo(this.changed)) {
+                throw new IOException("Cannot write the archives in " + directory);
+            }
+        }
+    }
+
+    public File getBase() {
+        return base;
+    }
+
+    public File getChanged() {
+        return changed;
+    }
+}
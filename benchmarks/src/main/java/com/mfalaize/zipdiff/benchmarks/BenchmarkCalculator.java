@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import com.mfalaize.zipdiff.DifferenceCalculator;
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Gives the benchmarks access to the indexing of a single archive.
+ *
+ * @author Maxime Falaize
+ */
+class BenchmarkCalculator extends DifferenceCalculator {
+
+    BenchmarkCalculator(File f1, File f2) throws IOException {
+        super(f1, f2);
+    }
+
+    /**
+     * @return the map of the entries of the archive, built with the current settings
+     */
+    Map<String, ZipEntry> index(File archive) throws IOException {
+        ArchiveReader reader = openArchive(archive, null);
+        try {
+            return buildZipEntryMap(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the map of the entries of the already opened archive, built with the current settings
+     */
+    Map<String, ZipEntry> index(ArchiveReader reader) throws IOException {
+        return buildZipEntryMap(reader);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import com.mfalaize.zipdiff.DifferenceCalculator;
+import com.mfalaize.zipdiff.Differences;
+import com.mfalaize.zipdiff.output.Builder;
+import com.mfalaize.zipdiff.output.HtmlBuilder;
+import com.mfalaize.zipdiff.output.PagedHtmlBuilder;
+import com.mfalaize.zipdiff.output.TextBuilder;
+import com.mfalaize.zipdiff.output.XmlBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the report of the differences between the two archives with each {@link Builder}. The differences
+ * are computed once, with the line differences of the changed text entries. The reports are written to
+ * a stream counting the bytes, except the paged html report which is written to files.
+ *
+ * @author Maxime Falaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuilderBenchmark {
+
+    @Param({"text", "xml", "html", "paged"})
+    public String format;
+
+    private Differences differences;
+    private Builder builder;
+    private File report;
+
+    @Setup
+    public void computeDifferences(Archives archives) throws IOException {
+        DifferenceCalculator calculator = new DifferenceCalculator(archives.getBase(), archives.getChanged());
+        calculator.setTextDiff(true);
+        differences = calculator.getDifferences();
+
+        if (format.equals("text")) {
+            builder = new TextBuilder();
+        } else if (format.equals("xml")) {
+            builder = new XmlBuilder();
+        } else if (format.equals("html")) {
+            builder = new HtmlBuilder();
+        } else if (format.equals("paged")) {
+            builder = new PagedHtmlBuilder();
+            report = new File(archives.getBase().getParentFile(), "report.html");
+        } else {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+    }
+
+    @Benchmark
+    public long build() throws IOException {
+        if (report != null) {
+            builder.build(report.getPath(), differences);
+            return report.length();
+        }
+        CountingOutputStream out = new CountingOutputStream();
+        builder.build(out, differences);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
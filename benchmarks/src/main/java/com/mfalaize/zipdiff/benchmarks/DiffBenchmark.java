@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import com.mfalaize.zipdiff.DiffAlgorithm;
+import com.mfalaize.zipdiff.DifferenceCalculator;
+import com.mfalaize.zipdiff.DifferenceCounter;
+import com.mfalaize.zipdiff.Differences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two archives, from their indexing to the report of the differences.
+ *
+ * @author Maxime Falaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+
+    @Param({"HASH", "MERGE"})
+    public DiffAlgorithm algorithm;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean compareContents;
+
+    private DifferenceCalculator createCalculator(Archives archives) throws IOException {
+        DifferenceCalculator calculator = new DifferenceCalculator(archives.getBase(), archives.getChanged());
+        calculator.setDiffAlgorithm(algorithm);
+        calculator.setThreadCount(threads);
+        calculator.setCompareContents(compareContents);
+        return calculator;
+    }
+
+    /**
+     * Keeps the differences in memory.
+     */
+    @Benchmark
+    public Differences getDifferences(Archives archives) throws IOException {
+        return createCalculator(archives).getDifferences();
+    }
+
+    /**
+     * Only counts the differences as they are found.
+     */
+    @Benchmark
+    public DifferenceCounter countDifferences(Archives archives) throws IOException {
+        DifferenceCounter counter = new DifferenceCounter();
+        createCalculator(archives).getDifferences(counter);
+        return counter;
+    }
+
+    @Benchmark
+    public boolean hasDifferences(Archives archives) throws IOException {
+        return createCalculator(archives).hasDifferences();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import com.mfalaize.zipdiff.scan.ScanEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+/**
+ * Indexes an archive, nested archives included, with each scan engine.
+ *
+ * @author Maxime Falaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"ZIP_FILE", "MAPPED"})
+    public ScanEngine engine;
+
+    @Param({"false", "true"})
+    public boolean forkJoin;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void createPool() {
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Map<String, ZipEntry> buildZipEntryMap(Archives archives) throws IOException {
+        BenchmarkCalculator calculator = new BenchmarkCalculator(archives.getBase(), archives.getChanged());
+        calculator.setScanEngine(engine);
+        if (forkJoin) {
+            calculator.setForkJoinExpansion(true);
+            calculator.setExecutor(pool);
+        }
+        return calculator.index(archives.getBase());
+    }
+}
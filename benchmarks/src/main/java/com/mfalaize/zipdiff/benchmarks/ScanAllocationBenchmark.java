@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.benchmarks;
+
+import com.mfalaize.zipdiff.scan.MappedArchiveReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+/**
+ * Measures the cost per entry of the scan of a flat archive opened with the mapped engine: indexing it, and
+ * reading the contents of its entries. Run with the gc profiler, <code>-prof gc</code>, the
+ * <code>gc.alloc.rate.norm</code> metric gives the bytes allocated per entry. Indexing should allocate about
+ * the ZipEntries and their names only, and reading the contents should reuse the Inflaters and buffers.
+ * <p/>
+ * Its {@link #main(String[])} runs it with the gc profiler and fails when an allocation target is exceeded.
+ *
+ * @author Maxime Falaize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanAllocationBenchmark {
+
+    public static final int ENTRIES = 20000;
+
+    /**
+     * The most bytes allocated per entry by the indexing
+     */
+    public static final double INDEX_TARGET = 700;
+
+    /**
+     * The most bytes allocated per entry by the reading of the contents
+     */
+    public static final double READ_TARGET = 1000;
+
+    private MappedArchiveReader reader;
+    private BenchmarkCalculator calculator;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void open() throws IOException {
+        File directory = Archives.getDirectory();
+        File archive = new File(directory, "flat-" + ENTRIES + "-" + Archives.SEED + ".zip");
+        if (!archive.isFile()) {
+            ArchiveGenerator generator = new ArchiveGenerator(Archives.SEED);
+            generator.setEntries(ENTRIES);
+            generator.setDepth(0);
+            File base = new File(directory, archive.getName() + ".tmp");
+            File changed = new File(directory, archive.getName() + ".changed.tmp");
+            generator.generate(base, changed);
+            if (!changed.delete() || !base.renameTo(archive)) {
+                throw new IOException("Cannot write the archive in " + directory);
+            }
+        }
+        reader = new MappedArchiveReader(archive);
+        calculator = new BenchmarkCalculator(archive, archive);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public Map<String, ZipEntry> index() throws IOException {
+        return calculator.index(reader);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public long read() throws IOException {
+        long total = 0;
+        Enumeration<? extends ZipEntry> entries = reader.entries();
+        while (entries.hasMoreElements()) {
+            InputStream in = reader.getInputStream(entries.nextElement());
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    total += n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Runs the benchmark with the gc profiler, and exits with status 1 if an allocation target is exceeded.
+     *
+     * @param args The JMH options, e.g. <code>-f 2</code>
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ScanAllocationBenchmark.class.getName() + "\\.")
+                .addProfiler(GCProfiler.class)
+                .build();
+        boolean exceeded = false;
+        for (RunResult result : new Runner(options).run()) {
+            String benchmark = result.getParams().getBenchmark();
+            double target = benchmark.endsWith(".index") ? INDEX_TARGET : READ_TARGET;
+            Result norm = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (norm == null) {
+                System.err.println(benchmark + ": no allocation measured, is the gc profiler supported?");
+                exceeded = true;
+            } else if (norm.getScore() > target) {
+                System.err.println(String.format("%s: %.0f bytes allocated per entry, more than the target of %.0f",
+                        benchmark, norm.getScore(), target));
+                exceeded = true;
+            } else {
+                System.out.println(String.format("%s: %.0f bytes allocated per entry, target %.0f",
+                        benchmark, norm.getScore(), target));
+            }
+        }
+        if (exceeded) {
+            System.exit(1);
+        }
+    }
+}
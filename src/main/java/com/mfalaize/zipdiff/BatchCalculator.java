@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compares many pairs of archives with the settings of a {@link DifferenceCalculator}, several pairs at
+ * a time. An archive appearing in several pairs, such as a reference distribution compared with each of
+ * its variants, is indexed once and its index is shared by these pairs until the last of them is done.
+ * <p/>
+ * The pairs are compared on a pool of {@link #getParallelism()} threads, separate from the one used by
+ * the calculator to index the archives.
+ *
+ * @author Maxime Falaize
+ */
+public class BatchCalculator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchCalculator.class);
+
+    /**
+     * Creates the listener receiving the differences of a pair. The listeners of different pairs are
+     * called from different threads.
+     */
+    public interface ListenerFactory {
+
+        /**
+         * @param pair The position of the pair in the batch, starting at 0
+         * @param file1 The first file of the pair
+         * @param file2 The second file of the pair
+         * @return the listener for this pair, or null to only count its differences
+         * @throws IOException
+         */
+        DiffListener createListener(int pair, File file1, File file2) throws IOException;
+    }
+
+    /**
+     * The outcome of the comparison of a pair.
+     */
+    public static class Result {
+
+        private final File file1;
+        private final File file2;
+        private final DifferenceCounter counter;
+        private final Exception error;
+
+        Result(File file1, File file2, DifferenceCounter counter, Exception error) {
+            this.file1 = file1;
+            this.file2 = file2;
+            this.counter = counter;
+            this.error = error;
+        }
+
+        public File getFile1() {
+            return file1;
+        }
+
+        public File getFile2() {
+            return file2;
+        }
+
+        /**
+         * @return the number of differences found, by kind
+         */
+        public DifferenceCounter getCounter() {
+            return counter;
+        }
+
+        /**
+         * @return the error which stopped the comparison, or null if it completed
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean hasDifferences() {
+            return error == null && counter.hasDifferences();
+        }
+    }
+
+    private final DifferenceCalculator calculator;
+    private final List<File[]> pairs = new ArrayList<File[]>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private final ConcurrentMap<File, Future<Map<String, ZipEntry>>> indexes =
+            new ConcurrentHashMap<File, Future<Map<String, ZipEntry>>>();
+    private final ConcurrentMap<File, AtomicInteger> pendingPairs = new ConcurrentHashMap<File, AtomicInteger>();
+
+    /**
+     * @param calculator The calculator whose settings are used to compare every pair, usually created with
+     *                   {@link DifferenceCalculator#DifferenceCalculator()}. Its files, if any, are not compared.
+     */
+    public BatchCalculator(DifferenceCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    public void addPair(File file1, File file2) {
+        pairs.add(new File[]{file1, file2});
+    }
+
+    public List<File[]> getPairs() {
+        return Collections.unmodifiableList(pairs);
+    }
+
+    /**
+     * @param parallelism The number of pairs compared at the same time (default one per processor)
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Reads the pairs to compare from a manifest, one pair per line. The two files of a pair are separated
+     * by a tab, or by spaces when the line has no tab. A line holding a single file pairs the baseline with it.
+     * Empty lines and lines starting with # are skipped. Relative paths are resolved against the directory
+     * of the manifest.
+     *
+     * @param manifest The manifest to read
+     * @param baseline The file paired with the single files of the manifest, may be null
+     * @throws IOException if the manifest cannot be read or a line is invalid
+     */
+    public void addPairs(File manifest, File baseline) throws IOException {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] files = line.indexOf('\t') >= 0 ? line.split("\t+") : line.split(" +");
+                if (files.length == 1 && baseline != null) {
+                    addPair(baseline, resolve(dir, files[0]));
+                } else if (files.length == 2) {
+                    addPair(resolve(dir, files[0]), resolve(dir, files[1]));
+                } else {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected "
+                            + (baseline != null ? "one or two files" : "two files") + " but got: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static File resolve(File dir, String path) {
+        File f = new File(path.trim());
+        return f.isAbsolute() ? f : new File(dir, path.trim());
+    }
+
+    /**
+     * Compares every pair. A pair failing to be compared does not stop the others. The
+     * {@link DifferenceCalculator#getStatistics() statistics} of the calculator cover the whole batch, the
+     * time spent indexing each archive being measured on the thread which indexed it.
+     *
+     * @param factory Creates the listener of each pair, may be null to only count the differences
+     * @return the result of each pair, in the order of the pairs
+     * @throws IOException if interrupted
+     */
+    public List<Result> calculate(final ListenerFactory factory) throws IOException {
+        Statistics stats = calculator.resetStatistics();
+        for (File[] pair : pairs) {
+            for (File f : pair) {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger previous = pendingPairs.putIfAbsent(key(f), count);
+                (previous == null ? count : previous).incrementAndGet();
+            }
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(pairs.size(), 1)));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(pairs.size());
+            for (int i = 0; i < pairs.size(); i++) {
+                final int pair = i;
+                futures.add(service.submit(new Callable<Result>() {
+                    public Result call() {
+                        return calculate(pair, factory);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(pairs.size());
+            for (Future<Result> future : futures) {
+                results.add(DifferenceCalculator.await(future));
+            }
+            return results;
+        } finally {
+            service.shutdownNow();
+            calculator.shutdownOwnExecutors();
+            stats.finish();
+            indexes.clear();
+            pendingPairs.clear();
+        }
+    }
+
+    private Result calculate(int pair, ListenerFactory factory) {
+        File file1 = pairs.get(pair)[0];
+        File file2 = pairs.get(pair)[1];
+        DifferenceCounter counter = new DifferenceCounter();
+        try {
+            DiffListener listener = factory == null ? null : factory.createListener(pair, file1, file2);
+            listener = listener == null ? counter : new CompositeDiffListener(listener, counter);
+
+            Map<String, ZipEntry> map1 = getIndex(file1);
+            Map<String, ZipEntry> map2 = getIndex(file2);
+            listener.start(file1.getPath(), file2.getPath());
+            calculator.calculateDifferences(file1, map1, file2, map2, listener);
+            listener.end();
+            return new Result(file1, file2, counter, null);
+        } catch (IOException e) {
+            LOGGER.error("cannot compare " + file1 + " with " + file2, e);
+            return new Result(file1, file2, counter, e);
+        } catch (RuntimeException e) {
+            LOGGER.error("cannot compare " + file1 + " with " + file2, e);
+            return new Result(file1, file2, counter, e);
+        } finally {
+            release(file1);
+            release(file2);
+        }
+    }
+
+    /**
+     * @return the index of the archive, built by the first pair needing it
+     */
+    private Map<String, ZipEntry> getIndex(final File archive) throws IOException {
+        File key = key(archive);
+        Future<Map<String, ZipEntry>> future = indexes.get(key);
+        if (future == null) {
+            FutureTask<Map<String, ZipEntry>> task = new FutureTask<Map<String, ZipEntry>>(
+                    new Callable<Map<String, ZipEntry>>() {
+                        public Map<String, ZipEntry> call() throws IOException {
+                            return calculator.loadIndex(archive, null);
+                        }
+                    });
+            future = indexes.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                Statistics.Timer timer = calculator.getStatistics().timeThread(Statistics.Phase.INDEX);
+                task.run();
+                timer.stop();
+            }
+        }
+        return DifferenceCalculator.await(future);
+    }
+
+    /**
+     * Forgets the index of the archive once the last pair using it is done.
+     */
+    private void release(File archive) {
+        File key = key(archive);
+        AtomicInteger count = pendingPairs.get(key);
+        if (count != null && count.decrementAndGet() == 0) {
+            indexes.remove(key);
+        }
+    }
+
+    private static File key(File archive) {
+        return archive.getAbsoluteFile();
+    }
+}
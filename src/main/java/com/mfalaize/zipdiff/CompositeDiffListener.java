@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Forwards the differences to several listeners, in the given order. The line differences of the changed
+ * text entries are only forwarded to the listeners which are {@link TextDiffListener}s.
+ *
+ * @author Maxime Falaize
+ */
+public class CompositeDiffListener implements TextDiffListener {
+
+    private final DiffListener[] listeners;
+
+    public CompositeDiffListener(DiffListener... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    public void start(String filename1, String filename2) {
+        for (DiffListener listener : listeners) {
+            listener.start(filename1, filename2);
+        }
+    }
+
+    public void fileAdded(String fqn, ZipEntry ze) {
+        for (DiffListener listener : listeners) {
+            listener.fileAdded(fqn, ze);
+        }
+    }
+
+    public void fileRemoved(String fqn, ZipEntry ze) {
+        for (DiffListener listener : listeners) {
+            listener.fileRemoved(fqn, ze);
+        }
+    }
+
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+        for (DiffListener listener : listeners) {
+            listener.fileChanged(fqn, z1, z2);
+        }
+    }
+
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+        for (DiffListener listener : listeners) {
+            if (listener instanceof TextDiffListener) {
+                ((TextDiffListener) listener).fileChanged(fqn, z1, z2, diff);
+            } else {
+                listener.fileChanged(fqn, z1, z2);
+            }
+        }
+    }
+
+    public void fileIgnored(String fqn, ZipEntry ze) {
+        for (DiffListener listener : listeners) {
+            listener.fileIgnored(fqn, ze);
+        }
+    }
+
+    public void end() {
+        for (DiffListener listener : listeners) {
+            listener.end();
+        }
+    }
+}
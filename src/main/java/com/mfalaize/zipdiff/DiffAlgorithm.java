@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+/**
+ * The available algorithms for matching the entries of the two archives.
+ *
+ * @author Maxime Falaize
+ */
+public enum DiffAlgorithm {
+
+    /**
+     * Looks up every name of the union of both indexes in each of them. The differences are
+     * reported in no particular order.
+     */
+    HASH,
+
+    /**
+     * Sorts the names of both indexes and walks them side by side in one pass. The differences
+     * are reported in name order.
+     */
+    MERGE
+}
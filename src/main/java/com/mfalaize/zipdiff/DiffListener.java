@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Receives the differences between two zip files as they are found by a {@link DifferenceCalculator}.
+ * The methods are called one at a time, {@link #start(String, String)} first and {@link #end()} last.
+ *
+ * @author Maxime Falaize
+ * @see Differences
+ */
+public interface DiffListener {
+
+    /**
+     * Called before any difference is reported.
+     *
+     * @param filename1 The name of the first file
+     * @param filename2 The name of the second file
+     */
+    void start(String filename1, String filename2);
+
+    void fileAdded(String fqn, ZipEntry ze);
+
+    void fileRemoved(String fqn, ZipEntry ze);
+
+    void fileChanged(String fqn, ZipEntry z1, ZipEntry z2);
+
+    void fileIgnored(String fqn, ZipEntry ze);
+
+    /**
+     * Called once all the differences have been reported.
+     */
+    void end();
+}
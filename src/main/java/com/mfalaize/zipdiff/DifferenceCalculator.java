@@ -15,18 +15,40 @@
  */
 package com.mfalaize.zipdiff;
 
+import com.mfalaize.zipdiff.hash.FileHasher;
+import com.mfalaize.zipdiff.hash.XxHash64;
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+import com.mfalaize.zipdiff.scan.DirectoryArchiveReader;
+import com.mfalaize.zipdiff.scan.MappedArchiveReader;
+import com.mfalaize.zipdiff.scan.ScanEngine;
+import com.mfalaize.zipdiff.scan.ZipFileArchiveReader;
+import com.mfalaize.zipdiff.text.LineDiff;
+import com.mfalaize.zipdiff.text.TextDiff;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Checks and compiles differences between two zip files.
@@ -39,12 +61,65 @@ public class DifferenceCalculator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DifferenceCalculator.class);
 
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The entries whose line differences are computed by default: properties, xml, manifests, sql scripts
+     * and other common text formats.
+     */
+    public static final EntryFilter TEXT_ENTRIES = new EntryFilter(
+            "(?i).*\\.(properties|xml|mf|sql|txt|csv|html?|css|js|json|ya?ml|xsd|xslt?|tld|jsp|java|sh|bat|cfg|conf|ini)");
+
+    private static final ThreadLocal<byte[]> HASH_BUFFERS = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[HASH_BUFFER_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<XxHash64> HASHES = new ThreadLocal<XxHash64>() {
+        protected XxHash64 initialValue() {
+            return new XxHash64();
+        }
+    };
+
+    private File archive1;
+    private File archive2;
     private ZipFile file1;
     private ZipFile file2;
+    private ScanEngine scanEngine = ScanEngine.ZIP_FILE;
+    private DiffAlgorithm diffAlgorithm = DiffAlgorithm.HASH;
     private boolean ignoreTimestamps = false;
     private boolean ignoreCVSFiles = false;
     private boolean compareCRCValues = true;
-    private Pattern filesToIgnorePattern;
+    private EntryFilter ignoreFilter;
+    private EntryFilter includeFilter;
+    private ExecutorService executor;
+    private ExecutorService ownExecutor;
+    private ForkJoinPool ownForkJoinPool;
+    private int threadCount = 1;
+    private boolean forkJoinExpansion = false;
+    private boolean skipUnchangedNestedArchives = false;
+    private boolean compareContents = false;
+    private boolean verifyUnchangedEntries = false;
+    private boolean checkIdentity = true;
+    private boolean hashWholeArchives = false;
+    private int maxOpenNestedArchives = 16;
+    private int nestedArchiveMemoryThreshold = MappedArchiveReader.DEFAULT_MEMORY_THRESHOLD;
+    private boolean textDiff = false;
+    private LineDiff lineDiff = new LineDiff();
+    private EntryFilter textEntryFilter = TEXT_ENTRIES;
+    private IndexCache indexCache;
+    private Snapshot snapshot1;
+    private ObjectName statisticsObjectName;
+    private volatile Statistics statistics = new Statistics();
+
+    /**
+     * Constructor of a calculator holding only the settings, used to compare the archives given to a
+     * {@link BatchCalculator} or to export a {@link Snapshot}. {@link #getDifferences()} and
+     * {@link #hasDifferences()} cannot be called on it.
+     */
+    public DifferenceCalculator() {
+    }
 
     /**
      * Constructor taking 2 filenames to compare
@@ -61,7 +136,8 @@ public class DifferenceCalculator {
      * @throws java.io.IOException
      */
     public DifferenceCalculator(File f1, File f2) throws java.io.IOException {
-        this(new ZipFile(f1), new ZipFile(f2));
+        archive1 = f1;
+        archive2 = f2;
     }
 
     /**
@@ -70,6 +146,19 @@ public class DifferenceCalculator {
     public DifferenceCalculator(ZipFile zf1, ZipFile zf2) {
         file1 = zf1;
         file2 = zf2;
+        archive1 = new File(zf1.getName());
+        archive2 = new File(zf2.getName());
+    }
+
+    /**
+     * Constructor taking a snapshot of the first archive and the second archive to compare
+     *
+     * @see Snapshot#export(DifferenceCalculator, File, File, boolean)
+     */
+    public DifferenceCalculator(Snapshot snapshot, File f2) {
+        snapshot1 = snapshot;
+        archive1 = snapshot.getFile();
+        archive2 = f2;
     }
 
     /**
@@ -79,23 +168,55 @@ public class DifferenceCalculator {
      */
     public void setFilenameRegexToIgnore(Set<String> patterns) {
         if (patterns == null || patterns.isEmpty()) {
-            filesToIgnorePattern = null;
+            ignoreFilter = null;
         } else {
-            String regex = "";
-
-            for (String pattern : patterns) {
-                if (regex.length() > 0) {
-                    regex += "|";
-                }
-                regex += "(" + pattern + ")";
+            List<String> regexes = new ArrayList<String>();
+            for (String pattern : new TreeSet<String>(patterns)) {
+                regexes.add(EntryFilter.REGEX_PREFIX + pattern);
             }
-            filesToIgnorePattern = Pattern.compile(regex);
-            LOGGER.debug("Regular expression is : " + regex);
+            setIgnoreFilter(new EntryFilter(regexes));
         }
     }
 
     /**
-     * returns true if fileToIgnorePattern matches the filename given.
+     * @param filter The filter matching the entries to ignore, or null to compare them all. The nested
+     *               archives whose entries are all ignored are not expanded.
+     */
+    public void setIgnoreFilter(EntryFilter filter) {
+        ignoreFilter = filter;
+        LOGGER.debug("Ignored patterns are : " + filter);
+    }
+
+    public EntryFilter getIgnoreFilter() {
+        return ignoreFilter;
+    }
+
+    /**
+     * Restricts the comparison to the entries matching the given filter, such as {@code glob:WEB-INF/lib/**}.
+     * The filter is matched against the whole name of the entries, including the names of the nested
+     * archives they are in, and the nested archives in which no name can match are not expanded.
+     *
+     * @param filter The filter matching the entries to compare, or null to compare them all
+     */
+    public void setIncludeFilter(EntryFilter filter) {
+        includeFilter = filter;
+        LOGGER.debug("Included patterns are : " + filter);
+    }
+
+    public EntryFilter getIncludeFilter() {
+        return includeFilter;
+    }
+
+    /**
+     * @param name The whole name of an entry
+     * @return true if the entry is part of the comparison according to the include filter
+     */
+    protected boolean isIncluded(String name) {
+        return includeFilter == null || includeFilter.matches(name);
+    }
+
+    /**
+     * returns true if the ignore filter matches the filename given.
      *
      * @param filepath  The file path
      * @param entryName The name of the file to check to see if it should be ignored.
@@ -106,13 +227,12 @@ public class DifferenceCalculator {
             return false;
         } else if (isCVSFile(filepath, entryName) && (ignoreCVSFiles())) {
             return true;
-        } else if (filesToIgnorePattern == null) {
+        } else if (ignoreFilter == null) {
             return false;
         } else {
-            Matcher m = filesToIgnorePattern.matcher(entryName);
-            boolean match = m.matches();
+            boolean match = ignoreFilter.matches(entryName);
             if (match) {
-                LOGGER.debug("Found a match against : " + entryName + " so excluding");
+                LOGGER.debug("Found a match against : {} so excluding", entryName);
             }
             return match;
         }
@@ -139,210 +259,1726 @@ public class DifferenceCalculator {
     }
 
     /**
-     * Opens the ZipFile and builds up a map of all the entries. The key is the name of
-     * the entry and the value is the ZipEntry itself.
+     * Selects how the archives are read. {@link ScanEngine#MAPPED} only reads the central
+     * directories and opens entry data for nested archives only.
      *
-     * @param zf The ZipFile for which to build up the map of ZipEntries
-     * @return The map containing all the ZipEntries. The key being the name of the ZipEntry.
-     * @throws java.io.IOException
+     * @param scanEngine the engine to use, {@link ScanEngine#ZIP_FILE} by default
      */
-    protected Map<String, ZipEntry> buildZipEntryMap(ZipFile zf) throws java.io.IOException {
-        Map<String, ZipEntry> zipEntryMap = new HashMap<String, ZipEntry>();
-        try {
-            Enumeration<? extends ZipEntry> entries = zf.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                InputStream is = null;
-                try {
-                    is = zf.getInputStream(entry);
-                    processZipEntry("", entry, is, zipEntryMap);
-                } finally {
-                    if (is != null) {
-                        is.close();
-                    }
-                }
-            }
-        } finally {
-            zf.close();
+    public void setScanEngine(ScanEngine scanEngine) {
+        if (scanEngine == null) {
+            throw new IllegalArgumentException("scanEngine must not be null");
         }
+        this.scanEngine = scanEngine;
+    }
 
-        return zipEntryMap;
+    public ScanEngine getScanEngine() {
+        return scanEngine;
     }
 
     /**
-     * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
-     * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
-     * prefixed onto the names of their ZipEntries.
+     * Selects how the entries of both archives are matched. {@link DiffAlgorithm#MERGE} reports
+     * the differences in name order.
      *
-     * @param prefix      The prefix of the ZipEntry that should be added to the key. Typically used
-     *                    when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
-     *                    all the embedded ZipEntries.
-     * @param zipEntry    The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
-     *                    will also be placed in the Map.
-     * @param is          The InputStream of the corresponding ZipEntry.
-     * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
-     *                    be the name of the ZipEntry.
-     * @throws IOException
+     * @param diffAlgorithm the algorithm to use, {@link DiffAlgorithm#HASH} by default
      */
-    protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap) throws IOException {
-        if (ignoreThisFile(prefix, zipEntry.getName())) {
-            LOGGER.debug("ignoring file: " + zipEntry.getName());
-        } else {
-            String name = prefix + zipEntry.getName();
+    public void setDiffAlgorithm(DiffAlgorithm diffAlgorithm) {
+        if (diffAlgorithm == null) {
+            throw new IllegalArgumentException("diffAlgorithm must not be null");
+        }
+        this.diffAlgorithm = diffAlgorithm;
+    }
 
-            LOGGER.debug("processing ZipEntry: " + name);
+    public DiffAlgorithm getDiffAlgorithm() {
+        return diffAlgorithm;
+    }
 
-            if (zipEntry.isDirectory()) {
-                zipEntryMap.put(name, zipEntry);
-            } else if (isZipFile(name)) {
-                processEmbeddedZipFile(zipEntry.getName() + "/", is, zipEntryMap);
-                zipEntryMap.put(name, zipEntry);
-            } else {
-                zipEntryMap.put(name, zipEntry);
+    /**
+     * Opens an archive with the selected scan engine, or the files of a directory as an archive.
+     *
+     * @param archive The archive or directory to open
+     * @param zipFile The already opened archive if any. It is closed when another engine is selected.
+     * @return the reader of the archive
+     * @throws IOException
+     * @see DirectoryArchiveReader
+     */
+    protected ArchiveReader openArchive(File archive, ZipFile zipFile) throws IOException {
+        if (archive.isDirectory()) {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+            return new DirectoryArchiveReader(archive, getForkJoinPool());
+        }
+        if (scanEngine == ScanEngine.MAPPED) {
+            if (zipFile != null) {
+                zipFile.close();
             }
+            return new MappedArchiveReader(archive);
         }
+        return new ZipFileArchiveReader(zipFile != null ? zipFile : new ZipFile(archive));
     }
 
-    protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m) throws java.io.IOException {
-        ZipInputStream zis = new ZipInputStream(is);
+    /**
+     * Sets the cache in which the indexes of the archives are stored and looked up, so that an archive
+     * which did not change since a previous comparison is not read again. It is not used when nested
+     * archives identical on both sides are skipped, since the index then depends on the other archive.
+     *
+     * @param indexCache the cache to use, or null to always index the archives
+     */
+    public void setIndexCache(IndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    public IndexCache getIndexCache() {
+        return indexCache;
+    }
+
+    /**
+     * @return a description of the settings which change the index of an archive. Subclasses changing
+     * which entries are ignored or expanded should add their own settings.
+     * @see IndexCache
+     */
+    protected String getIndexSettings() {
+        return "ignore=" + (ignoreFilter == null ? "" : ignoreFilter.toString())
+                + "\ninclude=" + (includeFilter == null ? "" : includeFilter.toString())
+                + "\ncvs=" + ignoreCVSFiles;
+    }
+
+    /**
+     * Sets the executor used to index both archives concurrently. The executor is not
+     * shut down by this class.
+     *
+     * @param executor the executor to use, or null to fall back on the thread count
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
 
-        ZipEntry entry = zis.getNextEntry();
+    /**
+     * @return the executor set with {@link #setExecutor(ExecutorService)}, or null
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
 
-        while (entry != null) {
-            processZipEntry(prefix, entry, zis, m);
-            zis.closeEntry();
-            entry = zis.getNextEntry();
+    /**
+     * Sets the number of threads used when no executor has been set. With more than one
+     * thread, a private pool is created for the duration of {@link #getDifferences()}.
+     *
+     * @param threadCount the number of threads, 1 meaning everything runs on the calling thread
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1: " + threadCount);
         }
+        this.threadCount = threadCount;
+    }
 
+    public int getThreadCount() {
+        return threadCount;
     }
 
     /**
-     * Returns true if the filename has a valid zip extension.
-     * i.e. jar, war, ear, zip etc.
+     * Expands each nested archive as its own fork/join task instead of one after the other
+     * on the thread indexing the archive. The resulting map is the same in both modes.
      *
-     * @param filename The name of the file to check.
-     * @return true if it has a valid extension.
+     * @param b true to expand nested archives in parallel
      */
-    public static boolean isZipFile(String filename) {
-        boolean result;
+    public void setForkJoinExpansion(boolean b) {
+        forkJoinExpansion = b;
+    }
 
-        if (filename == null) {
-            result = false;
-        } else {
-            String lowercaseName = filename.toLowerCase();
-            result = lowercaseName.endsWith(".zip") || lowercaseName.endsWith(".ear") || lowercaseName.endsWith(".war")
-                    || lowercaseName.endsWith(".rar") || lowercaseName.endsWith(".jar");
-        }
+    public boolean isForkJoinExpansion() {
+        return forkJoinExpansion;
+    }
 
-        return result;
+    /**
+     * Decides whether an entry changed from its decompressed content when its ZipEntries differ
+     * but could still hold the same content, e.g. when only the compressed size differs because
+     * the archives were built with another compression level or tool.
+     * The contents are hashed in a single streaming pass, in parallel when an executor is available.
+     *
+     * @param b true to compare the contents of the entries whose ZipEntries differ
+     */
+    public void setCompareContents(boolean b) {
+        compareContents = b;
+    }
+
+    public boolean isComparingContents() {
+        return compareContents;
     }
 
     /**
-     * Calculates all the differences between two zip files.
-     * It builds up the 2 maps of ZipEntries for the two files
-     * and then compares them.
+     * Confirms that the files whose ZipEntries match really are the same, instead of trusting their CRC.
+     * When both entries have the same compression method and compressed size, their raw compressed
+     * data are compared first; the contents are only decompressed and compared when the raw data differ.
      *
-     * @param zf1 The first ZipFile to compare
-     * @param zf2 The second ZipFile to compare
-     * @return All the differences between the two files.
-     * @throws java.io.IOException
+     * @param b true to check the contents of the entries whose ZipEntries match
      */
-    protected Differences calculateDifferences(ZipFile zf1, ZipFile zf2) throws java.io.IOException {
-        Map<String, ZipEntry> map1 = buildZipEntryMap(zf1);
-        Map<String, ZipEntry> map2 = buildZipEntryMap(zf2);
+    public void setVerifyUnchangedEntries(boolean b) {
+        verifyUnchangedEntries = b;
+    }
 
-        return calculateDifferences(map1, map2);
+    public boolean isVerifyingUnchangedEntries() {
+        return verifyUnchangedEntries;
     }
 
     /**
-     * Given two Maps of ZipEntries it will generate a Differences of all the
-     * differences found between the two maps.
+     * Checks whether the two archives are identical before comparing their entries, in which case
+     * there is no difference to look for. The archives are identical when their central directories
+     * are, whatever their comments, or when they have the same hash if the whole archives are hashed.
      *
-     * @return All the differences found between the two maps
+     * @param b false to always compare the entries
+     * @see #setHashWholeArchives(boolean)
      */
-    protected Differences calculateDifferences(Map<String, ZipEntry> m1, Map<String, ZipEntry> m2) {
-        Differences d = new Differences();
+    public void setCheckIdentity(boolean b) {
+        checkIdentity = b;
+    }
 
-        Set<String> names1 = m1.keySet();
-        Set<String> names2 = m2.keySet();
+    public boolean isCheckingIdentity() {
+        return checkIdentity;
+    }
 
-        Set<String> allNames = new HashSet<String>();
-        allNames.addAll(names1);
-        allNames.addAll(names2);
+    /**
+     * Hashes the whole archives of the same size to check whether they are identical, in parallel chunks
+     * mapped in memory. It is the only identity check when the contents of the entries are compared or verified,
+     * since equal central directories do not prove that the data are.
+     *
+     * @param b true to hash the whole archives
+     */
+    public void setHashWholeArchives(boolean b) {
+        hashWholeArchives = b;
+    }
 
-        for (String name : allNames) {
-            if (!ignoreThisFile("", name)) {
-                if (names1.contains(name) && (!names2.contains(name))) {
-                    d.fileRemoved(name, m1.get(name));
-                } else if (names2.contains(name) && (!names1.contains(name))) {
-                    d.fileAdded(name, m2.get(name));
-                } else if (names1.contains(name) && (names2.contains(name))) {
-                    ZipEntry entry1 = m1.get(name);
-                    ZipEntry entry2 = m2.get(name);
-                    if (!entriesMatch(entry1, entry2)) {
-                        d.fileChanged(name, entry1, entry2);
-                    }
-                } else {
-                    throw new IllegalStateException("unexpected state");
-                }
-            }
-        }
+    public boolean isHashingWholeArchives() {
+        return hashWholeArchives;
+    }
 
-        return d;
+    /**
+     * Compares the ZipEntries of nested archives before expanding them. A nested archive is only
+     * expanded when it is missing on the other side, or when its CRC or size differs from the other
+     * side. Nested archives identical on both sides are compared as single entries.
+     *
+     * @param b true to skip expanding nested archives with the same CRC and size on both sides
+     */
+    public void setSkipUnchangedNestedArchives(boolean b) {
+        skipUnchangedNestedArchives = b;
+    }
+
+    public boolean isSkippingUnchangedNestedArchives() {
+        return skipUnchangedNestedArchives;
     }
 
     /**
-     * returns true if the two entries are equivalent in type, name, size, compressed size
-     * and time or CRC.
+     * Bounds the number of nested archives open at the same time while indexing an archive
+     * with the fork/join expansion. Each nested archive is buffered while its entries are indexed,
+     * so this bounds the memory used as well.
      *
-     * @param entry1 The first ZipEntry to compare
-     * @param entry2 The second ZipEntry to compare
-     * @return true if the entries are equivalent.
+     * @param max the maximum number of nested archives open at the same time
      */
-    protected boolean entriesMatch(ZipEntry entry1, ZipEntry entry2) {
-        boolean result;
+    public void setMaxOpenNestedArchives(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1: " + max);
+        }
+        maxOpenNestedArchives = max;
+    }
 
-        result =
-                (entry1.isDirectory() == entry2.isDirectory())
-                        && (entry1.getSize() == entry2.getSize())
-                        && (entry1.getCompressedSize() == entry2.getCompressedSize())
-                        && (entry1.getName().equals(entry2.getName()));
+    public int getMaxOpenNestedArchives() {
+        return maxOpenNestedArchives;
+    }
 
-        if (!isIgnoringTimestamps()) {
-            result = result && (entry1.getTime() == entry2.getTime());
+    /**
+     * Nested archives are read from their central directory, which requires to buffer them. The ones
+     * larger than the threshold are copied to a temporary file and mapped instead of being held in memory.
+     *
+     * @param bytes the size of the largest nested archive held in memory
+     */
+    public void setNestedArchiveMemoryThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + bytes);
         }
+        nestedArchiveMemoryThreshold = bytes;
+    }
 
-        if (getCompareCRCValues()) {
-            result = result && (entry1.getCrc() == entry2.getCrc());
+    public int getNestedArchiveMemoryThreshold() {
+        return nestedArchiveMemoryThreshold;
+    }
+
+    /**
+     * Computes the line differences of the changed text entries once the other differences are found,
+     * in parallel when an executor is available. They are only computed for a {@link TextDiffListener},
+     * such as {@link Differences}, and not when the first archive is a snapshot.
+     *
+     * @param b true to compute the line differences of the changed text entries
+     * @see #setTextEntryFilter(EntryFilter)
+     * @see #setLineDiff(LineDiff)
+     */
+    public void setTextDiff(boolean b) {
+        textDiff = b;
+    }
+
+    public boolean isDiffingText() {
+        return textDiff;
+    }
+
+    /**
+     * @param lineDiff The algorithm computing the line differences, whose limits bound the size of the entries
+     *                 compared and the time spent on each of them
+     */
+    public void setLineDiff(LineDiff lineDiff) {
+        this.lineDiff = lineDiff;
+    }
+
+    public LineDiff getLineDiff() {
+        return lineDiff;
+    }
+
+    /**
+     * @param filter The filter matching the text entries, {@link #TEXT_ENTRIES} by default
+     */
+    public void setTextEntryFilter(EntryFilter filter) {
+        textEntryFilter = filter;
+    }
+
+    public EntryFilter getTextEntryFilter() {
+        return textEntryFilter;
+    }
+
+    /**
+     * @return the statistics of the last run, or of the current one while it runs
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @param name The name under which the statistics of each run are registered in the platform MBean server,
+     *             replacing those of the previous run, or null not to register them
+     */
+    public synchronized void setStatisticsObjectName(ObjectName name) {
+        statisticsObjectName = name;
+    }
+
+    public synchronized ObjectName getStatisticsObjectName() {
+        return statisticsObjectName;
+    }
+
+    /**
+     * Starts the statistics of a new run.
+     *
+     * @return the statistics of the new run
+     */
+    synchronized Statistics resetStatistics() {
+        Statistics stats = new Statistics();
+        if (statisticsObjectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (server.isRegistered(statisticsObjectName)) {
+                    server.unregisterMBean(statisticsObjectName);
+                }
+                server.registerMBean(stats, statisticsObjectName);
+            } catch (JMException e) {
+                LOGGER.warn("cannot register the statistics as " + statisticsObjectName, e);
+            }
         }
-        return result;
+        statistics = stats;
+        return stats;
     }
 
-    public void setIgnoreTimestamps(boolean b) {
-        ignoreTimestamps = b;
+    /**
+     * @param name The name of an entry
+     * @return true if the line differences of the entry are computed when it changed
+     */
+    protected boolean isTextEntry(String name) {
+        return textEntryFilter.matches(name);
     }
 
-    public boolean isIgnoringTimestamps() {
-        return ignoreTimestamps;
+    /**
+     * @return true if the line differences of the changed text entries have to be reported to the listener
+     */
+    private boolean isDiffingText(DiffListener listener) {
+        return textDiff && snapshot1 == null && listener instanceof TextDiffListener;
     }
 
-    public boolean ignoreCVSFiles() {
-        return ignoreCVSFiles;
+    /**
+     * @return the executor to use for the current run, or null if everything should run
+     * on the calling thread
+     */
+    protected synchronized ExecutorService getExecutorService() {
+        if (executor != null) {
+            return executor;
+        }
+        if (ownExecutor == null) {
+            if (forkJoinExpansion) {
+                ownExecutor = getForkJoinPool();
+            } else if (threadCount > 1) {
+                ownExecutor = Executors.newFixedThreadPool(threadCount);
+            }
+        }
+        return ownExecutor;
     }
 
-    public void setIgnoreCVSFiles(boolean b) {
-        ignoreCVSFiles = b;
+    /**
+     * @return the pool expanding nested archives: the executor if it is a ForkJoinPool, or a private pool
+     * of {@link #getThreadCount()} threads (one per processor when the thread count is 1)
+     */
+    protected synchronized ForkJoinPool getForkJoinPool() {
+        if (executor instanceof ForkJoinPool) {
+            return (ForkJoinPool) executor;
+        }
+        if (ownForkJoinPool == null) {
+            ownForkJoinPool = threadCount > 1 ? new ForkJoinPool(threadCount) : new ForkJoinPool();
+        }
+        return ownForkJoinPool;
+    }
+
+    synchronized void shutdownOwnExecutors() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+            ownExecutor = null;
+        }
+        if (ownForkJoinPool != null) {
+            ownForkJoinPool.shutdownNow();
+            ownForkJoinPool = null;
+        }
     }
 
     /**
-     * @return all the differences found between the two zip files.
-     * @throws java.io.IOException
+     * Waits for the given task and rethrows its failure as it was thrown by the task.
      */
-    public Differences getDifferences() throws java.io.IOException {
-        Differences d = calculateDifferences(file1, file2);
-        d.setFilename1(file1.getName());
-        d.setFilename2(file2.getName());
+    protected static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            InterruptedIOException ex = new InterruptedIOException("interrupted while waiting for a task");
+            ex.initCause(e);
+            throw ex;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-        return d;
+    /**
+     * Opens the ZipFile and builds up a map of all the entries. The key is the name of
+     * the entry and the value is the ZipEntry itself.
+     *
+     * @param zf The ZipFile for which to build up the map of ZipEntries
+     * @return The map containing all the ZipEntries. The key being the name of the ZipEntry.
+     * @throws java.io.IOException
+     */
+    protected Map<String, ZipEntry> buildZipEntryMap(ZipFile zf) throws java.io.IOException {
+        ArchiveReader reader = new ZipFileArchiveReader(zf);
+        try {
+            return buildZipEntryMap(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Builds up a map of all the entries of an archive. The key is the name of
+     * the entry and the value is the ZipEntry itself. The content of an entry is only
+     * opened when it is a nested archive that has to be expanded.
+     *
+     * @param reader The archive for which to build up the map of ZipEntries. It is left open.
+     * @return The map containing all the ZipEntries, an {@link EntryIndex}. The key being the name of the ZipEntry.
+     * @throws java.io.IOException
+     */
+    protected Map<String, ZipEntry> buildZipEntryMap(ArchiveReader reader) throws java.io.IOException {
+        if (isForkJoinExpansion()) {
+            return new ForkJoinIndexer(this, getForkJoinPool(), getMaxOpenNestedArchives()).buildZipEntryMap(reader);
+        }
+
+        Map<String, ZipEntry> zipEntryMap = new EntryIndex(reader.size());
+        processZipEntries("", reader, zipEntryMap);
+        return zipEntryMap;
+    }
+
+    /**
+     * Places the ZipEntries of an archive into the given Map, see {@link #processZipEntry(String, ZipEntry, InputStream, Map)}.
+     */
+    private void processZipEntries(String prefix, ArchiveReader reader, Map<String, ZipEntry> zipEntryMap)
+            throws IOException {
+        Enumeration<? extends ZipEntry> entries = reader.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            InputStream is = null;
+            try {
+                if (isExpandable(prefix, entry)) {
+                    is = openEntry(reader, entry);
+                }
+                processZipEntry(prefix, entry, is, zipEntryMap);
+            } finally {
+                if (is != null) {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Will place ZipEntries for a given ZipEntry into the given Map. More ZipEntries will result
+     * if zipEntry is itself a ZipFile. All embedded ZipFiles will be processed with their names
+     * prefixed onto the names of their ZipEntries.
+     *
+     * @param prefix      The prefix of the ZipEntry that should be added to the key. Typically used
+     *                    when processing embedded ZipFiles. The name of the embedded ZipFile would be the prefix of
+     *                    all the embedded ZipEntries.
+     * @param zipEntry    The ZipEntry to place into the Map. If it is a ZipFile then all its ZipEntries
+     *                    will also be placed in the Map.
+     * @param is          The InputStream of the corresponding ZipEntry. It is only read, and may
+     *                    only be provided, when the ZipEntry is itself a ZipFile.
+     * @param zipEntryMap The Map in which to place all the ZipEntries into. The key will
+     *                    be the name of the ZipEntry.
+     * @throws IOException
+     */
+    protected void processZipEntry(String prefix, ZipEntry zipEntry, InputStream is, Map<String, ZipEntry> zipEntryMap) throws IOException {
+        if (ignoreThisFile(prefix, zipEntry.getName())) {
+            LOGGER.debug("ignoring file: {}", zipEntry.getName());
+        } else {
+            String name = qualify(prefix, zipEntry.getName());
+
+            LOGGER.debug("processing ZipEntry: {}", name);
+
+            if (isExpandable(prefix, zipEntry)) {
+                processEmbeddedZipFile(name + "/", is, zipEntryMap);
+            }
+            if (isIncluded(name)) {
+                zipEntryMap.put(name, zipEntry);
+            }
+        }
+    }
+
+    /**
+     * Places the ZipEntries of a nested archive into the given Map. The archive is buffered then read
+     * from its central directory, so that the size and CRC of its entries are known even when they
+     * are followed by a data descriptor, and only the data of its own nested archives are inflated.
+     */
+    protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m) throws java.io.IOException {
+        ArchiveReader reader = readNestedArchive(prefix.substring(0, prefix.length() - 1), is, -1);
+        if (reader == null) {
+            return;
+        }
+        try {
+            processZipEntries(prefix, reader, m);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private EntryContents createContents(ArchiveReader reader, Map<String, ZipEntry> map) {
+        EntryContents contents = new EntryContents(reader, map);
+        contents.setNestedArchiveMemoryThreshold(getNestedArchiveMemoryThreshold());
+        contents.setStatistics(statistics);
+        return contents;
+    }
+
+    /**
+     * @return the content of the entry, counted by the statistics as it is read
+     */
+    InputStream openEntry(ArchiveReader reader, ZipEntry entry) throws IOException {
+        return statistics.countRead(entry, reader.getInputStream(entry));
+    }
+
+    /**
+     * Buffers a nested archive, in memory or in a temporary file depending on its size.
+     *
+     * @param name The name of the nested archive
+     * @param is   The content of the nested archive
+     * @param size The size of the nested archive if known, -1 otherwise
+     * @return the reader of the nested archive, or null if it is not a valid archive
+     * @throws IOException if the content cannot be read
+     * @see #setNestedArchiveMemoryThreshold(int)
+     */
+    ArchiveReader readNestedArchive(String name, InputStream is, long size) throws IOException {
+        try {
+            return bufferNestedArchive(name, is, size);
+        } catch (MappedArchiveReader.InvalidArchiveException e) {
+            LOGGER.warn("not expanding " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private MappedArchiveReader bufferNestedArchive(String name, InputStream is, long size) throws IOException {
+        Statistics stats = statistics;
+        Statistics.Timer timer = stats.timeThread(Statistics.Phase.NESTED_EXPANSION);
+        try {
+            MappedArchiveReader reader = MappedArchiveReader.read(name, is, size, getNestedArchiveMemoryThreshold());
+            stats.nestedArchiveExpanded(nestingDepth(name));
+            return reader;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @return the number of archives the given nested archive is nested in
+     */
+    static int nestingDepth(String name) {
+        int depth = 1;
+        for (int i = name.indexOf('/'); i > 0; i = name.indexOf('/', i + 1)) {
+            if (isZipFile(name.substring(0, i))) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @param prefix   The prefix of the ZipEntry, see {@link #processZipEntry(String, ZipEntry, InputStream, Map)}
+     * @param zipEntry The ZipEntry to check
+     * @return true if the ZipEntry is an archive whose entries have to be indexed too
+     */
+    protected boolean isExpandable(String prefix, ZipEntry zipEntry) {
+        return !zipEntry.isDirectory() && isZipFile(zipEntry.getName()) && !ignoreThisFile(prefix, zipEntry.getName())
+                && (ignoreFilter == null || !ignoreFilter.matchesAll(prefix + zipEntry.getName() + "/"))
+                && (includeFilter == null || includeFilter.mayMatchBelow(prefix + zipEntry.getName() + "/"));
+    }
+
+    /**
+     * Returns true if the filename has a valid zip extension.
+     * i.e. jar, war, ear, zip etc.
+     *
+     * @param filename The name of the file to check.
+     * @return true if it has a valid extension.
+     */
+    public static boolean isZipFile(String filename) {
+        boolean result;
+
+        if (filename == null) {
+            result = false;
+        } else {
+            // called for every entry: compares in place rather than lower-casing the name
+            result = endsWithIgnoreCase(filename, ".zip") || endsWithIgnoreCase(filename, ".ear")
+                    || endsWithIgnoreCase(filename, ".war") || endsWithIgnoreCase(filename, ".rar")
+                    || endsWithIgnoreCase(filename, ".jar");
+        }
+
+        return result;
+    }
+
+    private static boolean endsWithIgnoreCase(String s, String suffix) {
+        return s.regionMatches(true, s.length() - suffix.length(), suffix, 0, suffix.length());
+    }
+
+    /**
+     * @return the name of an entry prefixed with the name of its nested archive, without building a new string
+     * for the entries of the top level archive
+     */
+    static String qualify(String prefix, String name) {
+        return prefix.length() == 0 ? name : prefix + name;
+    }
+
+    /**
+     * Calculates all the differences between two zip files.
+     * It builds up the 2 maps of ZipEntries for the two files
+     * and then compares them.
+     *
+     * @param zf1 The first ZipFile to compare
+     * @param zf2 The second ZipFile to compare
+     * @return All the differences between the two files.
+     * @throws java.io.IOException
+     */
+    protected Differences calculateDifferences(ZipFile zf1, ZipFile zf2) throws java.io.IOException {
+        Differences d = new Differences();
+        calculateDifferences(new File(zf1.getName()), zf1, new File(zf2.getName()), zf2, d);
+        return d;
+    }
+
+    private void calculateDifferences(File f1, ZipFile zf1, File f2, ZipFile zf2, DiffListener listener)
+            throws IOException {
+        if (snapshot1 != null || (indexCache != null && !isSkippingUnchangedNestedArchives())) {
+            calculateDifferencesFromIndexes(f1, zf1, f2, zf2, listener);
+            return;
+        }
+        ArchiveReader reader1 = openArchive(f1, zf1);
+        ArchiveReader reader2;
+        try {
+            reader2 = openArchive(f2, zf2);
+        } catch (IOException e) {
+            reader1.close();
+            throw e;
+        }
+        calculateDifferences(reader1, reader2, listener);
+    }
+
+    /**
+     * Calculates the differences between two archives whose indexes are taken from the snapshot or the
+     * cache when possible. The archives are only opened when they have to be indexed or their contents compared.
+     */
+    private void calculateDifferencesFromIndexes(final File f1, final ZipFile zf1, final File f2, final ZipFile zf2,
+                                               DiffListener listener) throws IOException {
+        Map<String, ZipEntry> map1;
+        Map<String, ZipEntry> map2;
+
+        Statistics.Timer timer = statistics.time(Statistics.Phase.INDEX);
+        ExecutorService service = getExecutorService();
+        if (snapshot1 != null) {
+            try {
+                map1 = snapshot1.getIndex();
+            } catch (IOException e) {
+                if (zf2 != null) {
+                    zf2.close();
+                }
+                throw e;
+            }
+            map2 = loadIndex(f2, zf2);
+        } else if (service == null) {
+            try {
+                map1 = loadIndex(f1, zf1);
+            } catch (IOException e) {
+                if (zf2 != null) {
+                    zf2.close();
+                }
+                throw e;
+            }
+            map2 = loadIndex(f2, zf2);
+        } else {
+            Future<Map<String, ZipEntry>> future2 = service.submit(new Callable<Map<String, ZipEntry>>() {
+                public Map<String, ZipEntry> call() throws IOException {
+                    return loadIndex(f2, zf2);
+                }
+            });
+            try {
+                map1 = loadIndex(f1, zf1);
+            } catch (IOException e) {
+                future2.cancel(true);
+                throw e;
+            } catch (RuntimeException e) {
+                future2.cancel(true);
+                throw e;
+            }
+            map2 = await(future2);
+        }
+        timer.stop();
+        calculateDifferences(f1, map1, f2, map2, listener);
+    }
+
+    /**
+     * Calculates the differences between two archives already indexed, opening them only when their
+     * contents have to be compared.
+     */
+    void calculateDifferences(File f1, Map<String, ZipEntry> map1, File f2, Map<String, ZipEntry> map2,
+                              DiffListener listener) throws IOException {
+        if (f1.isDirectory() && !f2.isDirectory()) {
+            map1 = withoutImplicitDirectories(map1, map2);
+        } else if (f2.isDirectory() && !f1.isDirectory()) {
+            map2 = withoutImplicitDirectories(map2, map1);
+        }
+        // the CRC of the files of a directory is only known once they are read
+        boolean crcsUnknown = f1.isDirectory() || f2.isDirectory();
+        if (!isComparingContents() && !isVerifyingUnchangedEntries() && !crcsUnknown && !isDiffingText(listener)) {
+            calculateDifferences(map1, map2, null, null, listener);
+            return;
+        }
+        if (snapshot1 != null && !snapshot1.hasContentHashes() && !crcsUnknown) {
+            LOGGER.warn("no content hashes in " + snapshot1.getFile() + ", only the entries metadata are compared");
+            calculateDifferences(map1, map2, null, null, listener);
+            return;
+        }
+        ArchiveReader reader1 = snapshot1 == null ? openArchive(f1, null) : null;
+        try {
+            ArchiveReader reader2 = openArchive(f2, null);
+            try {
+                EntryContents contents1 = snapshot1 == null ? createContents(reader1, map1) : snapshot1.getContents();
+                EntryContents contents2 = createContents(reader2, map2);
+                try {
+                    calculateDifferences(map1, map2, contents1, contents2, listener);
+                } finally {
+                    try {
+                        contents1.close();
+                    } finally {
+                        contents2.close();
+                    }
+                }
+            } finally {
+                reader2.close();
+            }
+        } finally {
+            if (reader1 != null) {
+                reader1.close();
+            }
+        }
+    }
+
+    /**
+     * Leaves the subdirectories out of the index of a directory compared with an archive which has no entry
+     * for its directories, as many archives do, so that they are not all reported as added or removed.
+     *
+     * @param directoryIndex The index of the directory
+     * @param archiveIndex   The index of the archive it is compared with
+     * @return the index of the directory, without its subdirectories if the archive has no directory entry
+     */
+    private static Map<String, ZipEntry> withoutImplicitDirectories(Map<String, ZipEntry> directoryIndex,
+                                                                    Map<String, ZipEntry> archiveIndex) {
+        for (ZipEntry entry : archiveIndex.values()) {
+            if (entry.isDirectory()) {
+                return directoryIndex;
+            }
+        }
+        Map<String, ZipEntry> index = new EntryIndex(directoryIndex.size());
+        for (Map.Entry<String, ZipEntry> e : directoryIndex.entrySet()) {
+            if (!e.getValue().isDirectory()) {
+                index.put(e.getKey(), e.getValue());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the archive from the cache if any, or built and then stored in the cache. The
+     * given ZipFile is closed in both cases.
+     */
+    Map<String, ZipEntry> loadIndex(File archive, ZipFile zipFile) throws IOException {
+        String settings = getIndexSettings();
+        boolean cached = indexCache != null && !archive.isDirectory();
+        EntryIndex index = cached ? indexCache.load(archive, settings) : null;
+        if (index != null) {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+            return index;
+        }
+
+        Map<String, ZipEntry> map;
+        ArchiveReader reader = openArchive(archive, zipFile);
+        try {
+            map = buildZipEntryMap(reader);
+        } finally {
+            reader.close();
+        }
+        if (!cached) {
+            return map;
+        }
+        index = map instanceof EntryIndex ? (EntryIndex) map : new EntryIndex(map);
+        try {
+            indexCache.store(archive, settings, index);
+        } catch (IOException e) {
+            LOGGER.warn("cannot store the index of " + archive + " in " + indexCache.getDirectory(), e);
+        }
+        return index;
+    }
+
+    /**
+     * Calculates all the differences between two archives.
+     * It builds up the 2 maps of ZipEntries for the two archives
+     * and then compares them. Both archives are closed once done.
+     *
+     * @param reader1 The first archive to compare
+     * @param reader2 The second archive to compare
+     * @return All the differences between the two archives.
+     * @throws java.io.IOException
+     */
+    protected Differences calculateDifferences(ArchiveReader reader1, ArchiveReader reader2) throws java.io.IOException {
+        Differences d = new Differences();
+        calculateDifferences(reader1, reader2, d);
+        return d;
+    }
+
+    /**
+     * Calculates all the differences between two archives and reports them to the given listener.
+     * It builds up the 2 maps of ZipEntries for the two archives
+     * and then compares them. Both archives are closed once done.
+     *
+     * @param reader1  The first archive to compare
+     * @param reader2  The second archive to compare
+     * @param listener The listener to report the differences to
+     * @throws java.io.IOException
+     */
+    protected void calculateDifferences(ArchiveReader reader1, ArchiveReader reader2, DiffListener listener)
+            throws java.io.IOException {
+        try {
+            Map<String, ZipEntry> map1;
+            Map<String, ZipEntry> map2;
+
+            Statistics.Timer timer = statistics.time(Statistics.Phase.INDEX);
+            ExecutorService service = getExecutorService();
+            if (isSkippingUnchangedNestedArchives()) {
+                map1 = new EntryIndex(reader1.size());
+                map2 = new EntryIndex(reader2.size());
+                buildZipEntryMaps("", reader1, reader2, map1, map2);
+            } else if (service == null) {
+                map1 = buildZipEntryMap(reader1);
+                map2 = buildZipEntryMap(reader2);
+            } else {
+                // the second archive is indexed by the executor while the calling thread takes the first one
+                Future<Map<String, ZipEntry>> future2 = service.submit(indexTask(reader2));
+                try {
+                    map1 = buildZipEntryMap(reader1);
+                } catch (IOException e) {
+                    future2.cancel(true);
+                    throw e;
+                } catch (RuntimeException e) {
+                    future2.cancel(true);
+                    throw e;
+                }
+                map2 = await(future2);
+            }
+            timer.stop();
+            boolean directory1 = reader1 instanceof DirectoryArchiveReader;
+            boolean directory2 = reader2 instanceof DirectoryArchiveReader;
+            if (directory1 && !directory2) {
+                map1 = withoutImplicitDirectories(map1, map2);
+            } else if (directory2 && !directory1) {
+                map2 = withoutImplicitDirectories(map2, map1);
+            }
+
+            if (!isComparingContents() && !isVerifyingUnchangedEntries() && !isDiffingText(listener)
+                    && !(reader1 instanceof DirectoryArchiveReader) && !(reader2 instanceof DirectoryArchiveReader)) {
+                calculateDifferences(map1, map2, null, null, listener);
+                return;
+            }
+            EntryContents contents1 = createContents(reader1, map1);
+            EntryContents contents2 = createContents(reader2, map2);
+            try {
+                calculateDifferences(map1, map2, contents1, contents2, listener);
+            } finally {
+                try {
+                    contents1.close();
+                } finally {
+                    contents2.close();
+                }
+            }
+        } finally {
+            try {
+                reader1.close();
+            } finally {
+                reader2.close();
+            }
+        }
+    }
+
+    /**
+     * Builds up the maps of two archives at the same time, only expanding the nested archives
+     * which are not the same on both sides.
+     *
+     * @param prefix  The prefix of the entries of both archives
+     * @param reader1 The first archive
+     * @param reader2 The second archive
+     * @param m1      The map in which to place the ZipEntries of the first archive
+     * @param m2      The map in which to place the ZipEntries of the second archive
+     * @throws IOException
+     * @see #setSkipUnchangedNestedArchives(boolean)
+     */
+    protected void buildZipEntryMaps(String prefix, ArchiveReader reader1, ArchiveReader reader2,
+                                     Map<String, ZipEntry> m1, Map<String, ZipEntry> m2) throws IOException {
+        Map<String, ZipEntry> entries1 = listZipEntries(prefix, reader1);
+        Map<String, ZipEntry> entries2 = listZipEntries(prefix, reader2);
+
+        // the entries of the nested archives expanded on both sides, inserted in m2 at the place of their archive
+        Map<String, Map<String, ZipEntry>> expanded2 = new HashMap<String, Map<String, ZipEntry>>();
+
+        for (Map.Entry<String, ZipEntry> e : entries1.entrySet()) {
+            String name = e.getKey();
+            ZipEntry entry1 = e.getValue();
+            ZipEntry entry2 = entries2.get(name);
+            if (!isExpandable(prefix, entry1)) {
+                m1.put(name, entry1);
+            } else if (entry2 == null || !isExpandable(prefix, entry2)) {
+                expandZipEntry(prefix, reader1, entry1, m1);
+            } else if (nestedArchivesMatch(entry1, entry2)) {
+                LOGGER.debug("skipping unchanged nested archive: {}", name);
+                putIfIncluded(m1, name, entry1);
+            } else {
+                Map<String, ZipEntry> nested2 = new EntryIndex();
+                ArchiveReader nestedReader1 = openNestedArchive(name, reader1, entry1);
+                try {
+                    ArchiveReader nestedReader2 = openNestedArchive(name, reader2, entry2);
+                    try {
+                        if (nestedReader1 != null && nestedReader2 != null) {
+                            buildZipEntryMaps(name + "/", nestedReader1, nestedReader2, m1, nested2);
+                        } else {
+                            // an invalid archive is kept as a single entry, the other one is expanded alone
+                            if (nestedReader1 != null) {
+                                processZipEntries(name + "/", nestedReader1, m1);
+                            }
+                            if (nestedReader2 != null) {
+                                processZipEntries(name + "/", nestedReader2, nested2);
+                            }
+                        }
+                    } finally {
+                        if (nestedReader2 != null) {
+                            nestedReader2.close();
+                        }
+                    }
+                } finally {
+                    if (nestedReader1 != null) {
+                        nestedReader1.close();
+                    }
+                }
+                putIfIncluded(m1, name, entry1);
+                putIfIncluded(nested2, name, entry2);
+                expanded2.put(name, nested2);
+            }
+        }
+
+        for (Map.Entry<String, ZipEntry> e : entries2.entrySet()) {
+            String name = e.getKey();
+            ZipEntry entry2 = e.getValue();
+            Map<String, ZipEntry> nested2 = expanded2.get(name);
+            ZipEntry entry1 = entries1.get(name);
+            if (nested2 != null) {
+                m2.putAll(nested2);
+            } else if (isExpandable(prefix, entry2) && (entry1 == null || !isExpandable(prefix, entry1))) {
+                expandZipEntry(prefix, reader2, entry2, m2);
+            } else {
+                putIfIncluded(m2, name, entry2);
+            }
+        }
+    }
+
+    /**
+     * @return the entries of the archive which are not ignored, and either included or expandable, the key
+     * being the name of the ZipEntry with the given prefix
+     */
+    private Map<String, ZipEntry> listZipEntries(String prefix, ArchiveReader reader) throws IOException {
+        Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+        Enumeration<? extends ZipEntry> e = reader.entries();
+        while (e.hasMoreElements()) {
+            ZipEntry entry = e.nextElement();
+            if (ignoreThisFile(prefix, entry.getName())) {
+                LOGGER.debug("ignoring file: {}", entry.getName());
+            } else {
+                String name = qualify(prefix, entry.getName());
+                if (isIncluded(name) || isExpandable(prefix, entry)) {
+                    entries.put(name, entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void putIfIncluded(Map<String, ZipEntry> m, String name, ZipEntry entry) {
+        if (isIncluded(name)) {
+            m.put(name, entry);
+        }
+    }
+
+    private void expandZipEntry(String prefix, ArchiveReader reader, ZipEntry entry, Map<String, ZipEntry> m)
+            throws IOException {
+        InputStream is = openEntry(reader, entry);
+        try {
+            processZipEntry(prefix, entry, is, m);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads a nested archive in memory so that its central directory can be read.
+     *
+     * @return the reader of the nested archive, or null if it is not a valid archive
+     */
+    private ArchiveReader openNestedArchive(String name, ArchiveReader reader, ZipEntry entry) throws IOException {
+        InputStream is = openEntry(reader, entry);
+        try {
+            return readNestedArchive(name, is, entry.getSize());
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return true if both nested archives have the same CRC and size, so that expanding them is useless
+     */
+    protected boolean nestedArchivesMatch(ZipEntry entry1, ZipEntry entry2) {
+        return entry1.getSize() != -1 && entry1.getCrc() != -1
+                && entry1.getSize() == entry2.getSize() && entry1.getCrc() == entry2.getCrc();
+    }
+
+    private Callable<Map<String, ZipEntry>> indexTask(final ArchiveReader reader) {
+        return new Callable<Map<String, ZipEntry>>() {
+            public Map<String, ZipEntry> call() throws IOException {
+                return buildZipEntryMap(reader);
+            }
+        };
+    }
+
+    /**
+     * Given two Maps of ZipEntries it will generate a Differences of all the
+     * differences found between the two maps.
+     *
+     * @return All the differences found between the two maps
+     */
+    protected Differences calculateDifferences(Map<String, ZipEntry> m1, Map<String, ZipEntry> m2) {
+        Differences d = new Differences();
+        try {
+            calculateDifferences(m1, m2, null, null, d);
+            return d;
+        } catch (IOException e) {
+            // contents are never read without EntryContents
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Given two Maps of ZipEntries it will report all the differences found between the two maps
+     * to the given listener, as soon as they are found. When the contents of the entries are given,
+     * they are compared as set by {@link #setCompareContents(boolean)} and
+     * {@link #setVerifyUnchangedEntries(boolean)}, and the line differences of the changed text entries
+     * are computed as set by {@link #setTextDiff(boolean)}. The entries whose contents had to be compared
+     * are reported last, followed by the changed text entries.
+     * <p/>
+     * The entries are matched as set by {@link #setDiffAlgorithm(DiffAlgorithm)}.
+     *
+     * @param m1        The map of the first archive
+     * @param m2        The map of the second archive
+     * @param contents1 The contents of the first archive, or null to only compare the ZipEntries
+     * @param contents2 The contents of the second archive, or null to only compare the ZipEntries
+     * @param d         The listener to report the differences to
+     * @throws IOException if the contents cannot be read
+     * @see #setCompareContents(boolean)
+     */
+    protected void calculateDifferences(Map<String, ZipEntry> m1, Map<String, ZipEntry> m2,
+                                        EntryContents contents1, EntryContents contents2, DiffListener d)
+            throws IOException {
+        Map<String, ZipEntry[]> candidates = new LinkedHashMap<String, ZipEntry[]>();
+        boolean contentsAvailable = contents1 != null && contents2 != null;
+        TextEntryCollector texts = contentsAvailable && isDiffingText(d) ? new TextEntryCollector(d) : null;
+        DiffListener listener = texts == null ? d : texts;
+        Statistics stats = statistics;
+        stats.indexesCompared(m1.size(), m2.size());
+
+        Statistics.Timer timer = stats.time(Statistics.Phase.COMPARISON);
+        if (diffAlgorithm == DiffAlgorithm.MERGE) {
+            mergeDifferences(m1, m2, contentsAvailable, candidates, listener);
+        } else {
+            hashDifferences(m1, m2, contentsAvailable, candidates, listener);
+        }
+        timer.stop();
+
+        if (!candidates.isEmpty()) {
+            timer = stats.time(Statistics.Phase.CONTENTS);
+            for (String name : findChangedContents(candidates, contents1, contents2)) {
+                ZipEntry[] entries = candidates.get(name);
+                listener.fileChanged(name, entries[0], entries[1]);
+            }
+            timer.stop();
+        }
+
+        if (texts != null && !texts.entries.isEmpty()) {
+            timer = stats.time(Statistics.Phase.TEXT_DIFF);
+            reportTextDiffs(texts.entries, contents1, contents2, (TextDiffListener) d);
+            timer.stop();
+        }
+    }
+
+    private void hashDifferences(Map<String, ZipEntry> m1, Map<String, ZipEntry> m2, boolean contentsAvailable,
+                                 Map<String, ZipEntry[]> candidates, DiffListener d) {
+        Set<String> names1 = m1.keySet();
+        Set<String> names2 = m2.keySet();
+
+        Set<String> allNames = new HashSet<String>();
+        allNames.addAll(names1);
+        allNames.addAll(names2);
+
+        for (String name : allNames) {
+            if (!ignoreThisFile("", name)) {
+                if (names1.contains(name) && (!names2.contains(name))) {
+                    d.fileRemoved(name, m1.get(name));
+                } else if (names2.contains(name) && (!names1.contains(name))) {
+                    d.fileAdded(name, m2.get(name));
+                } else if (names1.contains(name) && (names2.contains(name))) {
+                    compareEntries(name, m1.get(name), m2.get(name), contentsAvailable, candidates, d);
+                } else {
+                    throw new IllegalStateException("unexpected state");
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the names of both maps in sorted order, so that each name is looked up only once.
+     * The maps are copied into {@link EntryIndex} instances unless they already are.
+     */
+    private void mergeDifferences(Map<String, ZipEntry> m1, Map<String, ZipEntry> m2, boolean contentsAvailable,
+                                  Map<String, ZipEntry[]> candidates, DiffListener d) {
+        EntryIndex index1 = m1 instanceof EntryIndex ? (EntryIndex) m1 : new EntryIndex(m1);
+        EntryIndex index2 = m2 instanceof EntryIndex ? (EntryIndex) m2 : new EntryIndex(m2);
+        int[] order1 = index1.sortedOrder();
+        int[] order2 = index2.sortedOrder();
+
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < order1.length || i2 < order2.length) {
+            int cmp;
+            if (i1 == order1.length) {
+                cmp = 1;
+            } else if (i2 == order2.length) {
+                cmp = -1;
+            } else {
+                cmp = index1.compareNames(order1[i1], index2, order2[i2]);
+            }
+
+            String name = cmp <= 0 ? index1.getName(order1[i1]) : index2.getName(order2[i2]);
+            if (ignoreThisFile("", name)) {
+                // skip it on both sides
+            } else if (cmp < 0) {
+                d.fileRemoved(name, index1.getEntry(order1[i1]));
+            } else if (cmp > 0) {
+                d.fileAdded(name, index2.getEntry(order2[i2]));
+            } else {
+                compareEntries(name, index1.getEntry(order1[i1]), index2.getEntry(order2[i2]), contentsAvailable,
+                        candidates, d);
+            }
+            if (cmp <= 0) {
+                i1++;
+            }
+            if (cmp >= 0) {
+                i2++;
+            }
+        }
+    }
+
+    /**
+     * Compares an entry present in both archives. It is reported as changed right away, or added to
+     * the candidates when its contents have to be compared.
+     */
+    private void compareEntries(String name, ZipEntry entry1, ZipEntry entry2, boolean contentsAvailable,
+                                Map<String, ZipEntry[]> candidates, DiffListener d) {
+        if (!entriesMatch(entry1, entry2)) {
+            if (contentsAvailable && isComparingContents() && contentsMayMatch(entry1, entry2)) {
+                candidates.put(name, new ZipEntry[]{entry1, entry2});
+            } else {
+                d.fileChanged(name, entry1, entry2);
+            }
+        } else if (contentsAvailable && (isVerifyingUnchangedEntries() || isCrcUnknown(entry1, entry2))
+                && !entry1.isDirectory() && !entry2.isDirectory()) {
+            candidates.put(name, new ZipEntry[]{entry1, entry2});
+        }
+    }
+
+    /**
+     * @return true if the CRC values are compared but one of them is not known, as for the files of a
+     * directory, so that the entries only match if their contents do
+     */
+    private boolean isCrcUnknown(ZipEntry entry1, ZipEntry entry2) {
+        return getCompareCRCValues() && (entry1.getCrc() == -1 || entry2.getCrc() == -1);
+    }
+
+    /**
+     * @return true if the entries may hold the same content although their ZipEntries do not match:
+     * both are files, with the same time when timestamps are compared, and neither their size nor
+     * their CRC tells that their contents differ
+     */
+    protected boolean contentsMayMatch(ZipEntry entry1, ZipEntry entry2) {
+        return !entry1.isDirectory() && !entry2.isDirectory()
+                && (entry1.getSize() == -1 || entry2.getSize() == -1 || entry1.getSize() == entry2.getSize())
+                && (entry1.getCrc() == -1 || entry2.getCrc() == -1 || entry1.getCrc() == entry2.getCrc())
+                && (isIgnoringTimestamps() || entry1.getTime() == entry2.getTime());
+    }
+
+    /**
+     * Compares the contents of the given entries, in parallel when an executor is available.
+     *
+     * @return the names of the entries whose contents differ, in the order of the given names
+     */
+    private List<String> findChangedContents(Map<String, ZipEntry[]> candidates, final EntryContents contents1,
+                                             final EntryContents contents2) throws IOException {
+        List<String> changed = new ArrayList<String>();
+        ExecutorService service = getExecutorService();
+        if (service == null) {
+            for (Map.Entry<String, ZipEntry[]> e : candidates.entrySet()) {
+                ZipEntry[] entries = e.getValue();
+                if (!contentsMatch(e.getKey(), entries[0], entries[1], contents1, contents2)) {
+                    changed.add(e.getKey());
+                }
+            }
+            return changed;
+        }
+
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<String, Future<Boolean>>();
+        try {
+            for (Map.Entry<String, ZipEntry[]> e : candidates.entrySet()) {
+                final String name = e.getKey();
+                final ZipEntry[] entries = e.getValue();
+                futures.put(name, service.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return contentsMatch(name, entries[0], entries[1], contents1, contents2);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Boolean>> e : futures.entrySet()) {
+                if (!await(e.getValue())) {
+                    changed.add(e.getKey());
+                }
+            }
+        } finally {
+            for (Future<Boolean> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Computes the line differences of the given entries, in parallel when an executor is available,
+     * and reports them in the order of the given names.
+     */
+    private void reportTextDiffs(Map<String, ZipEntry[]> changed, final EntryContents contents1,
+                                 final EntryContents contents2, TextDiffListener d) throws IOException {
+        ExecutorService service = getExecutorService();
+        if (service == null) {
+            for (Map.Entry<String, ZipEntry[]> e : changed.entrySet()) {
+                ZipEntry[] entries = e.getValue();
+                d.fileChanged(e.getKey(), entries[0], entries[1],
+                        diffText(e.getKey(), entries[0], entries[1], contents1, contents2));
+            }
+            return;
+        }
+
+        Map<String, Future<TextDiff>> futures = new LinkedHashMap<String, Future<TextDiff>>();
+        try {
+            for (Map.Entry<String, ZipEntry[]> e : changed.entrySet()) {
+                final String name = e.getKey();
+                final ZipEntry[] entries = e.getValue();
+                futures.put(name, service.submit(new Callable<TextDiff>() {
+                    public TextDiff call() throws IOException {
+                        return diffText(name, entries[0], entries[1], contents1, contents2);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<TextDiff>> e : futures.entrySet()) {
+                ZipEntry[] entries = changed.get(e.getKey());
+                d.fileChanged(e.getKey(), entries[0], entries[1], await(e.getValue()));
+            }
+        } finally {
+            for (Future<TextDiff> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return the line differences of the entry between both archives. The entries known to be larger than
+     * the maximum size of the {@link LineDiff} are not read.
+     */
+    protected TextDiff diffText(String name, ZipEntry entry1, ZipEntry entry2,
+                                EntryContents contents1, EntryContents contents2) throws IOException {
+        int maxSize = lineDiff.getMaxSize();
+        if (entry1.getSize() > maxSize || entry2.getSize() > maxSize) {
+            return TextDiff.skipped("larger than " + maxSize + " bytes");
+        }
+        InputStream in1 = contents1.getInputStream(name);
+        try {
+            InputStream in2 = contents2.getInputStream(name);
+            try {
+                return lineDiff.diff(in1, in2);
+            } finally {
+                in2.close();
+            }
+        } finally {
+            in1.close();
+        }
+    }
+
+    /**
+     * @return true if the decompressed contents of the entry are the same in both archives. The raw
+     * data are compared first when the entries are compressed the same way, then the decompressed contents.
+     */
+    protected boolean contentsMatch(String name, ZipEntry entry1, ZipEntry entry2,
+                                    EntryContents contents1, EntryContents contents2) throws IOException {
+        if (!isVerifyingUnchangedEntries() && (entry1.getCrc() == -1) != (entry2.getCrc() == -1)) {
+            // only one side has to be read to compute its CRC
+            long crc = entry1.getCrc() == -1 ? contents1.getCrc(name) : contents2.getCrc(name);
+            return crc == (entry1.getCrc() == -1 ? entry2.getCrc() : entry1.getCrc());
+        }
+        if (entry1.getMethod() != -1 && entry1.getMethod() == entry2.getMethod()
+                && entry1.getCompressedSize() != -1 && entry1.getCompressedSize() == entry2.getCompressedSize()) {
+            ByteBuffer raw1 = contents1.getRawContent(name);
+            ByteBuffer raw2 = raw1 == null ? null : contents2.getRawContent(name);
+            if (raw1 != null && raw2 != null && rawContentsMatch(raw1, raw2)) {
+                return true;
+            }
+        }
+
+        // the length of the content is part of its hash
+        boolean match = contents1.getContentHash(name) == contents2.getContentHash(name);
+        if (match) {
+            LOGGER.debug("same content for {}", name);
+        }
+        return match;
+    }
+
+    /**
+     * Compares the remaining bytes of two buffers, eight bytes at a time.
+     *
+     * @return true if both buffers have the same remaining bytes
+     */
+    protected static boolean rawContentsMatch(ByteBuffer raw1, ByteBuffer raw2) {
+        int length = raw1.remaining();
+        if (length != raw2.remaining()) {
+            return false;
+        }
+        ByteBuffer b1 = raw1.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer b2 = raw2.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int p1 = b1.position();
+        int p2 = b2.position();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (b1.getLong(p1 + i) != b2.getLong(p2 + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (b1.get(p1 + i) != b2.get(p2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the given stream with the hash of the current thread, then closes it.
+     */
+    static long hashContent(InputStream is) throws IOException {
+        return checksum(is, HASHES.get());
+    }
+
+    /**
+     * Computes the checksum of the given stream through the buffer of the current thread, then closes it.
+     */
+    static long checksum(InputStream is, Checksum checksum) throws IOException {
+        byte[] buffer = HASH_BUFFERS.get();
+        checksum.reset();
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                checksum.update(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * returns true if the two entries are equivalent in type, name, size, compressed size
+     * and time or CRC. The compressed size and CRC are only compared when known on both sides.
+     *
+     * @param entry1 The first ZipEntry to compare
+     * @param entry2 The second ZipEntry to compare
+     * @return true if the entries are equivalent.
+     */
+    protected boolean entriesMatch(ZipEntry entry1, ZipEntry entry2) {
+        boolean result;
+
+        result =
+                (entry1.isDirectory() == entry2.isDirectory())
+                        && (entry1.getSize() == entry2.getSize())
+                        && (entry1.getCompressedSize() == -1 || entry2.getCompressedSize() == -1
+                        || entry1.getCompressedSize() == entry2.getCompressedSize())
+                        && (entry1.getName().equals(entry2.getName()));
+
+        if (!isIgnoringTimestamps()) {
+            result = result && (entry1.getTime() == entry2.getTime());
+        }
+
+        if (getCompareCRCValues()) {
+            result = result && (entry1.getCrc() == -1 || entry2.getCrc() == -1 || entry1.getCrc() == entry2.getCrc());
+        }
+        return result;
+    }
+
+    public void setIgnoreTimestamps(boolean b) {
+        ignoreTimestamps = b;
+    }
+
+    public boolean isIgnoringTimestamps() {
+        return ignoreTimestamps;
+    }
+
+    public boolean ignoreCVSFiles() {
+        return ignoreCVSFiles;
+    }
+
+    public void setIgnoreCVSFiles(boolean b) {
+        ignoreCVSFiles = b;
+    }
+
+    /**
+     * @return all the differences found between the two zip files.
+     * @throws java.io.IOException
+     */
+    public Differences getDifferences() throws java.io.IOException {
+        Differences d = new Differences();
+        getDifferences(d);
+        d.setStatistics(statistics);
+        return d;
+    }
+
+    /**
+     * Reports the differences between the two zip files to the given listener as they are found,
+     * without keeping them in memory.
+     *
+     * @param listener The listener to report the differences to
+     * @throws java.io.IOException
+     */
+    public void getDifferences(DiffListener listener) throws java.io.IOException {
+        checkArchives();
+        Statistics stats = resetStatistics();
+        listener.start(archive1.getPath(), archive2.getPath());
+        try {
+            if (!archivesIdentical(stats)) {
+                calculateDifferences(archive1, file1, archive2, file2, listener);
+            }
+        } finally {
+            shutdownOwnExecutors();
+            stats.finish();
+            closeZipFiles();
+        }
+        listener.end();
+    }
+
+    /**
+     * Tells whether the two zip files have any difference, stopping at the first one found. The cheap
+     * checks come first when the settings allow them to be conclusive: the identity of the archives, then
+     * the number of entries, then the metadata of the entries walked in name order. Otherwise, the
+     * differences are calculated until the first one is found.
+     *
+     * @return true if {@link #getDifferences()} would find differences
+     * @throws java.io.IOException
+     */
+    public boolean hasDifferences() throws java.io.IOException {
+        checkArchives();
+        Statistics stats = resetStatistics();
+        try {
+            if (archivesIdentical(stats)) {
+                return false;
+            }
+            Statistics.Timer timer = stats.time(Statistics.Phase.COMPARISON);
+            Boolean different = quickCheck();
+            timer.stop();
+            if (different != null) {
+                LOGGER.debug("quick check: " + (different ? "different" : "same"));
+                return different;
+            }
+            try {
+                calculateDifferences(archive1, file1, archive2, file2, new FirstDifferenceListener());
+            } catch (DifferenceFoundException e) {
+                return true;
+            }
+            return false;
+        } finally {
+            shutdownOwnExecutors();
+            stats.finish();
+            closeZipFiles();
+        }
+    }
+
+    private void checkArchives() {
+        if (archive1 == null || archive2 == null) {
+            throw new IllegalStateException("no archives to compare, the calculator only holds settings");
+        }
+    }
+
+    /**
+     * Closes the ZipFiles given to the constructor, which are left open when the archives are not read.
+     */
+    private void closeZipFiles() throws IOException {
+        try {
+            if (file1 != null) {
+                file1.close();
+            }
+        } finally {
+            if (file2 != null) {
+                file2.close();
+            }
+        }
+    }
+
+    private boolean archivesIdentical(Statistics stats) throws IOException {
+        Statistics.Timer timer = stats.time(Statistics.Phase.IDENTITY);
+        try {
+            return archivesIdentical();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Tells whether the two archives are identical, as far as the settings allow to tell it cheaply.
+     *
+     * @return true if the archives are known to be identical, false if they may differ
+     * @throws IOException
+     * @see #setCheckIdentity(boolean)
+     */
+    protected boolean archivesIdentical() throws IOException {
+        if (!isCheckingIdentity() || snapshot1 != null || !archive1.isFile() || !archive2.isFile()) {
+            return false;
+        }
+        if (archive1.getCanonicalFile().equals(archive2.getCanonicalFile())) {
+            LOGGER.debug("same file: " + archive1);
+            return true;
+        }
+        if (isHashingWholeArchives() && archive1.length() == archive2.length()) {
+            long[] hashes = new FileHasher(getForkJoinPool()).hash(archive1, archive2);
+            LOGGER.debug("archive hashes: " + Long.toHexString(hashes[0]) + " " + Long.toHexString(hashes[1]));
+            return hashes[0] == hashes[1];
+        }
+        if (isComparingContents() || isVerifyingUnchangedEntries()) {
+            return false;
+        }
+
+        MappedArchiveReader reader1;
+        MappedArchiveReader reader2;
+        try {
+            reader1 = new MappedArchiveReader(archive1);
+        } catch (ZipException e) {
+            // the calculation reports the error
+            return false;
+        }
+        try {
+            try {
+                reader2 = new MappedArchiveReader(archive2);
+            } catch (ZipException e) {
+                return false;
+            }
+            try {
+                // the central directory holds the name, sizes, CRC and time of every entry
+                boolean identical = reader1.size() == reader2.size()
+                        && rawContentsMatch(reader1.getCentralDirectory(), reader2.getCentralDirectory());
+                LOGGER.debug("identical central directories: " + identical);
+                return identical;
+            } finally {
+                reader2.close();
+            }
+        } finally {
+            reader1.close();
+        }
+    }
+
+    /**
+     * Compares the archives without expanding their nested archives, which is conclusive when every
+     * entry is compared by its metadata alone.
+     *
+     * @return whether the archives are different, or null if it cannot be told that way
+     */
+    private Boolean quickCheck() throws IOException {
+        if (snapshot1 != null || archive1.isDirectory() || archive2.isDirectory()
+                || ignoreFilter != null || includeFilter != null || ignoreCVSFiles()
+                || isComparingContents() || isVerifyingUnchangedEntries()) {
+            return null;
+        }
+        MappedArchiveReader reader1 = new MappedArchiveReader(archive1);
+        try {
+            MappedArchiveReader reader2 = new MappedArchiveReader(archive2);
+            try {
+                if (reader1.size() != reader2.size()) {
+                    return Boolean.TRUE;
+                }
+                EntryIndex index1 = listEntries(reader1);
+                EntryIndex index2 = listEntries(reader2);
+                if (index1.size() != index2.size()) {
+                    return Boolean.TRUE;
+                }
+                int[] order1 = index1.sortedOrder();
+                int[] order2 = index2.sortedOrder();
+                for (int i = 0; i < order1.length; i++) {
+                    if (index1.compareNames(order1[i], index2, order2[i]) != 0
+                            || !entriesMatch(index1.getEntry(order1[i]), index2.getEntry(order2[i]))) {
+                        return Boolean.TRUE;
+                    }
+                }
+                // without CRC, nested archives of the same size may still hold different entries
+                return getCompareCRCValues() ? Boolean.FALSE : null;
+            } finally {
+                reader2.close();
+            }
+        } finally {
+            reader1.close();
+        }
+    }
+
+    private static EntryIndex listEntries(ArchiveReader reader) throws IOException {
+        EntryIndex index = new EntryIndex(reader.size());
+        Enumeration<? extends ZipEntry> entries = reader.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            index.put(entry.getName(), entry);
+        }
+        return index;
+    }
+
+    /**
+     * Stops the calculation at the first difference.
+     */
+    private static class FirstDifferenceListener implements DiffListener {
+        public void start(String filename1, String filename2) {
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+            throw new DifferenceFoundException();
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+            throw new DifferenceFoundException();
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+            throw new DifferenceFoundException();
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+        }
+
+        public void end() {
+        }
+    }
+
+    /**
+     * Forwards the differences to a listener, except the changed text entries which are kept until their
+     * line differences are computed.
+     */
+    private class TextEntryCollector implements DiffListener {
+        private final DiffListener listener;
+        private final Map<String, ZipEntry[]> entries = new LinkedHashMap<String, ZipEntry[]>();
+
+        TextEntryCollector(DiffListener listener) {
+            this.listener = listener;
+        }
+
+        public void start(String filename1, String filename2) {
+            listener.start(filename1, filename2);
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+            listener.fileAdded(fqn, ze);
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+            listener.fileRemoved(fqn, ze);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+            if (!z1.isDirectory() && !z2.isDirectory() && isTextEntry(fqn)) {
+                entries.put(fqn, new ZipEntry[]{z1, z2});
+            } else {
+                listener.fileChanged(fqn, z1, z2);
+            }
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+            listener.fileIgnored(fqn, ze);
+        }
+
+        public void end() {
+            listener.end();
+        }
+    }
+
+    private static class DifferenceFoundException extends RuntimeException {
+        DifferenceFoundException() {
+            super("difference found", null, false, false);
+        }
     }
 }
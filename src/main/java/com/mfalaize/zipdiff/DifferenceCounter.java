@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Only counts the differences, for when they are written somewhere else as they are found.
+ *
+ * @author Maxime Falaize
+ */
+public class DifferenceCounter implements DiffListener {
+
+    private int added;
+    private int removed;
+    private int changed;
+    private int ignored;
+
+    public void start(String filename1, String filename2) {
+        added = 0;
+        removed = 0;
+        changed = 0;
+        ignored = 0;
+    }
+
+    public void fileAdded(String fqn, ZipEntry ze) {
+        added++;
+    }
+
+    public void fileRemoved(String fqn, ZipEntry ze) {
+        removed++;
+    }
+
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+        changed++;
+    }
+
+    public void fileIgnored(String fqn, ZipEntry ze) {
+        ignored++;
+    }
+
+    public void end() {
+        // nothing to do
+    }
+
+    public int getAddedCount() {
+        return added;
+    }
+
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    public int getChangedCount() {
+        return changed;
+    }
+
+    public int getIgnoredCount() {
+        return ignored;
+    }
+
+    public boolean hasDifferences() {
+        return added > 0 || removed > 0 || changed > 0;
+    }
+}
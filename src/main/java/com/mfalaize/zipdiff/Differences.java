@@ -19,24 +19,34 @@
  */
 package com.mfalaize.zipdiff;
 
-import java.util.HashMap;
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 
 /**
  * Used to keep track of difference between 2 zip files.
+ * It is the {@link DiffListener} collecting all the differences in memory, in the order they are reported.
+ * The entries are kept in {@link EntryIndex} instances, so only their main attributes are kept.
+ * The line differences of the changed text entries are kept as well, when they are computed.
  *
  * @author Sean C. Sullivan
  */
-public class Differences {
-    private final Map<String, ZipEntry> added = new HashMap<String, ZipEntry>();
-    private final Map<String, ZipEntry> removed = new HashMap<String, ZipEntry>();
-    private final Map<String, ZipEntry[]> changed = new HashMap<String, ZipEntry[]>();
-    private final Map<String, ZipEntry> ignored = new HashMap<String, ZipEntry>();
+public class Differences implements TextDiffListener {
+    private final Map<String, ZipEntry> added = new EntryIndex();
+    private final Map<String, ZipEntry> removed = new EntryIndex();
+    private final Map<String, ZipEntry[]> changed = new ChangedEntries();
+    private final Map<String, ZipEntry> ignored = new EntryIndex();
+    private final Map<String, TextDiff> textDiffs = new LinkedHashMap<String, TextDiff>();
     private String filename1;
     private String filename2;
+    private Statistics statistics;
 
     public Differences() {
         // todo 
@@ -58,6 +68,42 @@ public class Differences {
         return filename2;
     }
 
+    public void start(String filename1, String filename2) {
+        setFilename1(filename1);
+        setFilename2(filename2);
+    }
+
+    public void end() {
+        // everything is already collected
+    }
+
+    /**
+     * Reports all the differences collected so far to the given listener, as if they were being found.
+     *
+     * @param listener The listener to report to
+     */
+    public void accept(DiffListener listener) {
+        listener.start(filename1, filename2);
+        for (Map.Entry<String, ZipEntry> e : added.entrySet()) {
+            listener.fileAdded(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, ZipEntry> e : removed.entrySet()) {
+            listener.fileRemoved(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, ZipEntry[]> e : changed.entrySet()) {
+            TextDiff diff = textDiffs.get(e.getKey());
+            if (diff != null && listener instanceof TextDiffListener) {
+                ((TextDiffListener) listener).fileChanged(e.getKey(), e.getValue()[0], e.getValue()[1], diff);
+            } else {
+                listener.fileChanged(e.getKey(), e.getValue()[0], e.getValue()[1]);
+            }
+        }
+        for (Map.Entry<String, ZipEntry> e : ignored.entrySet()) {
+            listener.fileIgnored(e.getKey(), e.getValue());
+        }
+        listener.end();
+    }
+
     public void fileAdded(String fqn, ZipEntry ze) {
         added.put(fqn, ze);
     }
@@ -77,6 +123,11 @@ public class Differences {
         changed.put(fqn, entries);
     }
 
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+        fileChanged(fqn, z1, z2);
+        textDiffs.put(fqn, diff);
+    }
+
     public Map<String, ZipEntry> getAdded() {
         return added;
     }
@@ -93,6 +144,24 @@ public class Differences {
         return ignored;
     }
 
+    /**
+     * @return the statistics of the run which found these differences, null if unknown
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(Statistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the line differences of the changed text entries, by name
+     */
+    public Map<String, TextDiff> getTextDiffs() {
+        return textDiffs;
+    }
+
     public boolean hasDifferences() {
         return ((getChanged().size() > 0) || (getAdded().size() > 0) || (getRemoved().size() > 0));
     }
@@ -141,6 +210,7 @@ public class Differences {
             sb.append(" ( size ").append(entries[0].getSize());
             sb.append(" : ").append(entries[1].getSize());
             sb.append(" )\n");
+            appendTextDiff(sb, textDiffs.get(name));
         }
         int differenceCount = added.size() + changed.size() + removed.size();
 
@@ -148,4 +218,97 @@ public class Differences {
         return sb.toString();
     }
 
+    /**
+     * Appends the hunks of a diff, or why there is none, indented under their entry.
+     *
+     * @param sb   The builder to append to
+     * @param diff The diff to append, ignored if null
+     */
+    public static void appendTextDiff(StringBuilder sb, TextDiff diff) {
+        if (diff == null) {
+            return;
+        }
+        if (diff.isSkipped()) {
+            sb.append("\t\t(lines not compared: ").append(diff.getSkipReason()).append(")\n");
+            return;
+        }
+        for (TextDiff.Hunk hunk : diff.getHunks()) {
+            sb.append("\t\t").append(hunk.getHeader()).append("\n");
+            for (String line : hunk.getLines()) {
+                sb.append("\t\t").append(line).append("\n");
+            }
+        }
+    }
+
+    /**
+     * The changed entries, kept in one index per archive.
+     */
+    private static class ChangedEntries extends AbstractMap<String, ZipEntry[]> {
+        private final EntryIndex entries1 = new EntryIndex();
+        private final EntryIndex entries2 = new EntryIndex();
+
+        @Override
+        public int size() {
+            return entries1.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return entries1.containsKey(key);
+        }
+
+        @Override
+        public ZipEntry[] get(Object key) {
+            int i = entries1.indexOf(key);
+            return i < 0 ? null : new ZipEntry[]{entries1.getEntry(i), entries2.getEntry(i)};
+        }
+
+        @Override
+        public ZipEntry[] put(String key, ZipEntry[] value) {
+            ZipEntry[] previous = get(key);
+            entries1.put(key, value[0]);
+            entries2.put(key, value[1]);
+            return previous;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return entries1.keySet();
+        }
+
+        @Override
+        public Set<Map.Entry<String, ZipEntry[]>> entrySet() {
+            return new AbstractSet<Map.Entry<String, ZipEntry[]>>() {
+                @Override
+                public Iterator<Map.Entry<String, ZipEntry[]>> iterator() {
+                    return new Iterator<Map.Entry<String, ZipEntry[]>>() {
+                        private int next;
+
+                        public boolean hasNext() {
+                            return next < entries1.size();
+                        }
+
+                        public Map.Entry<String, ZipEntry[]> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            ZipEntry entry1 = entries1.getEntry(next);
+                            ZipEntry entry2 = entries2.getEntry(next++);
+                            return new SimpleImmutableEntry<String, ZipEntry[]>(entry1.getName(),
+                                    new ZipEntry[]{entry1, entry2});
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException("changed entries cannot be removed");
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entries1.size();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+import com.mfalaize.zipdiff.scan.MappedArchiveReader;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Opens the content of the entries of an indexed archive, given their key in the map built by
+ * {@link DifferenceCalculator#buildZipEntryMap(ArchiveReader)}. Entries of nested archives are read
+ * from their nested archive, which is buffered once and kept until this instance is closed.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author Maxime Falaize
+ */
+public class EntryContents implements Closeable {
+
+    private final ArchiveReader reader;
+    private final Map<String, ZipEntry> index;
+    private final ConcurrentMap<String, Future<ArchiveReader>> nestedArchives =
+            new ConcurrentHashMap<String, Future<ArchiveReader>>();
+    private volatile int nestedArchiveMemoryThreshold = MappedArchiveReader.DEFAULT_MEMORY_THRESHOLD;
+    private volatile Statistics statistics;
+
+    /**
+     * @param reader The archive that was indexed. It is not closed by this instance.
+     * @param index  The map built for the archive
+     */
+    public EntryContents(ArchiveReader reader, Map<String, ZipEntry> index) {
+        this.reader = reader;
+        this.index = index;
+    }
+
+    /**
+     * @param bytes the size of the largest nested archive buffered in memory rather than in a temporary file
+     */
+    public void setNestedArchiveMemoryThreshold(int bytes) {
+        nestedArchiveMemoryThreshold = bytes;
+    }
+
+    /**
+     * @param statistics the statistics counting the data read through this instance, or null
+     */
+    public void setStatistics(Statistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param key The key of the entry in the index
+     * @return the decompressed content of the entry
+     * @throws IOException
+     */
+    public InputStream getInputStream(String key) throws IOException {
+        int separator = findArchiveSeparator(key);
+        ArchiveReader archive = separator < 0 ? reader : getNestedArchive(key.substring(0, separator));
+        ZipEntry entry = getEntry(archive, key.substring(separator + 1));
+        InputStream is = archive.getInputStream(entry);
+        Statistics stats = statistics;
+        return stats == null ? is : stats.countRead(entry, is);
+    }
+
+    /**
+     * @param key The key of the entry in the index
+     * @return the data of the entry as stored in its archive, or null if it cannot be accessed directly
+     * @throws IOException
+     * @see ArchiveReader#getRawContent(ZipEntry)
+     */
+    public ByteBuffer getRawContent(String key) throws IOException {
+        int separator = findArchiveSeparator(key);
+        ArchiveReader archive = separator < 0 ? reader : getNestedArchive(key.substring(0, separator));
+        ByteBuffer raw = archive.getRawContent(getEntry(archive, key.substring(separator + 1)));
+        Statistics stats = statistics;
+        return stats == null ? raw : stats.countRaw(raw);
+    }
+
+    /**
+     * @param key The key of the entry in the index
+     * @return the XXH64 hash of the decompressed content of the entry
+     * @throws IOException
+     */
+    public long getContentHash(String key) throws IOException {
+        return DifferenceCalculator.hashContent(getInputStream(key));
+    }
+
+    /**
+     * @param key The key of the entry in the index
+     * @return the CRC-32 of the decompressed content of the entry
+     * @throws IOException
+     */
+    public long getCrc(String key) throws IOException {
+        return DifferenceCalculator.checksum(getInputStream(key), new CRC32());
+    }
+
+    private static ZipEntry getEntry(ArchiveReader archive, String name) throws IOException {
+        ZipEntry entry = archive.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name + " not found in " + archive.getName());
+        }
+        return entry;
+    }
+
+    /**
+     * @return the position of the slash separating the key of the innermost nested archive
+     * from the name of the entry, -1 if the entry is not in a nested archive
+     */
+    private int findArchiveSeparator(String key) throws IOException {
+        int separator = key.lastIndexOf('/', key.length() - 2);
+        while (separator > 0) {
+            String archiveKey = key.substring(0, separator);
+            if (DifferenceCalculator.isZipFile(archiveKey)) {
+                ZipEntry archive = index.get(archiveKey);
+                if (archive != null ? !archive.isDirectory() : isArchiveEntry(archiveKey)) {
+                    return separator;
+                }
+            }
+            separator = key.lastIndexOf('/', separator - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Tells whether a key missing from the index, such as a nested archive left out by an include
+     * filter while its entries are kept, is a file of its enclosing archive.
+     */
+    private boolean isArchiveEntry(String key) throws IOException {
+        int separator = findArchiveSeparator(key);
+        ArchiveReader archive = separator < 0 ? reader : getNestedArchive(key.substring(0, separator));
+        ZipEntry entry = archive.getEntry(key.substring(separator + 1));
+        return entry != null && !entry.isDirectory();
+    }
+
+    private ArchiveReader getNestedArchive(final String key) throws IOException {
+        Future<ArchiveReader> future = nestedArchives.get(key);
+        if (future == null) {
+            FutureTask<ArchiveReader> task = new FutureTask<ArchiveReader>(new Callable<ArchiveReader>() {
+                public ArchiveReader call() throws IOException {
+                    ZipEntry entry = index.get(key);
+                    InputStream is = getInputStream(key);
+                    try {
+                        return MappedArchiveReader.read(key, is, entry == null ? -1 : entry.getSize(),
+                                nestedArchiveMemoryThreshold);
+                    } finally {
+                        is.close();
+                    }
+                }
+            });
+            future = nestedArchives.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        return DifferenceCalculator.await(future);
+    }
+
+    /**
+     * Releases the nested archives read so far.
+     */
+    public void close() throws IOException {
+        for (Future<ArchiveReader> future : nestedArchives.values()) {
+            if (future.isDone()) {
+                try {
+                    DifferenceCalculator.await(future).close();
+                } catch (IOException e) {
+                    // failed to be read, nothing to release
+                }
+            }
+        }
+        nestedArchives.clear();
+    }
+}
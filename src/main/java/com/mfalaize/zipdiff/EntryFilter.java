@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Matches entry names against a set of patterns, each of them being a regular expression or, when
+ * prefixed by {@code glob:}, a glob in which {@code *} and {@code ?} do not cross slashes and {@code **}
+ * does. A pattern prefixed by {@code regex:} is a regular expression as well.
+ * <p/>
+ * The patterns are split by kind, so that most of them are not evaluated for each name:
+ * <ul>
+ * <li>literal names, such as {@code META-INF/MANIFEST.MF}, are looked up in a set;</li>
+ * <li>literal prefixes, such as {@code WEB-INF/lib/.*} or {@code glob:WEB-INF/lib/**}, are walked in a trie;</li>
+ * <li>the other globs and regular expressions are only evaluated for the names of the directories
+ * their literal beginning may lead to.</li>
+ * </ul>
+ * What is known of a directory, including whether its whole subtree matches, is computed once and cached.
+ * <p/>
+ * This class is immutable and thread-safe.
+ *
+ * @author Maxime Falaize
+ */
+public class EntryFilter {
+
+    public static final String GLOB_PREFIX = "glob:";
+    public static final String REGEX_PREFIX = "regex:";
+
+    private static final String REGEX_METACHARS = ".[]{}()*+?^$|\\";
+
+    private final List<String> patterns;
+    private final Set<String> names = new HashSet<String>();
+    private final Node prefixes = new Node();
+    private final List<Matcher> matchers = new ArrayList<Matcher>();
+    private final ConcurrentMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+    /**
+     * the directory of the last name matched, since names mostly come directory by directory
+     */
+    private volatile Directory lastDirectory;
+
+    /**
+     * @param patterns The patterns to match, see the class documentation
+     * @throws java.util.regex.PatternSyntaxException if a regular expression is invalid
+     */
+    public EntryFilter(Collection<String> patterns) {
+        this.patterns = Collections.unmodifiableList(new ArrayList<String>(patterns));
+        for (String pattern : patterns) {
+            if (pattern.startsWith(GLOB_PREFIX)) {
+                addGlob(pattern.substring(GLOB_PREFIX.length()));
+            } else if (pattern.startsWith(REGEX_PREFIX)) {
+                addRegex(pattern.substring(REGEX_PREFIX.length()));
+            } else {
+                addRegex(pattern);
+            }
+        }
+    }
+
+    public EntryFilter(String... patterns) {
+        this(Arrays.asList(patterns));
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @param name The name of an entry
+     * @return true if a pattern matches the whole name
+     */
+    public boolean matches(String name) {
+        int slash = name.lastIndexOf('/', name.length() - 2);
+        Directory directory = lastDirectory;
+        if (directory == null || directory.name.length() != slash + 1 || !name.startsWith(directory.name)) {
+            directory = getDirectory(slash < 0 ? "" : name.substring(0, slash + 1));
+            lastDirectory = directory;
+        }
+        if (directory.matchesAll) {
+            return true;
+        }
+        if (names.contains(name)) {
+            return true;
+        }
+        if (directory.prefixes != null && directory.prefixes.matchesPrefixOf(name, slash + 1)) {
+            return true;
+        }
+        for (Matcher matcher : directory.matchers) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param directory The name of a directory, ending with a slash
+     * @return true if every name starting with the given one is matched, so that the directory, or the
+     * nested archive, does not even have to be read
+     */
+    public boolean matchesAll(String directory) {
+        return getDirectory(directory).matchesAll;
+    }
+
+    /**
+     * @param directory The name of a directory, ending with a slash
+     * @return true if a name starting with the given one may be matched, false if the directory, or the
+     * nested archive, does not have to be read to find matching names
+     */
+    public boolean mayMatchBelow(String directory) {
+        return getDirectory(directory).mayMatchBelow;
+    }
+
+    private Directory getDirectory(String name) {
+        Directory directory = directories.get(name);
+        if (directory == null) {
+            directory = new Directory(name);
+            Directory previous = directories.putIfAbsent(name, directory);
+            if (previous != null) {
+                directory = previous;
+            }
+        }
+        return directory;
+    }
+
+    private void addRegex(String regex) {
+        String literal = literalOf(regex);
+        if (literal != null) {
+            names.add(literal);
+        } else if (regex.endsWith(".*") && (literal = literalOf(regex.substring(0, regex.length() - 2))) != null) {
+            prefixes.add(literal);
+        } else {
+            final Pattern compiled = Pattern.compile(regex);
+            matchers.add(new Matcher(regex, literalPrefixOf(regex)) {
+                boolean matches(String name) {
+                    return compiled.matcher(name).matches();
+                }
+
+                boolean mayMatchBelow(String directory) {
+                    // hitting the end of the input means that a longer input could match
+                    java.util.regex.Matcher m = compiled.matcher(directory);
+                    return m.matches() || m.hitEnd();
+                }
+            });
+        }
+    }
+
+    private void addGlob(final String glob) {
+        int wildcard = indexOfWildcard(glob, 0);
+        if (wildcard < 0) {
+            names.add(unescapeGlob(glob, glob.length()));
+        } else if (wildcard == glob.length() - 2 && glob.endsWith("**")) {
+            prefixes.add(unescapeGlob(glob, wildcard));
+        } else {
+            String literal = unescapeGlob(glob, wildcard);
+            matchers.add(new Matcher(GLOB_PREFIX + glob, literal) {
+                boolean matches(String name) {
+                    return globMatches(glob, 0, name, 0);
+                }
+
+                boolean mayMatchBelow(String directory) {
+                    return globMayMatchBelow(glob, 0, directory, 0);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the string matched by the regular expression if it only matches one, null otherwise
+     */
+    private static String literalOf(String regex) {
+        StringBuilder sb = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                sb.append(regex.charAt(++i));
+            } else if (REGEX_METACHARS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the literal beginning of every string matched by the regular expression, possibly empty
+     */
+    private static String literalPrefixOf(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\' && next < regex.length() && !Character.isLetterOrDigit(regex.charAt(next))) {
+                c = regex.charAt(next++);
+            } else if (REGEX_METACHARS.indexOf(c) >= 0) {
+                break;
+            }
+            if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) >= 0) {
+                // the character is optional or repeated
+                break;
+            }
+            sb.append(c);
+            i = next - 1;
+        }
+        return sb.toString();
+    }
+
+    private static int indexOfWildcard(String glob, int from) {
+        for (int i = from; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String unescapeGlob(String glob, int end) {
+        StringBuilder sb = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            char c = glob.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                c = glob.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Matches the rest of the name against the rest of the glob, backtracking on the stars.
+     */
+    static boolean globMatches(String glob, int g, String name, int n) {
+        while (g < glob.length()) {
+            char c = glob.charAt(g);
+            if (c == '*') {
+                boolean crossesSlashes = g + 1 < glob.length() && glob.charAt(g + 1) == '*';
+                int rest = crossesSlashes ? g + 2 : g + 1;
+                if (rest == glob.length()) {
+                    return crossesSlashes || name.indexOf('/', n) < 0;
+                }
+                for (int i = n; i <= name.length(); i++) {
+                    if (globMatches(glob, rest, name, i)) {
+                        return true;
+                    }
+                    if (i < name.length() && name.charAt(i) == '/' && !crossesSlashes) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            if (n == name.length()) {
+                return false;
+            }
+            if (c == '?') {
+                if (name.charAt(n) == '/') {
+                    return false;
+                }
+            } else {
+                if (c == '\\' && g + 1 < glob.length()) {
+                    c = glob.charAt(++g);
+                }
+                if (c != name.charAt(n)) {
+                    return false;
+                }
+            }
+            g++;
+            n++;
+        }
+        return n == name.length();
+    }
+
+    /**
+     * Same as {@link #globMatches(String, int, String, int)}, except that reaching the end of the name
+     * before the end of the glob is a match: a name starting with this one may be matched.
+     */
+    static boolean globMayMatchBelow(String glob, int g, String name, int n) {
+        while (g < glob.length()) {
+            if (n == name.length()) {
+                return true;
+            }
+            char c = glob.charAt(g);
+            if (c == '*') {
+                boolean crossesSlashes = g + 1 < glob.length() && glob.charAt(g + 1) == '*';
+                int rest = crossesSlashes ? g + 2 : g + 1;
+                for (int i = n; i <= name.length(); i++) {
+                    if (globMayMatchBelow(glob, rest, name, i)) {
+                        return true;
+                    }
+                    if (i < name.length() && name.charAt(i) == '/' && !crossesSlashes) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            if (c == '?') {
+                if (name.charAt(n) == '/') {
+                    return false;
+                }
+            } else {
+                if (c == '\\' && g + 1 < glob.length()) {
+                    c = glob.charAt(++g);
+                }
+                if (c != name.charAt(n)) {
+                    return false;
+                }
+            }
+            g++;
+            n++;
+        }
+        return n == name.length();
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+
+    /**
+     * A glob or regular expression, with the literal beginning of the names it matches.
+     */
+    private abstract static class Matcher {
+        final String pattern;
+        final String literalPrefix;
+
+        Matcher(String pattern, String literalPrefix) {
+            this.pattern = pattern;
+            this.literalPrefix = literalPrefix;
+        }
+
+        abstract boolean matches(String name);
+
+        /**
+         * @return true if the pattern may match a name starting with the given directory
+         */
+        abstract boolean mayMatchBelow(String directory);
+
+        /**
+         * @return true if the pattern may match a name in the given directory or below
+         */
+        boolean mayMatchIn(String directory) {
+            return literalPrefix.startsWith(directory) || directory.startsWith(literalPrefix);
+        }
+    }
+
+    /**
+     * What is known of the names in a directory and below.
+     */
+    private class Directory {
+        final String name;
+        /**
+         * true if a literal prefix is a prefix of the directory
+         */
+        final boolean matchesAll;
+        /**
+         * the node of the trie of the directory, null if no literal prefix starts with the directory
+         */
+        final Node prefixes;
+        /**
+         * the globs and regular expressions which may match a name of the directory
+         */
+        final Matcher[] matchers;
+        /**
+         * true if a name in the directory or below may be matched
+         */
+        final boolean mayMatchBelow;
+
+        Directory(String name) {
+            this.name = name;
+            Node node = EntryFilter.this.prefixes;
+            boolean all = false;
+            for (int i = 0; node != null && !all && i < name.length(); i++) {
+                all = node.terminal;
+                node = node.get(name.charAt(i));
+            }
+            this.matchesAll = all || (node != null && node.terminal);
+            this.prefixes = node;
+
+            List<Matcher> list = new ArrayList<Matcher>();
+            for (Matcher matcher : EntryFilter.this.matchers) {
+                if (matcher.mayMatchIn(name)) {
+                    list.add(matcher);
+                }
+            }
+            this.matchers = list.toArray(new Matcher[list.size()]);
+
+            boolean below = matchesAll || node != null;
+            for (Iterator<String> i = names.iterator(); !below && i.hasNext(); ) {
+                below = i.next().startsWith(name);
+            }
+            for (int i = 0; !below && i < matchers.length; i++) {
+                below = matchers[i].mayMatchBelow(name);
+            }
+            this.mayMatchBelow = below;
+        }
+    }
+
+    /**
+     * A node of the trie of the literal prefixes.
+     */
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        Node get(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void add(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                Node child = node.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.keys[node.keys.length - 1] = c;
+                    node.children[node.children.length - 1] = child;
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        /**
+         * @return true if a prefix below this node is a prefix of the name from the given position
+         */
+        boolean matchesPrefixOf(String name, int from) {
+            Node node = this;
+            for (int i = from; node != null; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                if (i == name.length()) {
+                    return false;
+                }
+                node = node.get(name.charAt(i));
+            }
+            return false;
+        }
+    }
+}
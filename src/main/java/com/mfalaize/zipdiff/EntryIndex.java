@@ -0,0 +1,673 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * A compact map of ZipEntries, keyed by their name. The names are stored in UTF-8 in a shared
+ * byte array and the attributes of the entries in primitive arrays, so an entry costs a few dozen
+ * bytes plus its name instead of a ZipEntry, a String and a map node. Names are looked up with an
+ * open-addressing hash table holding the positions of the entries.
+ * <p/>
+ * A name is split into its directory, up to its last slash, and the rest. Each directory is stored
+ * once and the entries only refer to it, so the entries of a nested archive such as
+ * <code>app.war/WEB-INF/lib/foo.jar/</code> do not repeat its path. Full names are only built when
+ * a key is read.
+ * <p/>
+ * Only the name, size, compressed size, CRC, time and method of the entries are kept: the
+ * ZipEntries returned are created on each access, named after their key, without extra field
+ * nor comment. The entries are iterated in insertion order. Removing entries is not supported.
+ * <p/>
+ * This class is not thread-safe, but it can be read by several threads once built.
+ *
+ * @author Maxime Falaize
+ */
+public class EntryIndex extends AbstractMap<String, ZipEntry> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The names of the entries, without their directory
+     */
+    private byte[] names;
+    private int namesLength;
+    private int[] nameOffsets;
+    private int[] directories;
+    private int[] hashes;
+    private long[] sizes;
+    private long[] compressedSizes;
+    private long[] crcs;
+    private long[] times;
+    private short[] methods;
+    private int size;
+    /**
+     * The position + 1 of the entries, 0 for an empty slot
+     */
+    private int[] table;
+
+    /**
+     * The full paths of the directories, the first one being the empty root
+     */
+    private byte[] directoryNames;
+    private int directoryNamesLength;
+    private int[] directoryOffsets;
+    private int[] directoryHashes;
+    private int directoryCount;
+    private int[] directoryTable;
+
+    public EntryIndex() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of entries the index should hold without growing
+     */
+    public EntryIndex(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        names = new byte[capacity * 16];
+        nameOffsets = new int[capacity + 1];
+        directories = new int[capacity];
+        hashes = new int[capacity];
+        sizes = new long[capacity];
+        compressedSizes = new long[capacity];
+        crcs = new long[capacity];
+        times = new long[capacity];
+        methods = new short[capacity];
+        table = new int[tableSizeFor(capacity)];
+
+        directoryNames = new byte[64];
+        directoryOffsets = new int[9];
+        directoryHashes = new int[8];
+        directoryTable = new int[16];
+        // the root directory, whose hash is the one of the empty string
+        directoryCount = 1;
+        directoryTable[0] = 1;
+    }
+
+    /**
+     * Copies the given map, in its iteration order.
+     */
+    public EntryIndex(Map<String, ZipEntry> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        // keeps the table at most half full
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public ZipEntry get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : getEntry(i);
+    }
+
+    /**
+     * Stores the attributes of the given ZipEntry under the given name. The ZipEntry is not kept.
+     *
+     * @return the previous entry of that name, or null if there was none
+     */
+    @Override
+    public ZipEntry put(String key, ZipEntry value) {
+        int hash = key.hashCode();
+        int split = directoryLength(key);
+        int directory = addDirectory(key, split);
+        int slot = findSlot(key, hash, directory, split);
+        if (table[slot] != 0) {
+            int i = table[slot] - 1;
+            ZipEntry previous = getEntry(i);
+            setAttributes(i, value);
+            return previous;
+        }
+
+        ensureCapacity();
+        int i = size;
+        appendName(key, split);
+        nameOffsets[i + 1] = namesLength;
+        directories[i] = directory;
+        hashes[i] = hash;
+        setAttributes(i, value);
+        table[slot] = i + 1;
+        size++;
+
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(table, 0);
+        namesLength = 0;
+        size = 0;
+        Arrays.fill(directoryTable, 0);
+        directoryTable[0] = 1;
+        directoryNamesLength = 0;
+        directoryCount = 1;
+    }
+
+    /**
+     * @return the position of the entry of the given name, -1 if there is none
+     */
+    public int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        String name = (String) key;
+        int split = directoryLength(name);
+        int directory = findDirectory(name, split);
+        if (directory < 0) {
+            return -1;
+        }
+        int slot = findSlot(name, name.hashCode(), directory, split);
+        return table[slot] - 1;
+    }
+
+    /**
+     * @param i The position of an entry, in insertion order
+     * @return the name of the entry
+     */
+    public String getName(int i) {
+        checkIndex(i);
+        int directory = directories[i];
+        int directoryStart = directoryOffsets[directory];
+        int directoryLength = directoryOffsets[directory + 1] - directoryStart;
+        int nameLength = nameOffsets[i + 1] - nameOffsets[i];
+        byte[] name = new byte[directoryLength + nameLength];
+        System.arraycopy(directoryNames, directoryStart, name, 0, directoryLength);
+        System.arraycopy(names, nameOffsets[i], name, directoryLength, nameLength);
+        return new String(name, UTF8);
+    }
+
+    /**
+     * @param i The position of an entry, in insertion order
+     * @return a new ZipEntry holding the attributes of the entry
+     */
+    public ZipEntry getEntry(int i) {
+        ZipEntry entry = new ZipEntry(getName(i));
+        if (sizes[i] >= 0) {
+            entry.setSize(sizes[i]);
+        }
+        entry.setCompressedSize(compressedSizes[i]);
+        if (crcs[i] != -1) {
+            entry.setCrc(crcs[i]);
+        }
+        if (times[i] != -1) {
+            entry.setTime(times[i]);
+        }
+        if (methods[i] == ZipEntry.STORED || methods[i] == ZipEntry.DEFLATED) {
+            entry.setMethod(methods[i]);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the positions of the entries, sorted by the UTF-8 bytes of their names
+     */
+    public int[] sortedOrder() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+        return order;
+    }
+
+    /**
+     * Compares the UTF-8 bytes of the names of two entries.
+     *
+     * @param i     The position of an entry of this index
+     * @param other The index of the second entry, possibly this one
+     * @param j     The position of the second entry in its index
+     * @return a negative integer, zero, or a positive integer as the first name is less than, equal to,
+     * or greater than the second one
+     */
+    public int compareNames(int i, EntryIndex other, int j) {
+        int directory1 = directories[i];
+        int directory2 = other.directories[j];
+        int length1 = directoryOffsets[directory1 + 1] - directoryOffsets[directory1];
+        int length2 = other.directoryOffsets[directory2 + 1] - other.directoryOffsets[directory2];
+        int total1 = length1 + nameOffsets[i + 1] - nameOffsets[i];
+        int total2 = length2 + other.nameOffsets[j + 1] - other.nameOffsets[j];
+        int k = 0;
+        if (this == other && directory1 == directory2) {
+            // same directory, only the rest of the names differ
+            k = length1;
+        }
+        for (int n = Math.min(total1, total2); k < n; k++) {
+            int b1 = k < length1 ? directoryNames[directoryOffsets[directory1] + k]
+                    : names[nameOffsets[i] + k - length1];
+            int b2 = k < length2 ? other.directoryNames[other.directoryOffsets[directory2] + k]
+                    : other.names[other.nameOffsets[j] + k - length2];
+            if (b1 != b2) {
+                return (b1 & 0xff) - (b2 & 0xff);
+            }
+        }
+        return total1 - total2;
+    }
+
+    /**
+     * @return the number of bytes used by the names of the entries and of their directories
+     */
+    int getNameBytes() {
+        return namesLength + directoryNamesLength;
+    }
+
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (compareNames(order[middle - 1], this, order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int p = from;
+        int q = middle;
+        for (int k = from; k < to; k++) {
+            if (q >= to || (p < middle && compareNames(buffer[p], this, buffer[q]) <= 0)) {
+                order[k] = buffer[p++];
+            } else {
+                order[k] = buffer[q++];
+            }
+        }
+    }
+
+    /**
+     * Writes the arrays of this index as they are, so that {@link #read(ByteBuffer)} only has to copy them back.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(size);
+        writeBytes(out, names, namesLength);
+        writeInts(out, nameOffsets, size + 1);
+        writeInts(out, directories, size);
+        writeInts(out, hashes, size);
+        writeLongs(out, sizes, size);
+        writeLongs(out, compressedSizes, size);
+        writeLongs(out, crcs, size);
+        writeLongs(out, times, size);
+        for (int i = 0; i < size; i++) {
+            out.writeShort(methods[i]);
+        }
+        writeInts(out, table, table.length);
+        out.writeInt(directoryCount);
+        writeBytes(out, directoryNames, directoryNamesLength);
+        writeInts(out, directoryOffsets, directoryCount + 1);
+        writeInts(out, directoryHashes, directoryCount);
+        writeInts(out, directoryTable, directoryTable.length);
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutputStream)}.
+     *
+     * @throws IOException if the buffer does not hold an index of the current format
+     */
+    static EntryIndex read(ByteBuffer in) throws IOException {
+        if (in.getInt() != FORMAT_VERSION) {
+            throw new IOException("unsupported index format");
+        }
+        EntryIndex index = new EntryIndex(1);
+        int size = in.getInt();
+        index.size = size;
+        index.names = readBytes(in);
+        index.namesLength = index.names.length;
+        index.nameOffsets = readInts(in);
+        index.directories = readInts(in);
+        index.hashes = readInts(in);
+        index.sizes = readLongs(in);
+        index.compressedSizes = readLongs(in);
+        index.crcs = readLongs(in);
+        index.times = readLongs(in);
+        index.methods = new short[size];
+        in.asShortBuffer().get(index.methods);
+        in.position(in.position() + size * 2);
+        index.table = readInts(in);
+        index.directoryCount = in.getInt();
+        index.directoryNames = readBytes(in);
+        index.directoryNamesLength = index.directoryNames.length;
+        index.directoryOffsets = readInts(in);
+        index.directoryHashes = readInts(in);
+        index.directoryTable = readInts(in);
+        if (index.nameOffsets.length != size + 1 || index.sizes.length != size
+                || Integer.bitCount(index.table.length) != 1 || Integer.bitCount(index.directoryTable.length) != 1
+                || index.directoryOffsets.length != index.directoryCount + 1) {
+            throw new IOException("corrupted index");
+        }
+        return index;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes, int length) throws IOException {
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints, int length) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeInt(ints[i]);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] longs, int length) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeLong(longs[i]);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] ints = new int[in.getInt()];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + ints.length * 4);
+        return ints;
+    }
+
+    private static long[] readLongs(ByteBuffer in) {
+        long[] longs = new long[in.getInt()];
+        in.asLongBuffer().get(longs);
+        in.position(in.position() + longs.length * 8);
+        return longs;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    private void setAttributes(int i, ZipEntry entry) {
+        sizes[i] = entry.getSize();
+        compressedSizes[i] = entry.getCompressedSize();
+        crcs[i] = entry.getCrc();
+        times[i] = entry.getTime();
+        methods[i] = (short) entry.getMethod();
+    }
+
+    /**
+     * @return the slot holding the entry of the given name, or the empty slot where it would be inserted
+     */
+    private int findSlot(String key, int hash, int directory, int split) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            int i = table[slot] - 1;
+            if (hashes[i] == hash && directories[i] == directory
+                    && regionEquals(names, nameOffsets[i], nameOffsets[i + 1], key, split, key.length())) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Appends the end of the key, encoded in UTF-8, to the names. ASCII names, by far the most common,
+     * are copied without a temporary array.
+     */
+    private void appendName(String key, int from) {
+        boolean ascii = true;
+        for (int k = from; ascii && k < key.length(); k++) {
+            ascii = key.charAt(k) < 0x80;
+        }
+        byte[] name = ascii ? null : key.substring(from).getBytes(UTF8);
+        int length = ascii ? key.length() - from : name.length;
+        if (namesLength + length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+        }
+        if (ascii) {
+            for (int k = 0; k < length; k++) {
+                names[namesLength + k] = (byte) key.charAt(from + k);
+            }
+        } else {
+            System.arraycopy(name, 0, names, namesLength, length);
+        }
+        namesLength += length;
+    }
+
+    /**
+     * @return the length of the directory of the given name, including its last slash.
+     * The last character of the name is not considered, so that a directory entry is in its parent directory.
+     */
+    private static int directoryLength(String key) {
+        return key.lastIndexOf('/', key.length() - 2) + 1;
+    }
+
+    /**
+     * @return the hash of the first characters of the given name, the same as the one of the String of those characters
+     */
+    private static int hash(String key, int length) {
+        int h = 0;
+        for (int k = 0; k < length; k++) {
+            h = 31 * h + key.charAt(k);
+        }
+        return h;
+    }
+
+    /**
+     * @return true if the UTF-8 bytes from start to end are the encoding of the given characters
+     */
+    private static boolean regionEquals(byte[] bytes, int start, int end, String key, int from, int to) {
+        int p = start;
+        for (int k = from; k < to; k++) {
+            char c = key.charAt(k);
+            if (c >= 0x80) {
+                String s = new String(bytes, start, end - start, UTF8);
+                return s.length() == to - from && key.regionMatches(from, s, 0, s.length());
+            }
+            if (p == end || bytes[p++] != c) {
+                return false;
+            }
+        }
+        return p == end;
+    }
+
+    /**
+     * @return the slot holding the directory made of the first characters of the given name,
+     * or the empty slot where it would be inserted
+     */
+    private int findDirectorySlot(String key, int length, int hash) {
+        int mask = directoryTable.length - 1;
+        int slot = mix(hash) & mask;
+        while (directoryTable[slot] != 0) {
+            int d = directoryTable[slot] - 1;
+            if (directoryHashes[d] == hash && regionEquals(directoryNames, directoryOffsets[d],
+                    directoryOffsets[d + 1], key, 0, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the directory made of the first characters of the given name, -1 if there is none
+     */
+    private int findDirectory(String key, int length) {
+        return directoryTable[findDirectorySlot(key, length, hash(key, length))] - 1;
+    }
+
+    private int addDirectory(String key, int length) {
+        int hash = hash(key, length);
+        int slot = findDirectorySlot(key, length, hash);
+        if (directoryTable[slot] != 0) {
+            return directoryTable[slot] - 1;
+        }
+
+        int d = directoryCount;
+        if (d == directoryHashes.length) {
+            directoryOffsets = Arrays.copyOf(directoryOffsets, d * 2 + 1);
+            directoryHashes = Arrays.copyOf(directoryHashes, d * 2);
+        }
+        byte[] name = key.substring(0, length).getBytes(UTF8);
+        if (directoryNamesLength + name.length > directoryNames.length) {
+            directoryNames = Arrays.copyOf(directoryNames,
+                    Math.max(directoryNames.length * 2, directoryNamesLength + name.length));
+        }
+        System.arraycopy(name, 0, directoryNames, directoryNamesLength, name.length);
+        directoryNamesLength += name.length;
+        directoryOffsets[d + 1] = directoryNamesLength;
+        directoryHashes[d] = hash;
+        directoryTable[slot] = d + 1;
+        directoryCount++;
+
+        if (directoryCount * 2 > directoryTable.length) {
+            int[] newTable = new int[directoryTable.length * 2];
+            int mask = newTable.length - 1;
+            for (int k = 0; k < directoryCount; k++) {
+                int newSlot = mix(directoryHashes[k]) & mask;
+                while (newTable[newSlot] != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newTable[newSlot] = k + 1;
+            }
+            directoryTable = newTable;
+        }
+        return d;
+    }
+
+    private void ensureCapacity() {
+        if (size == hashes.length) {
+            int capacity = size + (size >> 1) + 1;
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            directories = Arrays.copyOf(directories, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            compressedSizes = Arrays.copyOf(compressedSizes, capacity);
+            crcs = Arrays.copyOf(crcs, capacity);
+            times = Arrays.copyOf(times, capacity);
+            methods = Arrays.copyOf(methods, capacity);
+        }
+    }
+
+    private void rehash(int tableSize) {
+        int[] newTable = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = mix(hashes[i]) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = i + 1;
+        }
+        table = newTable;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new PositionIterator<String>() {
+                    @Override
+                    String get(int i) {
+                        return getName(i);
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, ZipEntry>> entrySet() {
+        return new AbstractSet<Map.Entry<String, ZipEntry>>() {
+            @Override
+            public Iterator<Map.Entry<String, ZipEntry>> iterator() {
+                return new PositionIterator<Map.Entry<String, ZipEntry>>() {
+                    @Override
+                    Map.Entry<String, ZipEntry> get(int i) {
+                        ZipEntry entry = getEntry(i);
+                        return new SimpleImmutableEntry<String, ZipEntry>(entry.getName(), entry);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private abstract class PositionIterator<E> implements Iterator<E> {
+        private int next;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public E next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return get(next++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("entries cannot be removed from an EntryIndex");
+        }
+
+        abstract E get(int i);
+    }
+}
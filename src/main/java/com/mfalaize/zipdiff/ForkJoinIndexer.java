@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+
+/**
+ * Builds the map of ZipEntries of an archive, expanding each nested archive as its own
+ * fork/join task. The partial maps are merged in the order of the entries, so the resulting
+ * map has the same content and iteration order as the one built on a single thread.
+ * <p/>
+ * At most {@code maxOpenNestedArchives} nested archives are buffered at the same time. When no more
+ * can be, a nested archive is expanded in place by the task reading its parent. When the expansion fails,
+ * the tasks not started yet give up at once and the ones running stop reading, and all of them are waited for
+ * so that no archive is closed while a task still reads it.
+ *
+ * @author Maxime Falaize
+ */
+class ForkJoinIndexer {
+
+    private final DifferenceCalculator calculator;
+    private final ForkJoinPool pool;
+    private final Semaphore permits;
+    private volatile boolean aborted;
+
+    ForkJoinIndexer(DifferenceCalculator calculator, ForkJoinPool pool, int maxOpenNestedArchives) {
+        this.calculator = calculator;
+        this.pool = pool;
+        this.permits = new Semaphore(maxOpenNestedArchives);
+    }
+
+    Map<String, ZipEntry> buildZipEntryMap(ArchiveReader reader) throws IOException {
+        Parts parts = new Parts();
+        Enumeration<? extends ZipEntry> entries = reader.entries();
+        try {
+            while (!aborted && entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (calculator.isExpandable("", entry)) {
+                    acquire();
+                    NestedArchiveTask task = new NestedArchiveTask(entry.getName() + "/", reader, entry);
+                    pool.execute(task);
+                    parts.add(task, entry.getName(), calculator.isIncluded(entry.getName()) ? entry : null);
+                } else {
+                    calculator.processZipEntry("", entry, null, parts.current);
+                }
+            }
+        } catch (IOException e) {
+            parts.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            parts.abort();
+            throw e;
+        }
+        return parts.join();
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean acquired;
+
+                public boolean block() throws InterruptedException {
+                    if (!acquired) {
+                        permits.acquire();
+                        acquired = true;
+                    }
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return acquired || (acquired = permits.tryAcquire());
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ex = new InterruptedIOException("interrupted while waiting for a nested archive");
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    private Map<String, ZipEntry> expand(String prefix, ArchiveReader reader) throws IOException {
+        Parts parts = new Parts();
+        Enumeration<? extends ZipEntry> entries = reader.entries();
+        try {
+            while (!aborted && entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                boolean expandable = calculator.isExpandable(prefix, entry);
+                if (expandable && permits.tryAcquire()) {
+                    NestedArchiveTask task = new NestedArchiveTask(prefix + entry.getName() + "/", reader, entry);
+                    task.fork();
+                    String name = DifferenceCalculator.qualify(prefix, entry.getName());
+                    parts.add(task, name, calculator.isIncluded(name) ? entry : null);
+                } else {
+                    InputStream is = expandable ? calculator.openEntry(reader, entry) : null;
+                    try {
+                        calculator.processZipEntry(prefix, entry, is, parts.current);
+                    } finally {
+                        if (is != null) {
+                            is.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            parts.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            parts.abort();
+            throw e;
+        }
+        // the tasks reading from this archive are done once joined
+        return parts.join();
+    }
+
+    /**
+     * The entries found so far, interleaved with the tasks expanding nested archives.
+     */
+    private class Parts {
+        private final List<Object> parts = new ArrayList<Object>();
+        private Map<String, ZipEntry> current = new EntryIndex();
+
+        /**
+         * @param entry The entry of the nested archive, or null if it is not part of the comparison
+         */
+        void add(NestedArchiveTask task, String name, ZipEntry entry) {
+            parts.add(current);
+            parts.add(task);
+            if (entry != null) {
+                Map<String, ZipEntry> archive = new EntryIndex(1);
+                archive.put(name, entry);
+                parts.add(archive);
+            }
+            current = new EntryIndex();
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, ZipEntry> join() throws IOException {
+            parts.add(current);
+            Map<String, ZipEntry> result = new EntryIndex();
+            IOException failure = null;
+            for (Object part : parts) {
+                if (part instanceof NestedArchiveTask) {
+                    try {
+                        Map<String, ZipEntry> expanded = ((NestedArchiveTask) part).join();
+                        if (failure == null) {
+                            result.putAll(expanded);
+                        }
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            aborted = true;
+                            failure = unwrap(e);
+                        }
+                    }
+                } else if (failure == null) {
+                    result.putAll((Map<String, ZipEntry>) part);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        /**
+         * Stops the expansion and waits for the tasks, which release their permit whether they ran or not.
+         */
+        void abort() {
+            aborted = true;
+            for (Object part : parts) {
+                if (part instanceof NestedArchiveTask) {
+                    ((NestedArchiveTask) part).quietlyJoin();
+                }
+            }
+        }
+
+        private IOException unwrap(RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    return (IOException) t;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Expands one nested archive, buffered from its parent archive.
+     */
+    private class NestedArchiveTask extends RecursiveTask<Map<String, ZipEntry>> {
+        private final String prefix;
+        private final ArchiveReader parent;
+        private final ZipEntry entry;
+
+        NestedArchiveTask(String prefix, ArchiveReader parent, ZipEntry entry) {
+            this.prefix = prefix;
+            this.parent = parent;
+            this.entry = entry;
+        }
+
+        protected Map<String, ZipEntry> compute() {
+            try {
+                if (aborted) {
+                    return new EntryIndex();
+                }
+                ArchiveReader reader;
+                InputStream is = calculator.openEntry(parent, entry);
+                try {
+                    reader = calculator.readNestedArchive(prefix.substring(0, prefix.length() - 1), is, entry.getSize());
+                } finally {
+                    is.close();
+                }
+                if (reader == null) {
+                    return new EntryIndex();
+                }
+                try {
+                    return expand(prefix, reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                throw new NestedArchiveException(e);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of nested archives which can still be buffered
+     */
+    int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    private static class NestedArchiveException extends RuntimeException {
+        NestedArchiveException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.hash.XxHash64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Keeps the indexes of archives on disk, so that an archive compared again is not read at all.
+ * An index is stored in a file of the cache directory and reused as long as the archive has the
+ * same path, size, modification time and the same first and last bytes, and as long as it was
+ * built with the same settings.
+ * <p/>
+ * The files are written to a temporary file first and then renamed, so that several processes
+ * can share a cache directory.
+ *
+ * @author Maxime Falaize
+ */
+public class IndexCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x5A444958;
+    private static final int HEAD_SIZE = 4096;
+    /**
+     * Covers the end of central directory record and its comment
+     */
+    private static final int TAIL_SIZE = 65536 + 22;
+
+    private final File directory;
+
+    /**
+     * @param directory The directory holding the indexes, created when the first index is stored
+     */
+    public IndexCache(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param archive  The archive that was indexed
+     * @param settings The settings the index depends on
+     * @return the stored index of the archive, or null if there is none or if the archive changed since
+     * @throws IOException if the archive cannot be read
+     */
+    public EntryIndex load(File archive, String settings) throws IOException {
+        String key = getKey(archive, settings);
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.getInt() != MAGIC) {
+                    return null;
+                }
+                byte[] storedKey = new byte[buffer.getInt()];
+                buffer.get(storedKey);
+                if (!Arrays.equals(storedKey, key.getBytes(UTF8))) {
+                    return null;
+                }
+                EntryIndex index = EntryIndex.read(buffer);
+                LOGGER.debug("index of " + archive + " loaded from " + file);
+                return index;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("cannot read " + file + ", ignoring it", e);
+            return null;
+        } catch (RuntimeException e) {
+            LOGGER.debug("cannot read " + file + ", ignoring it", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param archive  The archive that was indexed
+     * @param settings The settings the index depends on
+     * @param index    The index of the archive
+     * @throws IOException if the archive cannot be read or the index cannot be written
+     */
+    public void store(File archive, String settings, EntryIndex index) throws IOException {
+        String key = getKey(archive, settings);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = getFile(key);
+        File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                byte[] keyBytes = key.getBytes(UTF8);
+                out.writeInt(MAGIC);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                index.write(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("index of " + archive + " stored in " + file);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the string identifying the given archive in its current state and the given settings
+     */
+    protected String getKey(File archive, String settings) throws IOException {
+        return archive.getCanonicalPath() + "\n" + archive.length() + "\n" + archive.lastModified()
+                + "\n" + Long.toHexString(hashHeadAndTail(archive)) + "\n" + settings;
+    }
+
+    private File getFile(String key) {
+        XxHash64 hash = new XxHash64();
+        hash.update(key.getBytes(UTF8));
+        return new File(directory, Long.toHexString(hash.getValue()) + ".idx");
+    }
+
+    private static long hashHeadAndTail(File archive) throws IOException {
+        XxHash64 hash = new XxHash64();
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            long length = raf.length();
+            FileChannel channel = raf.getChannel();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEAD_SIZE, length));
+            readFully(channel, head, 0);
+            hash.update(head.array(), 0, head.limit());
+            long tailStart = Math.max(head.limit(), length - TAIL_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate((int) (length - tailStart));
+            readFully(channel, tail, tailStart);
+            hash.update(tail.array(), 0, tail.limit());
+        } finally {
+            raf.close();
+        }
+        return hash.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -19,15 +19,28 @@
  */
 package com.mfalaize.zipdiff;
 
+import com.mfalaize.zipdiff.output.BatchSummaryBuilder;
 import com.mfalaize.zipdiff.output.Builder;
 import com.mfalaize.zipdiff.output.HtmlBuilder;
+import com.mfalaize.zipdiff.output.PagedHtmlBuilder;
+import com.mfalaize.zipdiff.output.StreamingBuilder;
 import com.mfalaize.zipdiff.output.TextBuilder;
 import com.mfalaize.zipdiff.output.XmlBuilder;
+import com.mfalaize.zipdiff.scan.ScanEngine;
 import org.apache.commons.cli.*;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+
+import javax.management.ObjectName;
 
 /**
  * Provides a command line interface to zipdiff
@@ -44,8 +57,34 @@ public class Main {
     private static final String OPTION_FILE1 = "file1";
     private static final String OPTION_FILE2 = "file2";
     private static final String OPTION_REGEX = "regex";
+    private static final String OPTION_IGNORE = "ignore";
+    private static final String OPTION_INCLUDE = "include";
     private static final String OPTION_EXIT_WITH_ERROR_ON_DIFF = "exitwitherrorondifference";
     private static final String OPTION_VERBOSE = "verbose";
+    private static final String OPTION_THREADS = "threads";
+    private static final String OPTION_ENGINE = "engine";
+    private static final String OPTION_FORK_JOIN = "forkjoin";
+    private static final String OPTION_SKIP_UNCHANGED_ARCHIVES = "skipunchangedarchives";
+    private static final String OPTION_COMPARE_CONTENTS = "comparecontents";
+    private static final String OPTION_VERIFY_UNCHANGED = "verifyunchanged";
+    private static final String OPTION_HASH_WHOLE_ARCHIVES = "hashwholearchives";
+    private static final String OPTION_NESTED_MEMORY_THRESHOLD = "nestedmemorythreshold";
+    private static final String OPTION_TEXT_DIFF = "textdiff";
+    private static final String OPTION_TEXT_DIFF_MAX_SIZE = "textdiffmaxsize";
+    private static final String OPTION_HTML_PAGE_SIZE = "htmlpagesize";
+    private static final String OPTION_ALGORITHM = "algorithm";
+    private static final String OPTION_INDEX_CACHE = "indexcache";
+    private static final String OPTION_SNAPSHOT = "snapshot";
+    private static final String OPTION_EXPORT_SNAPSHOT = "exportsnapshot";
+    private static final String OPTION_CONTENT_HASHES = "contenthashes";
+    private static final String OPTION_BATCH = "batch";
+    private static final String OPTION_REPORT_DIR = "reportdir";
+    private static final String OPTION_REPORT_FORMAT = "reportformat";
+    private static final String OPTION_PARALLELISM = "parallelism";
+    private static final String OPTION_QUICK_CHECK = "quickcheck";
+    private static final String OPTION_STATS = "stats";
+    private static final String OPTION_JMX = "jmx";
+    private static final String STATISTICS_OBJECT_NAME = "com.mfalaize.zipdiff:type=Statistics";
     private static final Options options;
 
     // static initializer
@@ -60,11 +99,11 @@ public class Main {
                 new Option(OPTION_COMPARE_CRC_VALUES, OPTION_COMPARE_CRC_VALUES, false, "Compare CRC values");
         compareCRC.setRequired(false);
 
-        Option file1 = new Option(OPTION_FILE1, OPTION_FILE1, true, "<filename> first file to compare");
-        file1.setRequired(true);
+        Option file1 = new Option(OPTION_FILE1, OPTION_FILE1, true, "<filename> first file or directory to compare");
+        file1.setRequired(false);
 
-        Option file2 = new Option(OPTION_FILE2, OPTION_FILE2, true, "<filename> second file to compare");
-        file2.setRequired(true);
+        Option file2 = new Option(OPTION_FILE2, OPTION_FILE2, true, "<filename> second file or directory to compare");
+        file2.setRequired(false);
 
         Option outputFileOption =
                 new Option(
@@ -82,6 +121,24 @@ public class Main {
                         "regular expression to match files to exclude e.g. (?i)meta-inf.*");
         regex.setRequired(false);
 
+        Option ignoreOption =
+                new Option(
+                        OPTION_IGNORE,
+                        OPTION_IGNORE,
+                        true,
+                        "<pattern> entries to exclude, a regular expression or glob:<glob> e.g. glob:WEB-INF/lib/**"
+                                + " (may be repeated)");
+        ignoreOption.setRequired(false);
+
+        Option includeOption =
+                new Option(
+                        OPTION_INCLUDE,
+                        OPTION_INCLUDE,
+                        true,
+                        "<pattern> only compare the entries matching it, a regular expression or glob:<glob>"
+                                + " e.g. glob:*.war/WEB-INF/classes/** (may be repeated)");
+        includeOption.setRequired(false);
+
         Option ignoreCVSFilesOption =
                 new Option(
                         OPTION_IGNORE_CVS_FILES,
@@ -104,15 +161,226 @@ public class Main {
                         false,
                         "verbose mode");
 
+        Option threadsOption =
+                new Option(
+                        OPTION_THREADS,
+                        OPTION_THREADS,
+                        true,
+                        "<count> number of threads used to index the archives (default 1)");
+        threadsOption.setRequired(false);
+
+        Option engineOption =
+                new Option(
+                        OPTION_ENGINE,
+                        OPTION_ENGINE,
+                        true,
+                        "<zip_file|mapped> how the archives are read (default zip_file)");
+        engineOption.setRequired(false);
+
+        Option forkJoinOption =
+                new Option(
+                        OPTION_FORK_JOIN,
+                        OPTION_FORK_JOIN,
+                        false,
+                        "expand nested archives in parallel");
+        forkJoinOption.setRequired(false);
+
+        Option skipUnchangedArchivesOption =
+                new Option(
+                        OPTION_SKIP_UNCHANGED_ARCHIVES,
+                        OPTION_SKIP_UNCHANGED_ARCHIVES,
+                        false,
+                        "do not expand nested archives having the same CRC and size on both sides");
+        skipUnchangedArchivesOption.setRequired(false);
+
+        Option compareContentsOption =
+                new Option(
+                        OPTION_COMPARE_CONTENTS,
+                        OPTION_COMPARE_CONTENTS,
+                        false,
+                        "compare the decompressed contents of entries whose metadata differ");
+        compareContentsOption.setRequired(false);
+
+        Option verifyUnchangedOption =
+                new Option(
+                        OPTION_VERIFY_UNCHANGED,
+                        OPTION_VERIFY_UNCHANGED,
+                        false,
+                        "check the data of entries whose metadata match instead of trusting their CRC");
+        verifyUnchangedOption.setRequired(false);
+
+        Option hashWholeArchivesOption =
+                new Option(
+                        OPTION_HASH_WHOLE_ARCHIVES,
+                        OPTION_HASH_WHOLE_ARCHIVES,
+                        false,
+                        "hash the whole files to find out whether they are identical before comparing their entries");
+        hashWholeArchivesOption.setRequired(false);
+
+        Option nestedMemoryThresholdOption =
+                new Option(
+                        OPTION_NESTED_MEMORY_THRESHOLD,
+                        OPTION_NESTED_MEMORY_THRESHOLD,
+                        true,
+                        "<bytes> size of the largest nested archive buffered in memory, larger ones are buffered"
+                                + " in a temporary file");
+        nestedMemoryThresholdOption.setRequired(false);
+
+        Option textDiffOption =
+                new Option(
+                        OPTION_TEXT_DIFF,
+                        OPTION_TEXT_DIFF,
+                        false,
+                        "show the changed lines of changed text entries such as properties, xml or sql files");
+        textDiffOption.setRequired(false);
+
+        Option textDiffMaxSizeOption =
+                new Option(
+                        OPTION_TEXT_DIFF_MAX_SIZE,
+                        OPTION_TEXT_DIFF_MAX_SIZE,
+                        true,
+                        "<bytes> size of the largest text entry whose lines are compared (default 1048576)");
+        textDiffMaxSizeOption.setRequired(false);
+
+        Option htmlPageSizeOption =
+                new Option(
+                        OPTION_HTML_PAGE_SIZE,
+                        OPTION_HTML_PAGE_SIZE,
+                        true,
+                        "<count> write the html output as an index page and data files of this many entries");
+        htmlPageSizeOption.setRequired(false);
+
+        Option algorithmOption =
+                new Option(
+                        OPTION_ALGORITHM,
+                        OPTION_ALGORITHM,
+                        true,
+                        "<hash|merge> how the entries are matched, merge reports them in name order (default hash)");
+        algorithmOption.setRequired(false);
+
+        Option indexCacheOption =
+                new Option(
+                        OPTION_INDEX_CACHE,
+                        OPTION_INDEX_CACHE,
+                        true,
+                        "<directory> keep the indexes of the archives in this directory to reuse them in later runs");
+        indexCacheOption.setRequired(false);
+
+        Option snapshotOption =
+                new Option(
+                        OPTION_SNAPSHOT,
+                        OPTION_SNAPSHOT,
+                        true,
+                        "<filename> snapshot to compare with file2 in place of file1");
+        snapshotOption.setRequired(false);
+
+        Option exportSnapshotOption =
+                new Option(
+                        OPTION_EXPORT_SNAPSHOT,
+                        OPTION_EXPORT_SNAPSHOT,
+                        true,
+                        "<filename> write a snapshot of file1 to this file instead of comparing");
+        exportSnapshotOption.setRequired(false);
+
+        Option contentHashesOption =
+                new Option(
+                        OPTION_CONTENT_HASHES,
+                        OPTION_CONTENT_HASHES,
+                        false,
+                        "store the hash of the content of the entries in the exported snapshot");
+        contentHashesOption.setRequired(false);
+
         options.addOption(compareTS);
         options.addOption(compareCRC);
         options.addOption(file1);
         options.addOption(file2);
         options.addOption(regex);
+        options.addOption(ignoreOption);
+        options.addOption(includeOption);
         options.addOption(ignoreCVSFilesOption);
         options.addOption(exitWithError);
         options.addOption(verboseOption);
         options.addOption(outputFileOption);
+        options.addOption(threadsOption);
+        options.addOption(engineOption);
+        options.addOption(forkJoinOption);
+        options.addOption(skipUnchangedArchivesOption);
+        options.addOption(compareContentsOption);
+        options.addOption(verifyUnchangedOption);
+        options.addOption(hashWholeArchivesOption);
+        options.addOption(nestedMemoryThresholdOption);
+        options.addOption(textDiffOption);
+        options.addOption(textDiffMaxSizeOption);
+        options.addOption(htmlPageSizeOption);
+        options.addOption(algorithmOption);
+        Option batchOption =
+                new Option(
+                        OPTION_BATCH,
+                        OPTION_BATCH,
+                        true,
+                        "<filename> compare the pairs of files listed in this manifest, one pair per line"
+                                + " (a single file on a line is compared with file1)");
+        batchOption.setRequired(false);
+
+        Option reportDirOption =
+                new Option(
+                        OPTION_REPORT_DIR,
+                        OPTION_REPORT_DIR,
+                        true,
+                        "<directory> write the report of each pair of the batch in this directory");
+        reportDirOption.setRequired(false);
+
+        Option reportFormatOption =
+                new Option(
+                        OPTION_REPORT_FORMAT,
+                        OPTION_REPORT_FORMAT,
+                        true,
+                        "<txt|xml|html> format of the reports of the pairs of the batch (default txt)");
+        reportFormatOption.setRequired(false);
+
+        Option parallelismOption =
+                new Option(
+                        OPTION_PARALLELISM,
+                        OPTION_PARALLELISM,
+                        true,
+                        "<count> number of pairs of the batch compared at the same time (default one per processor)");
+        parallelismOption.setRequired(false);
+
+        Option quickCheckOption =
+                new Option(
+                        OPTION_QUICK_CHECK,
+                        OPTION_QUICK_CHECK,
+                        false,
+                        "only tell whether the files are different, stopping at the first difference");
+        quickCheckOption.setRequired(false);
+
+        Option statsOption =
+                new Option(
+                        OPTION_STATS,
+                        OPTION_STATS,
+                        false,
+                        "print the time spent in each phase and the data read once done");
+        statsOption.setRequired(false);
+
+        Option jmxOption =
+                new Option(
+                        OPTION_JMX,
+                        OPTION_JMX,
+                        false,
+                        "publish the statistics of the run as the MBean " + STATISTICS_OBJECT_NAME);
+        jmxOption.setRequired(false);
+
+        options.addOption(indexCacheOption);
+        options.addOption(batchOption);
+        options.addOption(reportDirOption);
+        options.addOption(reportFormatOption);
+        options.addOption(parallelismOption);
+        options.addOption(quickCheckOption);
+        options.addOption(snapshotOption);
+        options.addOption(exportSnapshotOption);
+        options.addOption(contentHashesOption);
+        options.addOption(statsOption);
+        options.addOption(jmxOption);
     }
 
     private static void checkFile(java.io.File f) {
@@ -135,8 +403,63 @@ public class Main {
 
     }
 
-    private static void writeOutputFile(String filename, Differences d)
-            throws java.io.IOException {
+    /**
+     * Checks a file to compare, which may also be a directory.
+     */
+    private static void checkArchive(File f) {
+        if (f.isDirectory()) {
+            if (!f.canRead()) {
+                System.err.println("'" + f + "' is not readable");
+                System.exit(EXITCODE_ERROR);
+            }
+        } else {
+            checkFile(f);
+        }
+    }
+
+    private static String getRequiredOptionValue(CommandLine line, String option) throws MissingOptionException {
+        String value = line.getOptionValue(option);
+        if (value == null) {
+            throw new MissingOptionException("Missing required option: " + option);
+        }
+        return value;
+    }
+
+    private static int parsePositiveInt(String value, String description) {
+        int i = 0;
+        try {
+            i = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (i < 1) {
+            System.err.println("'" + value + "' is not a valid " + description);
+            System.exit(EXITCODE_ERROR);
+        }
+        return i;
+    }
+
+    private static ScanEngine parseScanEngine(String value) {
+        try {
+            return ScanEngine.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("'" + value + "' is not a valid scan engine");
+            System.exit(EXITCODE_ERROR);
+            return null;
+        }
+    }
+
+    private static DiffAlgorithm parseDiffAlgorithm(String value) {
+        try {
+            return DiffAlgorithm.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("'" + value + "' is not a valid algorithm");
+            System.exit(EXITCODE_ERROR);
+            return null;
+        }
+    }
+
+    private static Builder createBuilder(String filename) {
         Builder builder;
         if (filename.endsWith(".html")) {
             builder = new HtmlBuilder();
@@ -145,8 +468,144 @@ public class Main {
         } else {
             builder = new TextBuilder();
         }
-        builder.build(filename, d);
+        return builder;
+    }
+
 
+    /**
+     * Writes the differences to the output file as they are found, without keeping them in memory.
+     *
+     * @return true if differences were found
+     */
+    private static boolean streamOutputFile(DifferenceCalculator calc, StreamingBuilder builder, String filename)
+            throws java.io.IOException {
+        DifferenceCounter counter = new DifferenceCounter();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+        try {
+            calc.getDifferences(new CompositeDiffListener(
+                    new TimingDiffListener(calc, builder.createListener(out)), counter));
+        } finally {
+            out.close();
+        }
+        return counter.hasDifferences();
+    }
+
+    /**
+     * Writes the pages of the html report as the differences are found.
+     *
+     * @return true if differences were found
+     */
+    private static boolean streamPagedHtml(DifferenceCalculator calc, PagedHtmlBuilder builder, String filename)
+            throws java.io.IOException {
+        DifferenceCounter counter = new DifferenceCounter();
+        calc.getDifferences(new CompositeDiffListener(
+                new TimingDiffListener(calc, builder.createListener(filename)), counter));
+        return counter.hasDifferences();
+    }
+
+    /**
+     * Compares the pairs of the manifest, writes the report of each pair in the report directory if any
+     * and the summary of the batch to the output file or the console.
+     */
+    private static void runBatch(final DifferenceCalculator calc, CommandLine line, File baseline,
+                                 boolean exitWithErrorOnDiff)
+            throws java.io.IOException {
+        BatchCalculator batch = new BatchCalculator(calc);
+        batch.addPairs(new File(line.getOptionValue(OPTION_BATCH)), baseline);
+        if (line.hasOption(OPTION_PARALLELISM)) {
+            batch.setParallelism(parsePositiveInt(line.getOptionValue(OPTION_PARALLELISM), "parallelism"));
+        }
+
+        BatchCalculator.ListenerFactory factory = null;
+        if (line.hasOption(OPTION_REPORT_DIR)) {
+            final File reportDir = new File(line.getOptionValue(OPTION_REPORT_DIR));
+            final String format = line.hasOption(OPTION_REPORT_FORMAT)
+                    ? line.getOptionValue(OPTION_REPORT_FORMAT).toLowerCase() : "txt";
+            if (!format.equals("txt") && !format.equals("xml") && !format.equals("html")) {
+                System.err.println("'" + format + "' is not a valid report format");
+                System.exit(EXITCODE_ERROR);
+            }
+            if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+                System.err.println("cannot create the directory '" + reportDir + "'");
+                System.exit(EXITCODE_ERROR);
+            }
+            factory = new BatchCalculator.ListenerFactory() {
+                public DiffListener createListener(int pair, File file1, File file2) throws java.io.IOException {
+                    String filename = new File(reportDir,
+                            String.format("%03d-%s.%s", pair + 1, file2.getName(), format)).getPath();
+                    if (format.equals("html")) {
+                        return new TimingDiffListener(calc, new PagedHtmlBuilder().createListener(filename));
+                    }
+                    StreamingBuilder builder = format.equals("xml") ? new XmlBuilder() : new TextBuilder();
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+                    return new TimingDiffListener(calc,
+                            new CompositeDiffListener(builder.createListener(out), new ClosingListener(filename, out)));
+                }
+            };
+        }
+
+        List<BatchCalculator.Result> results = batch.calculate(factory);
+        printStatistics(calc, line);
+
+        String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
+        if (outputFilename != null) {
+            new BatchSummaryBuilder().build(outputFilename, results);
+        } else {
+            new BatchSummaryBuilder().build(System.out, results);
+        }
+
+        boolean hasDifferences = false;
+        for (BatchCalculator.Result result : results) {
+            if (result.getError() != null) {
+                System.exit(EXITCODE_ERROR);
+            }
+            hasDifferences |= result.hasDifferences();
+        }
+        if (hasDifferences && exitWithErrorOnDiff) {
+            System.exit(EXITCODE_DIFF);
+        }
+    }
+
+    private static void printStatistics(DifferenceCalculator calc, CommandLine line) {
+        if (line.hasOption(OPTION_STATS)) {
+            System.err.println(calc.getStatistics());
+        }
+    }
+
+    /**
+     * Closes the report of a pair of the batch once written.
+     */
+    private static class ClosingListener implements DiffListener {
+        private final String filename;
+        private final OutputStream out;
+
+        ClosingListener(String filename, OutputStream out) {
+            this.filename = filename;
+            this.out = out;
+        }
+
+        public void start(String filename1, String filename2) {
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+        }
+
+        public void end() {
+            try {
+                out.close();
+            } catch (java.io.IOException e) {
+                System.err.println("cannot write '" + filename + "': " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -160,22 +619,44 @@ public class Main {
         try {
             CommandLine line = parser.parse(options, args);
 
-            String filename1;
-            String filename2;
-
-            filename1 = line.getOptionValue(OPTION_FILE1);
-            filename2 = line.getOptionValue(OPTION_FILE2);
+            DifferenceCalculator calc;
+            File f1 = null;
 
-            File f1 = new File(filename1);
-            File f2 = new File(filename2);
+            if (line.hasOption(OPTION_BATCH)) {
+                File manifest = new File(line.getOptionValue(OPTION_BATCH));
+                checkFile(manifest);
+                if (line.hasOption(OPTION_FILE1)) {
+                    f1 = new File(line.getOptionValue(OPTION_FILE1));
+                    checkArchive(f1);
+                }
+                calc = new DifferenceCalculator();
+            } else if (line.hasOption(OPTION_EXPORT_SNAPSHOT)) {
+                f1 = new File(getRequiredOptionValue(line, OPTION_FILE1));
+                checkArchive(f1);
+                calc = new DifferenceCalculator();
+            } else if (line.hasOption(OPTION_SNAPSHOT)) {
+                File snapshot = new File(line.getOptionValue(OPTION_SNAPSHOT));
+                File f2 = new File(getRequiredOptionValue(line, OPTION_FILE2));
+
+                checkFile(snapshot);
+                checkArchive(f2);
+
+                System.out.println("Snapshot = " + snapshot);
+                System.out.println("File 2 = " + f2);
+
+                calc = new DifferenceCalculator(new Snapshot(snapshot), f2);
+            } else {
+                f1 = new File(getRequiredOptionValue(line, OPTION_FILE1));
+                File f2 = new File(getRequiredOptionValue(line, OPTION_FILE2));
 
-            checkFile(f1);
-            checkFile(f2);
+                checkArchive(f1);
+                checkArchive(f2);
 
-            System.out.println("File 1 = " + f1);
-            System.out.println("File 2 = " + f2);
+                System.out.println("File 1 = " + f1);
+                System.out.println("File 2 = " + f2);
 
-            DifferenceCalculator calc = new DifferenceCalculator(f1, f2);
+                calc = new DifferenceCalculator(f1, f2);
+            }
 
             String regularExpression;
 
@@ -207,20 +688,128 @@ public class Main {
                 calc.setFilenameRegexToIgnore(regexSet);
             }
 
+            if (line.hasOption(OPTION_IGNORE)) {
+                List<String> patterns = new ArrayList<String>(Arrays.asList(line.getOptionValues(OPTION_IGNORE)));
+                if (line.hasOption(OPTION_REGEX)) {
+                    patterns.add(EntryFilter.REGEX_PREFIX + line.getOptionValue(OPTION_REGEX));
+                }
+                calc.setIgnoreFilter(new EntryFilter(patterns));
+            }
+
+            if (line.hasOption(OPTION_INCLUDE)) {
+                calc.setIncludeFilter(new EntryFilter(line.getOptionValues(OPTION_INCLUDE)));
+            }
+
+            if (line.hasOption(OPTION_THREADS)) {
+                calc.setThreadCount(parsePositiveInt(line.getOptionValue(OPTION_THREADS), "thread count"));
+            }
+
+            if (line.hasOption(OPTION_ENGINE)) {
+                calc.setScanEngine(parseScanEngine(line.getOptionValue(OPTION_ENGINE)));
+            }
+
+            if (line.hasOption(OPTION_ALGORITHM)) {
+                calc.setDiffAlgorithm(parseDiffAlgorithm(line.getOptionValue(OPTION_ALGORITHM)));
+            }
+
+            if (line.hasOption(OPTION_INDEX_CACHE)) {
+                calc.setIndexCache(new IndexCache(new File(line.getOptionValue(OPTION_INDEX_CACHE))));
+            }
+
+            if (line.hasOption(OPTION_FORK_JOIN)) {
+                calc.setForkJoinExpansion(true);
+            }
+
+            if (line.hasOption(OPTION_NESTED_MEMORY_THRESHOLD)) {
+                calc.setNestedArchiveMemoryThreshold(parsePositiveInt(
+                        line.getOptionValue(OPTION_NESTED_MEMORY_THRESHOLD), "nested archive memory threshold"));
+            }
+
+            if (line.hasOption(OPTION_SKIP_UNCHANGED_ARCHIVES)) {
+                calc.setSkipUnchangedNestedArchives(true);
+            }
+
+            if (line.hasOption(OPTION_COMPARE_CONTENTS)) {
+                calc.setCompareContents(true);
+            }
+
+            if (line.hasOption(OPTION_VERIFY_UNCHANGED)) {
+                calc.setVerifyUnchangedEntries(true);
+            }
+
+            if (line.hasOption(OPTION_HASH_WHOLE_ARCHIVES)) {
+                calc.setHashWholeArchives(true);
+            }
+
+            if (line.hasOption(OPTION_TEXT_DIFF)) {
+                calc.setTextDiff(true);
+            }
+
+            if (line.hasOption(OPTION_TEXT_DIFF_MAX_SIZE)) {
+                calc.getLineDiff().setMaxSize(parsePositiveInt(
+                        line.getOptionValue(OPTION_TEXT_DIFF_MAX_SIZE), "text diff maximum size"));
+            }
+
+            if (line.hasOption(OPTION_JMX)) {
+                calc.setStatisticsObjectName(new ObjectName(STATISTICS_OBJECT_NAME));
+            }
+
+            if (line.hasOption(OPTION_EXPORT_SNAPSHOT)) {
+                File snapshot = new File(line.getOptionValue(OPTION_EXPORT_SNAPSHOT));
+                Snapshot.export(calc, f1, snapshot, line.hasOption(OPTION_CONTENT_HASHES));
+                System.out.println("Snapshot of " + f1 + " written to " + snapshot);
+                return;
+            }
+
             boolean exitWithErrorOnDiff = false;
             if (line.hasOption(OPTION_EXIT_WITH_ERROR_ON_DIFF)) {
                 exitWithErrorOnDiff = true;
             }
 
-            Differences d = calc.getDifferences();
+            if (line.hasOption(OPTION_BATCH)) {
+                runBatch(calc, line, f1, exitWithErrorOnDiff);
+                return;
+            }
+
+            if (line.hasOption(OPTION_QUICK_CHECK)) {
+                boolean different = calc.hasDifferences();
+                printStatistics(calc, line);
+                if (different) {
+                    System.out.println("The files are different.");
+                    if (exitWithErrorOnDiff) {
+                        System.exit(EXITCODE_DIFF);
+                    }
+                } else {
+                    System.out.println("No differences found.");
+                }
+                return;
+            }
 
-            if (line.hasOption(OPTION_OUTPUT_FILE)) {
-                String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
-                writeOutputFile(outputFilename, d);
+            Differences d = null;
+            boolean hasDifferences;
+            String outputFilename = line.getOptionValue(OPTION_OUTPUT_FILE);
+            Builder builder = outputFilename == null ? null : createBuilder(outputFilename);
+            if (builder instanceof HtmlBuilder && line.hasOption(OPTION_HTML_PAGE_SIZE)) {
+                builder = new PagedHtmlBuilder(
+                        parsePositiveInt(line.getOptionValue(OPTION_HTML_PAGE_SIZE), "html page size"));
             }
 
+            if (builder instanceof PagedHtmlBuilder && !line.hasOption(OPTION_VERBOSE)) {
+                hasDifferences = streamPagedHtml(calc, (PagedHtmlBuilder) builder, outputFilename);
+            } else if (builder instanceof StreamingBuilder && !line.hasOption(OPTION_VERBOSE)) {
+                hasDifferences = streamOutputFile(calc, (StreamingBuilder) builder, outputFilename);
+            } else {
+                d = calc.getDifferences();
+                if (outputFilename != null) {
+                    Statistics.Timer timer = d.getStatistics().time(Statistics.Phase.REPORT);
+                    builder.build(outputFilename, d);
+                    timer.stop();
+                }
+                hasDifferences = d.hasDifferences();
+            }
+            printStatistics(calc, line);
 
-            if (d.hasDifferences()) {
+            if (hasDifferences) {
                 if (line.hasOption(OPTION_VERBOSE)) {
                     System.out.println(d);
                     System.out.println(d.getFilename1() + " and " + d.getFilename2() + " are different.");
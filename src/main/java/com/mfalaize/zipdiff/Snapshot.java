@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * A file keeping the metadata of the entries of an archive, and optionally the hash of their content,
+ * so that an archive can be compared with another one without being read again.
+ * <p/>
+ * The file starts with a header giving the name of the archive, whether content hashes are present
+ * and the number of entries. The entries follow in name order, one record each: the length of the
+ * part of its name shared with the previous entry, the rest of the name in UTF-8, its size, compressed
+ * size, CRC, time and method as variable-length integers, then the hash of its content if present.
+ * A snapshot can thus be written and read one entry at a time, and the names of the entries of a
+ * directory cost little more than their own part.
+ *
+ * @author Maxime Falaize
+ * @see DifferenceCalculator#DifferenceCalculator(Snapshot, File)
+ */
+public class Snapshot {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x5A44534E;
+    private static final int END_MAGIC = 0x5A445345;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_CONTENT_HASHES = 1;
+
+    private final File file;
+    private String archiveName;
+    private EntryIndex index;
+    private long[] contentHashes;
+
+    /**
+     * @param file The snapshot file, read when first needed
+     */
+    public Snapshot(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the path of the archive the snapshot was taken from
+     * @throws IOException if the snapshot cannot be read
+     */
+    public String getArchiveName() throws IOException {
+        load();
+        return archiveName;
+    }
+
+    /**
+     * @return true if the snapshot holds the hash of the content of its entries
+     * @throws IOException if the snapshot cannot be read
+     */
+    public boolean hasContentHashes() throws IOException {
+        load();
+        return contentHashes != null;
+    }
+
+    /**
+     * @return the entries of the snapshot, in name order
+     * @throws IOException if the snapshot cannot be read
+     */
+    public EntryIndex getIndex() throws IOException {
+        load();
+        return index;
+    }
+
+    /**
+     * @return the contents of the entries, of which only the hashes are available
+     * @throws IOException if the snapshot cannot be read
+     */
+    EntryContents getContents() throws IOException {
+        load();
+        return new SnapshotContents();
+    }
+
+    private synchronized void load() throws IOException {
+        if (index != null) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            boolean hashes = (in.getInt() & FLAG_CONTENT_HASHES) != 0;
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+            int count = in.getInt();
+
+            EntryIndex entries = new EntryIndex(count);
+            long[] contentHashes = hashes ? new long[count] : null;
+            byte[] previous = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int shared = readVarInt(in);
+                int length = shared + readVarInt(in);
+                if (length > previous.length) {
+                    previous = Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+                }
+                in.get(previous, shared, length - shared);
+                String entryName = new String(previous, 0, length, UTF8);
+
+                ZipEntry entry = new ZipEntry(entryName);
+                long size = readVarLong(in);
+                if (size >= 0) {
+                    entry.setSize(size);
+                }
+                entry.setCompressedSize(readVarLong(in));
+                long crc = readVarLong(in);
+                if (crc != -1) {
+                    entry.setCrc(crc);
+                }
+                long time = readVarLong(in);
+                if (time != -1) {
+                    entry.setTime(time);
+                }
+                int method = (int) readVarLong(in);
+                if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED) {
+                    entry.setMethod(method);
+                }
+                entries.put(entryName, entry);
+                if (hashes) {
+                    contentHashes[i] = in.getLong();
+                }
+            }
+            if (in.getInt() != END_MAGIC) {
+                throw new IOException(file + " is corrupted");
+            }
+
+            this.archiveName = new String(name, UTF8);
+            this.contentHashes = contentHashes;
+            this.index = entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated");
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " is corrupted", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Takes a snapshot of an archive, indexed with the settings of the given calculator.
+     *
+     * @param calculator    The calculator whose settings are used to index the archive
+     * @param archive       The archive to take a snapshot of
+     * @param file          The snapshot file to write
+     * @param contentHashes true to store the hash of the content of the entries, which takes reading them all
+     * @return the snapshot written
+     * @throws IOException if the archive cannot be read or the snapshot written
+     */
+    public static Snapshot export(DifferenceCalculator calculator, File archive, File file, boolean contentHashes)
+            throws IOException {
+        ArchiveReader reader = calculator.openArchive(archive, null);
+        try {
+            Map<String, ZipEntry> map = calculator.buildZipEntryMap(reader);
+            EntryIndex index = map instanceof EntryIndex ? (EntryIndex) map : new EntryIndex(map);
+            EntryContents contents = new EntryContents(reader, index);
+            contents.setNestedArchiveMemoryThreshold(calculator.getNestedArchiveMemoryThreshold());
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    write(out, archive.getPath(), index, contents, contentHashes);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                contents.close();
+            }
+        } finally {
+            reader.close();
+        }
+        return new Snapshot(file);
+    }
+
+    /**
+     * Writes the snapshot. The CRC of the entries which do not have one yet, such as the files of a
+     * directory, is computed from their content.
+     */
+    private static void write(DataOutputStream out, String archiveName, EntryIndex index, EntryContents contents,
+                              boolean contentHashes) throws IOException {
+        byte[] name = archiveName.getBytes(UTF8);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(contentHashes ? FLAG_CONTENT_HASHES : 0);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeInt(index.size());
+
+        byte[] previous = new byte[0];
+        for (int i : index.sortedOrder()) {
+            String entryName = index.getName(i);
+            byte[] current = entryName.getBytes(UTF8);
+            int shared = 0;
+            int max = Math.min(previous.length, current.length);
+            while (shared < max && previous[shared] == current[shared]) {
+                shared++;
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, current.length - shared);
+            out.write(current, shared, current.length - shared);
+
+            ZipEntry entry = index.getEntry(i);
+            writeVarLong(out, entry.getSize());
+            writeVarLong(out, entry.getCompressedSize());
+            long crc = entry.getCrc();
+            if (crc == -1 && !entry.isDirectory()) {
+                crc = contents.getCrc(entryName);
+            }
+            writeVarLong(out, crc);
+            writeVarLong(out, entry.getTime());
+            writeVarLong(out, entry.getMethod());
+            if (contentHashes) {
+                out.writeLong(entry.isDirectory() ? 0 : contents.getContentHash(entryName));
+            }
+            previous = current;
+        }
+        out.writeInt(END_MAGIC);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    /**
+     * Writes a zigzag encoded variable-length integer, so that -1 takes one byte.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("invalid length: " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("invalid variable-length integer");
+    }
+
+    /**
+     * The contents of a snapshot, of which only the hashes are known.
+     */
+    private class SnapshotContents extends EntryContents {
+
+        SnapshotContents() {
+            super(null, index);
+        }
+
+        @Override
+        public InputStream getInputStream(String key) throws IOException {
+            throw new FileNotFoundException("the content of " + key + " is not in the snapshot " + file);
+        }
+
+        @Override
+        public ByteBuffer getRawContent(String key) {
+            return null;
+        }
+
+        @Override
+        public long getContentHash(String key) throws IOException {
+            int i = index.indexOf(key);
+            if (i < 0 || contentHashes == null) {
+                throw new FileNotFoundException("no content hash for " + key + " in the snapshot " + file);
+            }
+            return contentHashes[i];
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.ZipEntry;
+
+/**
+ * The statistics of a run of a {@link DifferenceCalculator}: the time spent in each phase, the bytes read
+ * from the archives and inflated, the entries indexed and the nested archives expanded.
+ * <p/>
+ * The CPU time of a phase is the CPU time of the whole process while the phase runs, so that the threads working
+ * for it are accounted for, except for {@link Phase#NESTED_EXPANSION} which is measured on each thread buffering a
+ * nested archive. It is the CPU time of the calling thread when the JVM does not tell the CPU time of the process.
+ * When several comparisons run at the same time, as in a batch, their phases overlap and so do their times.
+ * The time of {@link Phase#REPORT} timed while another phase runs on the same thread, such as a report written by a
+ * {@link TimingDiffListener} as the differences are found, is left out of that phase.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author Maxime Falaize
+ */
+public class Statistics implements StatisticsMXBean {
+
+    /**
+     * The phases of a run, in the order they start.
+     */
+    public enum Phase {
+        /**
+         * Checking whether the archives are identical
+         */
+        IDENTITY,
+        /**
+         * Building the indexes of both archives, nested archives included
+         */
+        INDEX,
+        /**
+         * Buffering the nested archives to index them, part of {@link #INDEX}. Its time is summed over the threads
+         * expanding nested archives, so it may exceed the time of the indexing when they run in parallel.
+         */
+        NESTED_EXPANSION,
+        /**
+         * Matching the entries of both indexes
+         */
+        COMPARISON,
+        /**
+         * Comparing the contents of the entries
+         */
+        CONTENTS,
+        /**
+         * Computing the line differences of the changed text entries
+         */
+        TEXT_DIFF,
+        /**
+         * Writing the report, once the differences are found or as they are found
+         */
+        REPORT
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+    private static final boolean PROCESS_CPU_TIME = isProcessCpuTimeSupported();
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime;
+    private final AtomicLongArray wallTimes = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray cpuTimes = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesInflated = new AtomicLong();
+    private final AtomicLong entries1 = new AtomicLong();
+    private final AtomicLong entries2 = new AtomicLong();
+    private final AtomicLong nestedArchivesExpanded = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong peakIndexSize = new AtomicLong();
+    private final ThreadLocal<Timer> currentTimer = new ThreadLocal<Timer>();
+
+    private static boolean isProcessCpuTimeSupported() {
+        try {
+            return Class.forName("com.sun.management.OperatingSystemMXBean").isInstance(OS);
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static long processCpuTime() {
+        if (PROCESS_CPU_TIME) {
+            long time = ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+            if (time >= 0) {
+                return time;
+            }
+        }
+        return threadCpuTime();
+    }
+
+    private static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? Math.max(THREADS.getCurrentThreadCpuTime(), 0) : 0;
+    }
+
+    /**
+     * Starts timing a phase run by the calling thread, along with the CPU time of the process.
+     *
+     * @param phase The phase to time
+     * @return the timer to stop once the phase is over
+     */
+    public Timer time(Phase phase) {
+        return new Timer(phase, false);
+    }
+
+    /**
+     * Starts timing the part of a phase run by the calling thread, along with its CPU time.
+     *
+     * @param phase The phase to time
+     * @return the timer to stop once the part is over
+     */
+    public Timer timeThread(Phase phase) {
+        return new Timer(phase, true);
+    }
+
+    /**
+     * Adds time to a phase, e.g. the time of a phase run outside the calculator.
+     */
+    public void addTime(Phase phase, long wallNanos, long cpuNanos) {
+        wallTimes.addAndGet(phase.ordinal(), wallNanos);
+        cpuTimes.addAndGet(phase.ordinal(), cpuNanos);
+    }
+
+    /**
+     * Marks the end of the run.
+     */
+    void finish() {
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Counts the data of an entry as read and its content as inflated when it is read from the returned stream.
+     *
+     * @param entry The entry whose data are read, its compressed size being counted when known
+     * @param in    The content of the entry
+     * @return the stream counting the content read
+     */
+    InputStream countRead(ZipEntry entry, InputStream in) {
+        long size = entry.getCompressedSize() != -1 ? entry.getCompressedSize() : entry.getSize();
+        if (size > 0) {
+            bytesRead.addAndGet(size);
+        }
+        return new CountingInputStream(in);
+    }
+
+    /**
+     * Counts the raw data of an entry as read, if any.
+     */
+    ByteBuffer countRaw(ByteBuffer raw) {
+        if (raw != null) {
+            bytesRead.addAndGet(raw.remaining());
+        }
+        return raw;
+    }
+
+    /**
+     * Counts a nested archive as expanded.
+     *
+     * @param depth The number of archives it is nested in, 1 for an archive nested in a top-level archive
+     */
+    void nestedArchiveExpanded(int depth) {
+        nestedArchivesExpanded.incrementAndGet();
+        int max = maxDepth.get();
+        while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+            max = maxDepth.get();
+        }
+    }
+
+    /**
+     * Counts the entries of two indexes compared with each other.
+     */
+    void indexesCompared(int size1, int size2) {
+        entries1.addAndGet(size1);
+        entries2.addAndGet(size2);
+        long size = (long) size1 + size2;
+        long peak = peakIndexSize.get();
+        while (size > peak && !peakIndexSize.compareAndSet(peak, size)) {
+            peak = peakIndexSize.get();
+        }
+    }
+
+    /**
+     * @param phase The phase
+     * @return the wall time of the phase, in nanoseconds
+     */
+    public long getWallTime(Phase phase) {
+        return wallTimes.get(phase.ordinal());
+    }
+
+    /**
+     * @param phase The phase
+     * @return the CPU time of the phase, in nanoseconds
+     */
+    public long getCpuTime(Phase phase) {
+        return cpuTimes.get(phase.ordinal());
+    }
+
+    public long getElapsedMillis() {
+        long end = endTime;
+        return TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - startTime);
+    }
+
+    public Map<String, Long> getWallTimes() {
+        return toMillis(wallTimes);
+    }
+
+    public Map<String, Long> getCpuTimes() {
+        return toMillis(cpuTimes);
+    }
+
+    private static Map<String, Long> toMillis(AtomicLongArray times) {
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            millis.put(phase.name().toLowerCase(), TimeUnit.NANOSECONDS.toMillis(times.get(phase.ordinal())));
+        }
+        return millis;
+    }
+
+    /**
+     * @return the compressed size of the entries whose data were read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the size of the decompressed contents read, nested archives included
+     */
+    public long getBytesInflated() {
+        return bytesInflated.get();
+    }
+
+    /**
+     * @return the number of entries indexed in the first archive, nested entries included
+     */
+    public long getEntries1() {
+        return entries1.get();
+    }
+
+    /**
+     * @return the number of entries indexed in the second archive, nested entries included
+     */
+    public long getEntries2() {
+        return entries2.get();
+    }
+
+    public long getNestedArchivesExpanded() {
+        return nestedArchivesExpanded.get();
+    }
+
+    /**
+     * @return the deepest nesting of the nested archives expanded, 0 if there was none
+     */
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return the largest number of entries held by the indexes of both archives at the same time
+     */
+    public long getPeakIndexSize() {
+        return peakIndexSize.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Elapsed time: ").append(getElapsedMillis()).append(" ms\n");
+        sb.append(String.format("%-18s%12s%12s%n", "Phase", "wall (ms)", "cpu (ms)"));
+        Map<String, Long> cpu = getCpuTimes();
+        for (Map.Entry<String, Long> e : getWallTimes().entrySet()) {
+            sb.append(String.format("%-18s%12d%12d%n", e.getKey(), e.getValue(), cpu.get(e.getKey())));
+        }
+        sb.append("Entries: ").append(getEntries1()).append(" / ").append(getEntries2()).append("\n");
+        sb.append("Peak index size: ").append(getPeakIndexSize()).append(" entries\n");
+        sb.append("Nested archives expanded: ").append(getNestedArchivesExpanded())
+                .append(" (max depth ").append(getMaxDepth()).append(")\n");
+        sb.append("Bytes read: ").append(getBytesRead()).append(", inflated: ").append(getBytesInflated());
+        return sb.toString();
+    }
+
+    /**
+     * Times a phase until it is stopped.
+     */
+    public final class Timer {
+        private final Phase phase;
+        private final boolean thread;
+        private final long wall;
+        private final long cpu;
+        private final Timer parent;
+        private long reportWall;
+        private long reportCpu;
+
+        private Timer(Phase phase, boolean thread) {
+            this.phase = phase;
+            this.thread = thread;
+            this.parent = currentTimer.get();
+            currentTimer.set(this);
+            this.wall = System.nanoTime();
+            this.cpu = thread ? threadCpuTime() : processCpuTime();
+        }
+
+        public void stop() {
+            long wallTime = System.nanoTime() - wall;
+            long cpuTime = (thread ? threadCpuTime() : processCpuTime()) - cpu;
+            if (currentTimer.get() == this) {
+                currentTimer.set(parent);
+            }
+            if (phase == Phase.REPORT && parent != null) {
+                parent.reportWall += wallTime;
+                parent.reportCpu += cpuTime;
+            }
+            addTime(phase, wallTime - reportWall, Math.max(cpuTime - reportCpu, 0));
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesInflated.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesInflated.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesInflated.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import java.util.Map;
+
+/**
+ * The statistics of a run of a {@link DifferenceCalculator}, as published through JMX.
+ *
+ * @author Maxime Falaize
+ * @see DifferenceCalculator#setStatisticsObjectName(javax.management.ObjectName)
+ */
+public interface StatisticsMXBean {
+
+    /**
+     * @return the elapsed time of the run so far, in milliseconds
+     */
+    long getElapsedMillis();
+
+    /**
+     * @return the wall time of each phase, in milliseconds, by phase name
+     */
+    Map<String, Long> getWallTimes();
+
+    /**
+     * @return the CPU time of each phase, in milliseconds, by phase name
+     */
+    Map<String, Long> getCpuTimes();
+
+    long getBytesRead();
+
+    long getBytesInflated();
+
+    long getEntries1();
+
+    long getEntries2();
+
+    long getNestedArchivesExpanded();
+
+    int getMaxDepth();
+
+    long getPeakIndexSize();
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * A {@link DiffListener} receiving the line differences of the changed text entries, when they are
+ * computed by the {@link DifferenceCalculator}. The other changed entries are still reported
+ * to {@link #fileChanged(String, ZipEntry, ZipEntry)}.
+ *
+ * @author Maxime Falaize
+ * @see DifferenceCalculator#setTextDiff(boolean)
+ */
+public interface TextDiffListener extends DiffListener {
+
+    /**
+     * Called in place of {@link #fileChanged(String, ZipEntry, ZipEntry)} for a changed text entry.
+     *
+     * @param diff The line differences of the entry
+     */
+    void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff);
+}
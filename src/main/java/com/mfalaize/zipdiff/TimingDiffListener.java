@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * Forwards the differences to a listener, timing it as the {@link Statistics.Phase#REPORT} phase of the
+ * statistics of the calculator. Its time is left out of the phase it is called from, so that a report written as
+ * the differences are found is not counted as comparing the archives.
+ *
+ * @author Maxime Falaize
+ */
+public class TimingDiffListener implements TextDiffListener {
+
+    private final DifferenceCalculator calculator;
+    private final DiffListener listener;
+
+    /**
+     * @param calculator The calculator whose current statistics are updated
+     * @param listener   The listener to time
+     */
+    public TimingDiffListener(DifferenceCalculator calculator, DiffListener listener) {
+        this.calculator = calculator;
+        this.listener = listener;
+    }
+
+    private Statistics.Timer time() {
+        return calculator.getStatistics().timeThread(Statistics.Phase.REPORT);
+    }
+
+    public void start(String filename1, String filename2) {
+        Statistics.Timer timer = time();
+        try {
+            listener.start(filename1, filename2);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void fileAdded(String fqn, ZipEntry ze) {
+        Statistics.Timer timer = time();
+        try {
+            listener.fileAdded(fqn, ze);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void fileRemoved(String fqn, ZipEntry ze) {
+        Statistics.Timer timer = time();
+        try {
+            listener.fileRemoved(fqn, ze);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+        Statistics.Timer timer = time();
+        try {
+            listener.fileChanged(fqn, z1, z2);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+        Statistics.Timer timer = time();
+        try {
+            if (listener instanceof TextDiffListener) {
+                ((TextDiffListener) listener).fileChanged(fqn, z1, z2, diff);
+            } else {
+                listener.fileChanged(fqn, z1, z2);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void fileIgnored(String fqn, ZipEntry ze) {
+        Statistics.Timer timer = time();
+        try {
+            listener.fileIgnored(fqn, ze);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public void end() {
+        Statistics.Timer timer = time();
+        try {
+            listener.end();
+        } finally {
+            timer.stop();
+        }
+    }
+}
@@ -20,12 +20,27 @@
 
 package com.mfalaize.zipdiff.ant;
 
+import com.mfalaize.zipdiff.DiffAlgorithm;
 import com.mfalaize.zipdiff.DifferenceCalculator;
 import com.mfalaize.zipdiff.Differences;
+import com.mfalaize.zipdiff.EntryFilter;
+import com.mfalaize.zipdiff.IndexCache;
+import com.mfalaize.zipdiff.Snapshot;
 import com.mfalaize.zipdiff.output.Builder;
 import com.mfalaize.zipdiff.output.HtmlBuilder;
+import com.mfalaize.zipdiff.output.PagedHtmlBuilder;
+import com.mfalaize.zipdiff.output.StreamingBuilder;
 import com.mfalaize.zipdiff.output.TextBuilder;
 import com.mfalaize.zipdiff.output.XmlBuilder;
+import com.mfalaize.zipdiff.scan.MappedArchiveReader;
+import com.mfalaize.zipdiff.scan.ScanEngine;
+import com.mfalaize.zipdiff.text.LineDiff;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
@@ -39,6 +54,37 @@ public class ZipDiffTask extends Task {
     private boolean ignoreTimestamps = false;
     private boolean ignoreCVSFiles = false;
     private boolean compareCRCValues = true;
+    private int threads = 1;
+    private ScanEngine engine = ScanEngine.ZIP_FILE;
+    private boolean forkJoin = false;
+    private boolean skipUnchangedArchives = false;
+    private boolean compareContents = false;
+    private boolean verifyUnchanged = false;
+    private boolean hashWholeArchives = false;
+    private int nestedMemoryThreshold = MappedArchiveReader.DEFAULT_MEMORY_THRESHOLD;
+    private boolean textDiff = false;
+    private int textDiffMaxSize = LineDiff.DEFAULT_MAX_SIZE;
+    private int htmlPageSize = 0;
+    private DiffAlgorithm algorithm = DiffAlgorithm.HASH;
+    private File indexCacheDir;
+    private File snapshot1;
+    private final List<PatternElement> ignores = new ArrayList<PatternElement>();
+    private final List<PatternElement> includes = new ArrayList<PatternElement>();
+
+    /**
+     * A nested element holding a pattern, see {@link EntryFilter}.
+     */
+    public static class PatternElement {
+        private String pattern;
+
+        public void setPattern(String pattern) {
+            this.pattern = pattern;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+    }
 
     public void setFilename1(String name) {
         filename1 = name;
@@ -48,6 +94,36 @@ public class ZipDiffTask extends Task {
         filename2 = name;
     }
 
+    /**
+     * @param file A snapshot of the first archive, compared in place of filename1
+     */
+    public void setSnapshot1(File file) {
+        snapshot1 = file;
+    }
+
+    public File getSnapshot1() {
+        return snapshot1;
+    }
+
+    /**
+     * @return a nested ignore element, whose pattern matches entries to exclude from the comparison
+     */
+    public PatternElement createIgnore() {
+        PatternElement ignore = new PatternElement();
+        ignores.add(ignore);
+        return ignore;
+    }
+
+    /**
+     * @return a nested include element, whose pattern matches entries to compare. When there is none,
+     * all the entries are compared.
+     */
+    public PatternElement createInclude() {
+        PatternElement include = new PatternElement();
+        includes.add(include);
+        return include;
+    }
+
     public void setIgnoreTimestamps(boolean b) {
         ignoreTimestamps = b;
     }
@@ -72,6 +148,127 @@ public class ZipDiffTask extends Task {
         return compareCRCValues;
     }
 
+    public void setThreads(int n) {
+        threads = n;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setEngine(String name) {
+        try {
+            engine = ScanEngine.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BuildException("invalid engine: " + name);
+        }
+    }
+
+    public ScanEngine getEngine() {
+        return engine;
+    }
+
+    public void setAlgorithm(String name) {
+        try {
+            algorithm = DiffAlgorithm.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BuildException("invalid algorithm: " + name);
+        }
+    }
+
+    public DiffAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setIndexCacheDir(File dir) {
+        indexCacheDir = dir;
+    }
+
+    public File getIndexCacheDir() {
+        return indexCacheDir;
+    }
+
+    public void setForkJoin(boolean b) {
+        forkJoin = b;
+    }
+
+    public boolean getForkJoin() {
+        return forkJoin;
+    }
+
+    public void setSkipUnchangedArchives(boolean b) {
+        skipUnchangedArchives = b;
+    }
+
+    public boolean getSkipUnchangedArchives() {
+        return skipUnchangedArchives;
+    }
+
+    public void setCompareContents(boolean b) {
+        compareContents = b;
+    }
+
+    public boolean getCompareContents() {
+        return compareContents;
+    }
+
+    public void setVerifyUnchanged(boolean b) {
+        verifyUnchanged = b;
+    }
+
+    public boolean getVerifyUnchanged() {
+        return verifyUnchanged;
+    }
+
+    public void setHashWholeArchives(boolean b) {
+        hashWholeArchives = b;
+    }
+
+    public boolean getHashWholeArchives() {
+        return hashWholeArchives;
+    }
+
+    /**
+     * @param n The size in bytes of the largest nested archive buffered in memory rather than in a temporary file
+     */
+    public void setNestedMemoryThreshold(int n) {
+        nestedMemoryThreshold = n;
+    }
+
+    public int getNestedMemoryThreshold() {
+        return nestedMemoryThreshold;
+    }
+
+    public void setTextDiff(boolean b) {
+        textDiff = b;
+    }
+
+    public boolean getTextDiff() {
+        return textDiff;
+    }
+
+    /**
+     * @param n The size in bytes of the largest text entry whose lines are compared
+     */
+    public void setTextDiffMaxSize(int n) {
+        textDiffMaxSize = n;
+    }
+
+    public int getTextDiffMaxSize() {
+        return textDiffMaxSize;
+    }
+
+    /**
+     * @param n The number of entries in each data file of the html report, or 0 to write a single page
+     */
+    public void setHtmlPageSize(int n) {
+        htmlPageSize = n;
+    }
+
+    public int getHtmlPageSize() {
+        return htmlPageSize;
+    }
+
     public void execute() throws BuildException {
         validate();
 
@@ -79,6 +276,16 @@ public class ZipDiffTask extends Task {
         // this.log("Filename2=" + filename2, Project.MSG_DEBUG);
         // this.log("destfile=" + getDestFile(), Project.MSG_DEBUG);
 
+        Builder builder = createBuilder();
+        if (builder instanceof PagedHtmlBuilder) {
+            streamPagedHtml((PagedHtmlBuilder) builder);
+            return;
+        }
+        if (builder instanceof StreamingBuilder) {
+            streamDestFile((StreamingBuilder) builder);
+            return;
+        }
+
         Differences d = calculateDifferences();
 
         try {
@@ -89,12 +296,14 @@ public class ZipDiffTask extends Task {
 
     }
 
-    protected void writeDestFile(Differences d) throws java.io.IOException {
+    protected Builder createBuilder() {
         String destfilename = getDestFile();
 
         Builder builder;
 
-        if (destfilename.endsWith(".html")) {
+        if (destfilename.endsWith(".html") && getHtmlPageSize() > 0) {
+            builder = new PagedHtmlBuilder(getHtmlPageSize());
+        } else if (destfilename.endsWith(".html")) {
             builder = new HtmlBuilder();
         } else if (destfilename.endsWith(".xml")) {
             builder = new XmlBuilder();
@@ -102,7 +311,38 @@ public class ZipDiffTask extends Task {
             builder = new TextBuilder();
         }
 
-        builder.build(destfilename, d);
+        return builder;
+    }
+
+    protected void writeDestFile(Differences d) throws java.io.IOException {
+        createBuilder().build(getDestFile(), d);
+    }
+
+    /**
+     * Writes the differences to the destination file as they are found, without keeping them in memory.
+     */
+    protected void streamDestFile(StreamingBuilder builder) throws BuildException {
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(getDestFile()));
+            try {
+                createCalculator().getDifferences(builder.createListener(out));
+            } finally {
+                out.close();
+            }
+        } catch (java.io.IOException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    /**
+     * Writes the pages of the html report as the differences are found.
+     */
+    protected void streamPagedHtml(PagedHtmlBuilder builder) throws BuildException {
+        try {
+            createCalculator().getDifferences(builder.createListener(getDestFile()));
+        } catch (java.io.IOException ex) {
+            throw new BuildException(ex);
+        }
     }
 
     public String getDestFile() {
@@ -114,19 +354,10 @@ public class ZipDiffTask extends Task {
     }
 
     protected Differences calculateDifferences() throws BuildException {
-        DifferenceCalculator calculator;
-
         Differences d;
 
         try {
-            calculator = new DifferenceCalculator(filename1, filename2);
-            calculator.setCompareCRCValues(getCompareCRCValues());
-            calculator.setIgnoreTimestamps(getIgnoreTimestamps());
-            calculator.setIgnoreCVSFiles(getIgnoreCVSFiles());
-
-            // todo : calculator.setFilenamesToIgnore(patterns);
-
-            d = calculator.getDifferences();
+            d = createCalculator().getDifferences();
         } catch (java.io.IOException ex) {
             throw new BuildException(ex);
         }
@@ -134,15 +365,87 @@ public class ZipDiffTask extends Task {
         return d;
     }
 
+    protected DifferenceCalculator createCalculator() throws java.io.IOException {
+        DifferenceCalculator calculator;
+
+        if (getSnapshot1() != null) {
+            calculator = new DifferenceCalculator(new Snapshot(getSnapshot1()), new File(filename2));
+        } else {
+            calculator = new DifferenceCalculator(filename1, filename2);
+        }
+        calculator.setCompareCRCValues(getCompareCRCValues());
+        calculator.setIgnoreTimestamps(getIgnoreTimestamps());
+        calculator.setIgnoreCVSFiles(getIgnoreCVSFiles());
+        calculator.setThreadCount(getThreads());
+        calculator.setScanEngine(getEngine());
+        calculator.setDiffAlgorithm(getAlgorithm());
+        if (getIndexCacheDir() != null) {
+            calculator.setIndexCache(new IndexCache(getIndexCacheDir()));
+        }
+        calculator.setForkJoinExpansion(getForkJoin());
+        calculator.setSkipUnchangedNestedArchives(getSkipUnchangedArchives());
+        calculator.setCompareContents(getCompareContents());
+        calculator.setVerifyUnchangedEntries(getVerifyUnchanged());
+        calculator.setHashWholeArchives(getHashWholeArchives());
+        calculator.setNestedArchiveMemoryThreshold(getNestedMemoryThreshold());
+        calculator.setTextDiff(getTextDiff());
+        calculator.getLineDiff().setMaxSize(getTextDiffMaxSize());
+
+        if (!ignores.isEmpty()) {
+            calculator.setIgnoreFilter(new EntryFilter(getPatterns(ignores)));
+        }
+        if (!includes.isEmpty()) {
+            calculator.setIncludeFilter(new EntryFilter(getPatterns(includes)));
+        }
+
+        return calculator;
+    }
+
+    private static List<String> getPatterns(List<PatternElement> elements) {
+        List<String> patterns = new ArrayList<String>(elements.size());
+        for (PatternElement element : elements) {
+            patterns.add(element.getPattern());
+        }
+        return patterns;
+    }
+
     protected void validate() throws BuildException {
-        if ((filename1 == null) || (filename1.length() < 1)) {
-            throw new BuildException("filename1 is required");
+        if (((filename1 == null) || (filename1.length() < 1)) && getSnapshot1() == null) {
+            throw new BuildException("filename1 or snapshot1 is required");
         }
 
         if ((filename2 == null) || (filename2.length() < 1)) {
             throw new BuildException("filename2 is required");
         }
 
+        if (getThreads() < 1) {
+            throw new BuildException("threads must be at least 1");
+        }
+
+        for (PatternElement ignore : ignores) {
+            if (ignore.getPattern() == null || ignore.getPattern().length() < 1) {
+                throw new BuildException("the pattern of ignore is required");
+            }
+        }
+
+        for (PatternElement include : includes) {
+            if (include.getPattern() == null || include.getPattern().length() < 1) {
+                throw new BuildException("the pattern of include is required");
+            }
+        }
+
+        if (getNestedMemoryThreshold() < 0) {
+            throw new BuildException("nestedMemoryThreshold must not be negative");
+        }
+
+        if (getTextDiffMaxSize() < 0) {
+            throw new BuildException("textDiffMaxSize must not be negative");
+        }
+
+        if (getHtmlPageSize() < 0) {
+            throw new BuildException("htmlPageSize must not be negative");
+        }
+
         String destinationfile = getDestFile();
 
         if ((destinationfile == null) || (destinationfile.length() < 1)) {
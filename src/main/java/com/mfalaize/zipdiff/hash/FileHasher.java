@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hashes whole files with {@link XxHash64}. Each file is split into chunks which are mapped in memory
+ * and hashed in parallel, then the hashes of the chunks are hashed in order along with the length of the file.
+ * <p/>
+ * The hash of a file therefore depends on the chunk size: only hashes computed with the same chunk size
+ * can be compared.
+ *
+ * @author Maxime Falaize
+ */
+public class FileHasher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * @param pool The pool hashing the chunks
+     */
+    public FileHasher(ForkJoinPool pool) {
+        this(pool, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool      The pool hashing the chunks
+     * @param chunkSize The number of bytes hashed by each task
+     */
+    public FileHasher(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be at least 1: " + chunkSize);
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Hashes the files, all their chunks being hashed in parallel.
+     *
+     * @param files The files to hash
+     * @return the hash of each file, in the order of the arguments
+     * @throws IOException if a file cannot be read
+     */
+    public long[] hash(File... files) throws IOException {
+        RandomAccessFile[] opened = new RandomAccessFile[files.length];
+        try {
+            Chunk[][] chunks = new Chunk[files.length][];
+            int count = 0;
+            for (int i = 0; i < files.length; i++) {
+                opened[i] = new RandomAccessFile(files[i], "r");
+                chunks[i] = split(opened[i].getChannel());
+                count += chunks[i].length;
+            }
+
+            Chunk[] all = new Chunk[count];
+            int n = 0;
+            for (Chunk[] fileChunks : chunks) {
+                System.arraycopy(fileChunks, 0, all, n, fileChunks.length);
+                n += fileChunks.length;
+            }
+            if (count > 0) {
+                try {
+                    pool.invoke(new HashTask(all, 0, count));
+                } catch (HashException e) {
+                    throw unwrap(e);
+                }
+            }
+
+            long[] hashes = new long[files.length];
+            for (int i = 0; i < files.length; i++) {
+                hashes[i] = combine(opened[i].length(), chunks[i]);
+            }
+            return hashes;
+        } finally {
+            for (RandomAccessFile file : opened) {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    private Chunk[] split(FileChannel channel) throws IOException {
+        long length = channel.size();
+        Chunk[] chunks = new Chunk[(int) ((length + chunkSize - 1) / chunkSize)];
+        for (int i = 0; i < chunks.length; i++) {
+            long offset = (long) i * chunkSize;
+            chunks[i] = new Chunk(channel, offset, (int) Math.min(chunkSize, length - offset));
+        }
+        return chunks;
+    }
+
+    private static long combine(long length, Chunk[] chunks) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * (chunks.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(length);
+        for (Chunk chunk : chunks) {
+            buffer.putLong(chunk.hash);
+        }
+        XxHash64 hash = new XxHash64();
+        hash.update(buffer.array(), 0, buffer.position());
+        return hash.getValue();
+    }
+
+    private static class Chunk {
+        private final FileChannel channel;
+        private final long offset;
+        private final int length;
+        private long hash;
+
+        Chunk(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void hash() throws IOException {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            byte[] buffer = BUFFERS.get();
+            XxHash64 xxHash = new XxHash64();
+            while (mapped.hasRemaining()) {
+                int n = Math.min(buffer.length, mapped.remaining());
+                mapped.get(buffer, 0, n);
+                xxHash.update(buffer, 0, n);
+            }
+            hash = xxHash.getValue();
+        }
+    }
+
+    /**
+     * Hashes a range of chunks, splitting it in two until a single chunk is left.
+     */
+    private static class HashTask extends RecursiveAction {
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        HashTask(Chunk[] chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    chunks[from].hash();
+                } catch (IOException e) {
+                    throw new HashException(e);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(chunks, from, middle), new HashTask(chunks, middle, to));
+            }
+        }
+    }
+
+    private static IOException unwrap(RuntimeException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return (IOException) t;
+            }
+        }
+        throw e;
+    }
+
+    private static class HashException extends RuntimeException {
+        HashException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.hash;
+
+import java.util.zip.Checksum;
+
+/**
+ * Streaming implementation of the 64 bits xxHash algorithm (XXH64). It is a fast non-cryptographic
+ * digest, used to tell whether two contents are the same without keeping them in memory.
+ * <p/>
+ * Instances are not thread-safe, but can be reused after {@link #reset()}.
+ *
+ * @author Maxime Falaize
+ * @see <a href="https://github.com/Cyan4973/xxHash">xxHash</a>
+ */
+public class XxHash64 implements Checksum {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private final long seed;
+    private final byte[] memory = new byte[32];
+    private int memorySize;
+    private long totalLength;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    public XxHash64() {
+        this(0);
+    }
+
+    public XxHash64(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    public void reset() {
+        v1 = seed + PRIME64_1 + PRIME64_2;
+        v2 = seed + PRIME64_2;
+        v3 = seed;
+        v4 = seed - PRIME64_1;
+        memorySize = 0;
+        totalLength = 0;
+    }
+
+    public void update(int b) {
+        memory[memorySize++] = (byte) b;
+        totalLength++;
+        if (memorySize == 32) {
+            consumeMemory();
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        totalLength += len;
+        int end = off + len;
+
+        if (memorySize + len < 32) {
+            System.arraycopy(b, off, memory, memorySize, len);
+            memorySize += len;
+            return;
+        }
+
+        if (memorySize > 0) {
+            int fill = 32 - memorySize;
+            System.arraycopy(b, off, memory, memorySize, fill);
+            off += fill;
+            consumeMemory();
+        }
+
+        long a1 = v1;
+        long a2 = v2;
+        long a3 = v3;
+        long a4 = v4;
+        while (off + 32 <= end) {
+            a1 = round(a1, getLong(b, off));
+            a2 = round(a2, getLong(b, off + 8));
+            a3 = round(a3, getLong(b, off + 16));
+            a4 = round(a4, getLong(b, off + 24));
+            off += 32;
+        }
+        v1 = a1;
+        v2 = a2;
+        v3 = a3;
+        v4 = a4;
+
+        if (off < end) {
+            memorySize = end - off;
+            System.arraycopy(b, off, memory, 0, memorySize);
+        }
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    private void consumeMemory() {
+        v1 = round(v1, getLong(memory, 0));
+        v2 = round(v2, getLong(memory, 8));
+        v3 = round(v3, getLong(memory, 16));
+        v4 = round(v4, getLong(memory, 24));
+        memorySize = 0;
+    }
+
+    /**
+     * @return the digest of all the bytes given since the creation or the last reset
+     */
+    public long getValue() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+        h += totalLength;
+
+        int p = 0;
+        while (p + 8 <= memorySize) {
+            h ^= round(0, getLong(memory, p));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            p += 8;
+        }
+        if (p + 4 <= memorySize) {
+            h ^= (getInt(memory, p) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            p += 4;
+        }
+        while (p < memorySize) {
+            h ^= (memory[p] & 0xFF) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+            p++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * @return the number of bytes given since the creation or the last reset
+     */
+    public long getLength() {
+        return totalLength;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (b[off] & 0xFFL) | (b[off + 1] & 0xFFL) << 8 | (b[off + 2] & 0xFFL) << 16 | (b[off + 3] & 0xFFL) << 24
+                | (b[off + 4] & 0xFFL) << 32 | (b[off + 5] & 0xFFL) << 40 | (b[off + 6] & 0xFFL) << 48
+                | (b[off + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.output;
+
+import com.mfalaize.zipdiff.BatchCalculator;
+import com.mfalaize.zipdiff.DifferenceCounter;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Writes the summary of a batch: one line per pair with its status and the number of added, removed and
+ * changed entries, separated by tabs, then the totals.
+ *
+ * @author Maxime Falaize
+ */
+public class BatchSummaryBuilder {
+
+    public void build(OutputStream out, List<BatchCalculator.Result> results) {
+        PrintWriter pw = new PrintWriter(out);
+        int different = 0;
+        int failed = 0;
+        pw.println("status\tadded\tremoved\tchanged\tfile1\tfile2");
+        for (BatchCalculator.Result result : results) {
+            DifferenceCounter counter = result.getCounter();
+            String status;
+            if (result.getError() != null) {
+                status = "error";
+                failed++;
+            } else if (result.hasDifferences()) {
+                status = "different";
+                different++;
+            } else {
+                status = "same";
+            }
+            pw.print(status);
+            pw.print('\t');
+            pw.print(counter.getAddedCount());
+            pw.print('\t');
+            pw.print(counter.getRemovedCount());
+            pw.print('\t');
+            pw.print(counter.getChangedCount());
+            pw.print('\t');
+            pw.print(result.getFile1());
+            pw.print('\t');
+            pw.println(result.getFile2());
+            if (result.getError() != null) {
+                pw.print("#\t");
+                pw.println(result.getError());
+            }
+        }
+        pw.println("# " + results.size() + " pairs compared, " + different + " different, " + failed + " failed");
+        pw.flush();
+    }
+
+    public void build(String filename, List<BatchCalculator.Result> results) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+        try {
+            build(out, results);
+        } finally {
+            out.close();
+        }
+    }
+}
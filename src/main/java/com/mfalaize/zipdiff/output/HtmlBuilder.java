@@ -20,9 +20,11 @@
 package com.mfalaize.zipdiff.output;
 
 import com.mfalaize.zipdiff.Differences;
+import com.mfalaize.zipdiff.text.TextDiff;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -66,6 +68,9 @@ public class HtmlBuilder extends AbstractBuilder {
         writeAdded(pw, d.getAdded().keySet());
         writeRemoved(pw, d.getRemoved().keySet());
         writeChanged(pw, d.getChanged().keySet());
+        if (!d.getTextDiffs().isEmpty()) {
+            writeTextDiffs(pw, d.getTextDiffs());
+        }
         pw.println("<hr>");
         pw.println("<p>");
         pw.println("Generated at " + new java.util.Date());
@@ -90,6 +95,38 @@ public class HtmlBuilder extends AbstractBuilder {
         writeDiffSet(pw, "Changed", changed);
     }
 
+    /**
+     * Writes the hunks of the changed text entries, one preformatted block per entry.
+     */
+    protected void writeTextDiffs(PrintWriter pw, Map<String, TextDiff> textDiffs) {
+        pw.println("<TABLE CELLSPACING=\"1\" CELLPADDING=\"3\" WIDTH=\"100%\" BORDER=\"0\">");
+        pw.println("<tr>");
+        pw.println("<td class=\"diffs\" colspan=\"2\">Text differences (" + textDiffs.size() + " entries)</td>");
+        pw.println("</tr>");
+        for (Map.Entry<String, TextDiff> e : textDiffs.entrySet()) {
+            pw.println("<tr>");
+            pw.println("<td width=\"20\">");
+            pw.println("</td>");
+            pw.println("<td>");
+            pw.print("<b>");
+            pw.print(escapeHtml(e.getKey()));
+            pw.println("</b>");
+            pw.print("<pre>");
+            pw.print(escapeHtml(formatTextDiff(e.getValue())));
+            pw.println("</pre>");
+            pw.println("</td>");
+            pw.println("</tr>");
+        }
+        pw.println("</table>");
+    }
+
+    /**
+     * @return the hunks of a diff in the unified diff format, or why there is none
+     */
+    protected static String formatTextDiff(TextDiff diff) {
+        return diff.isSkipped() ? "(lines not compared: " + diff.getSkipReason() + ")\n" : diff.toString();
+    }
+
     protected void writeDiffSet(PrintWriter pw, String name, Set<String> s) {
         pw.println("<TABLE CELLSPACING=\"1\" CELLPADDING=\"3\" WIDTH=\"100%\" BORDER=\"0\">");
         pw.println("<tr>");
@@ -114,6 +151,30 @@ public class HtmlBuilder extends AbstractBuilder {
 
     }
 
+    protected static String escapeHtml(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     protected String getStyleTag() {
         StringBuilder sb = new StringBuilder();
 
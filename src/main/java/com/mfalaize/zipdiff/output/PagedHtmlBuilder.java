@@ -0,0 +1,376 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.output;
+
+import com.mfalaize.zipdiff.DiffListener;
+import com.mfalaize.zipdiff.Differences;
+import com.mfalaize.zipdiff.TextDiffListener;
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.ZipEntry;
+
+/**
+ * Generates an html report made of a small index page and of data files holding a fixed number of
+ * entries each. The data files are scripts loaded by the browser when a page is displayed or when
+ * the entries are filtered, so that reports with any number of differences stay usable. They are
+ * written in a directory named after the index page, e.g. <code>report_files</code> for
+ * <code>report.html</code>.
+ * <p/>
+ * The differences are written as they are found and only the counts are kept in memory. When the
+ * report is written to a stream rather than to a file, the single page output of {@link HtmlBuilder}
+ * is used.
+ *
+ * @author Maxime Falaize
+ */
+public class PagedHtmlBuilder extends HtmlBuilder {
+
+    public static final int DEFAULT_ENTRIES_PER_PAGE = 1000;
+
+    private static final String DATA_FILE_PREFIX = "page-";
+
+    private int entriesPerPage = DEFAULT_ENTRIES_PER_PAGE;
+
+    public PagedHtmlBuilder() {
+    }
+
+    public PagedHtmlBuilder(int entriesPerPage) {
+        setEntriesPerPage(entriesPerPage);
+    }
+
+    public void setEntriesPerPage(int entriesPerPage) {
+        if (entriesPerPage < 1) {
+            throw new IllegalArgumentException("entriesPerPage must be at least 1: " + entriesPerPage);
+        }
+        this.entriesPerPage = entriesPerPage;
+    }
+
+    public int getEntriesPerPage() {
+        return entriesPerPage;
+    }
+
+    @Override
+    public void build(String filename, Differences d) throws IOException {
+        d.accept(createListener(filename));
+    }
+
+    /**
+     * @param filename The index page to write
+     * @return a listener writing the data files as the differences are found, and the index page at the end
+     * @throws IOException if the data directory cannot be created
+     */
+    public DiffListener createListener(String filename) throws IOException {
+        File index = new File(filename);
+        File dataDirectory = getDataDirectory(index);
+        if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + dataDirectory);
+        }
+        // do not leave pages of a previous report which had more of them
+        File[] previous = dataDirectory.listFiles();
+        if (previous != null) {
+            for (File f : previous) {
+                if (f.getName().startsWith(DATA_FILE_PREFIX)) {
+                    f.delete();
+                }
+            }
+        }
+        return new PagedListener(index, dataDirectory);
+    }
+
+    /**
+     * @param index The index page
+     * @return the directory holding the data files of the given index page
+     */
+    public static File getDataDirectory(File index) {
+        String name = index.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(index.getAbsoluteFile().getParentFile(), name + "_files");
+    }
+
+    protected static String getDataFileName(int page) {
+        return DATA_FILE_PREFIX + page + ".js";
+    }
+
+    protected void writeIndex(PrintWriter pw, String filename1, String filename2, String dataDirectory,
+                              int pages, int added, int removed, int changed) {
+        pw.println("<html>");
+        pw.println("<head>");
+        pw.println("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">");
+        pw.println("<title>File differences</title>");
+        pw.println(getStyleTag());
+        pw.println("</head>");
+        pw.println("<body text=\"#000000\" vlink=\"#000000\" alink=\"#000000\" link=\"#000000\">");
+
+        pw.print("<p>First file: ");
+        pw.print(escapeHtml(filename1 == null ? "filename1.zip" : filename1));
+        pw.println("<br>");
+        pw.print("Second file: ");
+        pw.print(escapeHtml(filename2 == null ? "filename2.zip" : filename2));
+        pw.println("</p>");
+
+        pw.println("<p class=\"diffs\">Added (" + added + " entries), Removed (" + removed
+                + " entries), Changed (" + changed + " entries)</p>");
+        pw.println("<p>");
+        pw.println("Filter: <input id=\"filter\" type=\"text\" size=\"40\">");
+        pw.println("<label><input id=\"added\" type=\"checkbox\" checked>Added</label>");
+        pw.println("<label><input id=\"removed\" type=\"checkbox\" checked>Removed</label>");
+        pw.println("<label><input id=\"changed\" type=\"checkbox\" checked>Changed</label>");
+        pw.println("</p>");
+        pw.println("<p id=\"pager\"></p>");
+        pw.println("<p id=\"status\"></p>");
+        pw.println("<table id=\"entries\" cellspacing=\"1\" cellpadding=\"3\" width=\"100%\" border=\"0\"></table>");
+
+        pw.println("<script type=\"text/javascript\">");
+        pw.print("var zipdiff = { directory: ");
+        writeJsString(pw, dataDirectory);
+        pw.println(", pages: " + pages + ", maxResults: " + entriesPerPage + " };");
+        pw.println(getScript());
+        pw.println("</script>");
+
+        pw.println("<hr>");
+        pw.println("<p>");
+        pw.println("Generated at " + new java.util.Date());
+        pw.println("</p>");
+        pw.println("</body>");
+        pw.println("</html>");
+    }
+
+    /**
+     * The script of the index page. Each data file calls <code>zipdiff.load(page, entries)</code>
+     * where an entry is an array of its type, its name and its sizes, followed by its line differences
+     * for a changed text entry.
+     */
+    protected String getScript() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("zipdiff.callbacks = {};\n");
+        sb.append("zipdiff.request = 0;\n");
+        sb.append("zipdiff.names = { a: 'added', r: 'removed', c: 'changed' };\n");
+        sb.append("zipdiff.load = function (page, entries) {\n");
+        sb.append("  var callback = zipdiff.callbacks[page];\n");
+        sb.append("  delete zipdiff.callbacks[page];\n");
+        sb.append("  if (callback) { callback(entries); }\n");
+        sb.append("};\n");
+        sb.append("zipdiff.fetch = function (page, callback) {\n");
+        sb.append("  var script = document.createElement('script');\n");
+        sb.append("  zipdiff.callbacks[page] = callback;\n");
+        sb.append("  script.src = zipdiff.directory + '/" + DATA_FILE_PREFIX + "' + page + '.js';\n");
+        sb.append("  script.onload = script.onerror = function () { script.parentNode.removeChild(script); };\n");
+        sb.append("  document.getElementsByTagName('head')[0].appendChild(script);\n");
+        sb.append("};\n");
+        sb.append("zipdiff.render = function (entries) {\n");
+        sb.append("  var table = document.getElementById('entries');\n");
+        sb.append("  while (table.rows.length > 0) { table.deleteRow(0); }\n");
+        sb.append("  for (var i = 0; i < entries.length; i++) {\n");
+        sb.append("    var row = table.insertRow(-1), e = entries[i];\n");
+        sb.append("    row.insertCell(-1).appendChild(document.createTextNode(zipdiff.names[e[0]]));\n");
+        sb.append("    row.insertCell(-1).appendChild(document.createTextNode(e[1]));\n");
+        sb.append("    row.insertCell(-1).appendChild(document.createTextNode(e.length > 3 ? e[2] + ' : ' + e[3] : e[2]));\n");
+        sb.append("    if (e.length > 4) {\n");
+        sb.append("      var cell = table.insertRow(-1).insertCell(-1), pre = document.createElement('pre');\n");
+        sb.append("      cell.colSpan = 3;\n");
+        sb.append("      pre.appendChild(document.createTextNode(e[4]));\n");
+        sb.append("      cell.appendChild(pre);\n");
+        sb.append("    }\n");
+        sb.append("  }\n");
+        sb.append("};\n");
+        sb.append("zipdiff.matches = function (e, text) {\n");
+        sb.append("  return document.getElementById(zipdiff.names[e[0]]).checked && e[1].indexOf(text) >= 0;\n");
+        sb.append("};\n");
+        sb.append("zipdiff.showPage = function (page) {\n");
+        sb.append("  var request = ++zipdiff.request, pager = document.getElementById('pager');\n");
+        sb.append("  pager.innerHTML = '';\n");
+        sb.append("  for (var i = 0; i < zipdiff.pages; i++) {\n");
+        sb.append("    var link = document.createElement(i == page ? 'b' : 'a');\n");
+        sb.append("    link.appendChild(document.createTextNode(String(i + 1)));\n");
+        sb.append("    if (i != page) { link.href = '#'; link.onclick = (function (p) { return function () { zipdiff.showPage(p); return false; }; })(i); }\n");
+        sb.append("    pager.appendChild(link);\n");
+        sb.append("    pager.appendChild(document.createTextNode(' '));\n");
+        sb.append("  }\n");
+        sb.append("  document.getElementById('status').innerHTML = zipdiff.pages == 0 ? 'No differences.' : '';\n");
+        sb.append("  if (zipdiff.pages == 0) { zipdiff.render([]); return; }\n");
+        sb.append("  zipdiff.fetch(page, function (entries) {\n");
+        sb.append("    if (request == zipdiff.request) { zipdiff.render(entries); }\n");
+        sb.append("  });\n");
+        sb.append("};\n");
+        sb.append("zipdiff.search = function () {\n");
+        sb.append("  var text = document.getElementById('filter').value, request = ++zipdiff.request;\n");
+        sb.append("  var all = document.getElementById('added').checked && document.getElementById('removed').checked\n");
+        sb.append("      && document.getElementById('changed').checked;\n");
+        sb.append("  if (text == '' && all) { zipdiff.showPage(0); return; }\n");
+        sb.append("  document.getElementById('pager').innerHTML = '';\n");
+        sb.append("  var results = [], page = 0;\n");
+        sb.append("  var next = function () {\n");
+        sb.append("    if (request != zipdiff.request) { return; }\n");
+        sb.append("    if (page >= zipdiff.pages || results.length >= zipdiff.maxResults) {\n");
+        sb.append("      document.getElementById('status').innerHTML = results.length\n");
+        sb.append("          + (page < zipdiff.pages ? '+' : '') + ' matching entries';\n");
+        sb.append("      zipdiff.render(results);\n");
+        sb.append("      return;\n");
+        sb.append("    }\n");
+        sb.append("    document.getElementById('status').innerHTML = 'Searching ' + (page + 1) + ' / ' + zipdiff.pages;\n");
+        sb.append("    zipdiff.fetch(page++, function (entries) {\n");
+        sb.append("      for (var i = 0; i < entries.length && results.length < zipdiff.maxResults; i++) {\n");
+        sb.append("        if (zipdiff.matches(entries[i], text)) { results.push(entries[i]); }\n");
+        sb.append("      }\n");
+        sb.append("      next();\n");
+        sb.append("    });\n");
+        sb.append("  };\n");
+        sb.append("  next();\n");
+        sb.append("};\n");
+        sb.append("document.getElementById('filter').onkeyup = zipdiff.search;\n");
+        sb.append("document.getElementById('added').onclick = zipdiff.search;\n");
+        sb.append("document.getElementById('removed').onclick = zipdiff.search;\n");
+        sb.append("document.getElementById('changed').onclick = zipdiff.search;\n");
+        sb.append("zipdiff.showPage(0);");
+
+        return sb.toString();
+    }
+
+    /**
+     * Writes a javascript string literal which can be embedded in a script element.
+     */
+    protected static void writeJsString(PrintWriter pw, String s) {
+        pw.print('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                pw.print('\\');
+                pw.print(c);
+            } else if (c < 0x20 || c == '<' || c == '>' || c == '\u2028' || c == '\u2029') {
+                pw.print(String.format("\\u%04x", (int) c));
+            } else {
+                pw.print(c);
+            }
+        }
+        pw.print('"');
+    }
+
+    private static PrintWriter openWriter(File f) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f)), "UTF-8"));
+    }
+
+    private class PagedListener implements TextDiffListener {
+        private final File index;
+        private final File dataDirectory;
+        private String filename1;
+        private String filename2;
+        private PrintWriter page;
+        private int pages;
+        private int entriesInPage;
+        private int added;
+        private int removed;
+        private int changed;
+
+        PagedListener(File index, File dataDirectory) {
+            this.index = index;
+            this.dataDirectory = dataDirectory;
+        }
+
+        public void start(String filename1, String filename2) {
+            this.filename1 = filename1;
+            this.filename2 = filename2;
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+            added++;
+            writeEntry("a", fqn, ze, null, null);
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+            removed++;
+            writeEntry("r", fqn, ze, null, null);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+            changed++;
+            writeEntry("c", fqn, z1, z2, null);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+            changed++;
+            writeEntry("c", fqn, z1, z2, diff);
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+            // ignored files are not reported
+        }
+
+        public void end() {
+            try {
+                closePage();
+                PrintWriter pw = openWriter(index);
+                try {
+                    writeIndex(pw, filename1, filename2, dataDirectory.getName(), pages, added, removed, changed);
+                } finally {
+                    pw.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeEntry(String type, String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+            try {
+                if (page == null) {
+                    page = openWriter(new File(dataDirectory, getDataFileName(pages)));
+                    page.print("zipdiff.load(" + pages + ", [");
+                } else {
+                    page.println(',');
+                }
+                page.print("[\"" + type + "\",");
+                writeJsString(page, fqn);
+                page.print(',');
+                page.print(z1 == null ? -1 : z1.getSize());
+                if (z2 != null) {
+                    page.print(',');
+                    page.print(z2.getSize());
+                }
+                if (diff != null) {
+                    page.print(',');
+                    writeJsString(page, formatTextDiff(diff));
+                }
+                page.print(']');
+                if (++entriesInPage == entriesPerPage) {
+                    closePage();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void closePage() throws IOException {
+            if (page != null) {
+                page.println("]);");
+                page.close();
+                if (page.checkError()) {
+                    throw new IOException("Cannot write " + getDataFileName(pages));
+                }
+                page = null;
+                pages++;
+                entriesInPage = 0;
+            }
+        }
+    }
+}
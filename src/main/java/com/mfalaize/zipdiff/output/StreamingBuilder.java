@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.output;
+
+import com.mfalaize.zipdiff.DiffListener;
+
+import java.io.OutputStream;
+
+/**
+ * A {@link Builder} which can also write the differences as they are found,
+ * without waiting for a complete {@link com.mfalaize.zipdiff.Differences}.
+ *
+ * @author Maxime Falaize
+ */
+public interface StreamingBuilder extends Builder {
+
+    /**
+     * @param out The stream to write to. It is flushed by {@link DiffListener#end()} but not closed.
+     * @return a listener writing the differences it receives
+     */
+    DiffListener createListener(OutputStream out);
+}
@@ -19,18 +19,89 @@
  */
 package com.mfalaize.zipdiff.output;
 
+import com.mfalaize.zipdiff.DiffListener;
 import com.mfalaize.zipdiff.Differences;
+import com.mfalaize.zipdiff.TextDiffListener;
+import com.mfalaize.zipdiff.text.TextDiff;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.zip.ZipEntry;
 
 /**
  * @author Sean C. Sullivan
  */
-public class TextBuilder extends AbstractBuilder {
+public class TextBuilder extends AbstractBuilder implements StreamingBuilder {
     public void build(OutputStream out, Differences d) {
         PrintWriter pw = new PrintWriter(out);
         pw.println(d.toString());
         pw.flush();
     }
+
+    /**
+     * The differences are written one per line as they are found, in the format of
+     * {@link Differences#toString()}, and the counts are written at the end. The hunks of a changed text entry
+     * are written under it.
+     */
+    public DiffListener createListener(OutputStream out) {
+        return new TextListener(new PrintWriter(out));
+    }
+
+    private static class TextListener implements TextDiffListener {
+        private final PrintWriter pw;
+        private String filename2;
+        private int added;
+        private int removed;
+        private int changed;
+
+        TextListener(PrintWriter pw) {
+            this.pw = pw;
+        }
+
+        public void start(String filename1, String filename2) {
+            this.filename2 = filename2;
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+            added++;
+            pw.print("\t[added] ");
+            pw.println(fqn);
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+            removed++;
+            pw.print("\t[removed] ");
+            pw.println(fqn);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+            changed++;
+            pw.print("\t[changed] ");
+            pw.print(fqn);
+            pw.print("  ( size ");
+            pw.print(z1.getSize());
+            pw.print(" : ");
+            pw.print(z2.getSize());
+            pw.println(" )");
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+            fileChanged(fqn, z1, z2);
+            StringBuilder sb = new StringBuilder();
+            Differences.appendTextDiff(sb, diff);
+            pw.print(sb);
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+            // ignored files are not reported
+        }
+
+        public void end() {
+            pw.println((added == 1 ? "1 file was" : added + " files were") + " added to " + filename2);
+            pw.println((removed == 1 ? "1 file was" : removed + " files were") + " removed from " + filename2);
+            pw.println(changed == 1 ? "1 file changed" : changed + " files changed");
+            pw.println("Total differences: " + (added + removed + changed));
+            pw.flush();
+        }
+    }
 }
@@ -19,79 +19,207 @@
  */
 package com.mfalaize.zipdiff.output;
 
+import com.mfalaize.zipdiff.DiffListener;
 import com.mfalaize.zipdiff.Differences;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import com.mfalaize.zipdiff.TextDiffListener;
+import com.mfalaize.zipdiff.text.TextDiff;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.OutputStream;
-import java.util.Set;
+import java.util.zip.ZipEntry;
 
 /**
  * Generates xml output for a Differences instance
  *
  * @author Sean C. Sullivan
  */
-public class XmlBuilder extends AbstractBuilder {
+public class XmlBuilder extends AbstractBuilder implements StreamingBuilder {
 
     public void build(OutputStream out, Differences d) {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.newDocument();
-
-            Element root = doc.createElement("zipdiff");
-            doc.appendChild(root);
-            root.setAttribute("filename1", d.getFilename1() == null ? "filename1.zip" : d.getFilename1());
-            root.setAttribute("filename2", d.getFilename2() == null ? "filename2.zip" : d.getFilename2());
-
-            Element diff = doc.createElement("differences");
-            root.appendChild(diff);
-            writeAdded(doc, diff, d.getAdded().keySet());
-            writeRemoved(doc, diff, d.getRemoved().keySet());
-            writeChanged(doc, diff, d.getChanged().keySet());
-
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer = tf.newTransformer();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-            transformer.transform(new DOMSource(doc), new StreamResult(out));
+            d.accept(createListener(out));
         } catch (Throwable t) {
             t.printStackTrace();
         }
     }
 
-    protected void writeAdded(Document doc, Element diff, Set<String> added) {
-        for (String key : added) {
-            Element el = doc.createElement("added");
-            diff.appendChild(el);
-            el.setTextContent(key);
+    /**
+     * The elements are written with a {@link XMLStreamWriter} as the differences are found, so that memory
+     * usage does not depend on the number of differences. The size and CRC of the entries are written as
+     * attributes when they are known. The line differences of a changed text entry are written in a
+     * <code>textdiff</code> element following its <code>changed</code> element.
+     */
+    public DiffListener createListener(OutputStream out) {
+        try {
+            return new XmlListener(XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8"));
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
         }
-
     }
 
-    protected void writeRemoved(Document doc, Element diff, Set<String> removed) {
-        for (String key : removed) {
-            Element el = doc.createElement("removed");
-            diff.appendChild(el);
-            el.setTextContent(key);
+    /**
+     * Replaces the characters which cannot appear in an xml document, such as the control characters of a
+     * binary line or of an entry name, with the replacement character U+FFFD.
+     *
+     * @param s The text to write
+     * @return the text itself if all its characters are allowed
+     */
+    private static String toXml(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean valid;
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                c = s.charAt(++i);
+                valid = true;
+            } else {
+                valid = c == '\t' || c == '\n' || c == '\r' || c >= 0x20 && c < Character.MIN_SURROGATE
+                        || c > Character.MAX_SURROGATE && c < 0xFFFE;
+            }
+            if (!valid && sb == null) {
+                sb = new StringBuilder(s.length()).append(s, 0, i);
+            }
+            if (sb != null) {
+                sb.append(valid ? c : '\uFFFD');
+            }
         }
+        return sb == null ? s : sb.toString();
     }
 
-    protected void writeChanged(Document doc, Element diff, Set<String> changed) {
-        for (String key : changed) {
-            Element el = doc.createElement("changed");
-            diff.appendChild(el);
-            el.setTextContent(key);
+    private static class XmlListener implements TextDiffListener {
+        private final XMLStreamWriter writer;
+
+        XmlListener(XMLStreamWriter writer) {
+            this.writer = writer;
+        }
+
+        public void start(String filename1, String filename2) {
+            try {
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeCharacters("\n");
+                writer.writeStartElement("zipdiff");
+                writer.writeAttribute("filename1", filename1 == null ? "filename1.zip" : toXml(filename1));
+                writer.writeAttribute("filename2", filename2 == null ? "filename2.zip" : toXml(filename2));
+                writer.writeCharacters("\n  ");
+                writer.writeStartElement("differences");
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void fileAdded(String fqn, ZipEntry ze) {
+            writeEntry("added", fqn, ze, null);
+        }
+
+        public void fileRemoved(String fqn, ZipEntry ze) {
+            writeEntry("removed", fqn, ze, null);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+            writeEntry("changed", fqn, z1, z2);
+        }
+
+        public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2, TextDiff diff) {
+            writeEntry("changed", fqn, z1, z2);
+            writeTextDiff(fqn, diff);
+        }
+
+        public void fileIgnored(String fqn, ZipEntry ze) {
+            // ignored files are not reported
+        }
+
+        public void end() {
+            try {
+                writer.writeCharacters("\n  ");
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+                writer.writeEndDocument();
+                writer.flush();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Writes an element for one entry. The attributes of a changed entry are suffixed with 1 and 2
+         * for each archive.
+         */
+        private void writeEntry(String element, String fqn, ZipEntry z1, ZipEntry z2) {
+            try {
+                writer.writeCharacters("\n    ");
+                writer.writeStartElement(element);
+                if (z2 == null) {
+                    writeAttributes("", z1);
+                } else {
+                    writeAttributes("1", z1);
+                    writeAttributes("2", z2);
+                }
+                writer.writeCharacters(toXml(fqn));
+                writer.writeEndElement();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Writes the hunks of a changed text entry, each line in a <code>line</code> element whose type is
+         * <code>context</code>, <code>removed</code> or <code>added</code>.
+         */
+        private void writeTextDiff(String fqn, TextDiff diff) {
+            try {
+                writer.writeCharacters("\n    ");
+                writer.writeStartElement("textdiff");
+                writer.writeAttribute("name", toXml(fqn));
+                if (diff.isSkipped()) {
+                    writer.writeAttribute("skipped", diff.getSkipReason());
+                } else {
+                    writer.writeAttribute("added", Integer.toString(diff.getAddedLines()));
+                    writer.writeAttribute("removed", Integer.toString(diff.getRemovedLines()));
+                }
+                for (TextDiff.Hunk hunk : diff.getHunks()) {
+                    writer.writeCharacters("\n      ");
+                    writer.writeStartElement("hunk");
+                    writer.writeAttribute("start1", Integer.toString(hunk.getStart1()));
+                    writer.writeAttribute("count1", Integer.toString(hunk.getCount1()));
+                    writer.writeAttribute("start2", Integer.toString(hunk.getStart2()));
+                    writer.writeAttribute("count2", Integer.toString(hunk.getCount2()));
+                    for (String line : hunk.getLines()) {
+                        writer.writeCharacters("\n        ");
+                        writer.writeStartElement("line");
+                        writer.writeAttribute("type", line.charAt(0) == '+' ? "added"
+                                : line.charAt(0) == '-' ? "removed" : "context");
+                        writer.writeCharacters(toXml(line.substring(1)));
+                        writer.writeEndElement();
+                    }
+                    writer.writeCharacters("\n      ");
+                    writer.writeEndElement();
+                }
+                if (!diff.getHunks().isEmpty()) {
+                    writer.writeCharacters("\n    ");
+                }
+                writer.writeEndElement();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeAttributes(String suffix, ZipEntry ze) throws XMLStreamException {
+            if (ze == null) {
+                return;
+            }
+            if (ze.getSize() != -1) {
+                writer.writeAttribute("size" + suffix, Long.toString(ze.getSize()));
+            }
+            if (ze.getCrc() != -1) {
+                writer.writeAttribute("crc" + suffix, Long.toHexString(ze.getCrc()));
+            }
         }
     }
 
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+
+/**
+ * Gives access to the entries of an archive and to their content.
+ * Implementations must allow {@link #getInputStream(ZipEntry)} to be called from several threads.
+ *
+ * @author Maxime Falaize
+ */
+public interface ArchiveReader extends Closeable {
+
+    /**
+     * @return the name of the archive, typically its path
+     */
+    String getName();
+
+    /**
+     * @return the number of entries in the archive
+     */
+    int size();
+
+    /**
+     * @return the entries of the archive, in the order of its central directory
+     * @throws IOException
+     */
+    Enumeration<? extends ZipEntry> entries() throws IOException;
+
+    /**
+     * @param name The name of the entry
+     * @return the entry with the given name, or null if there is none
+     * @throws IOException
+     */
+    ZipEntry getEntry(String name) throws IOException;
+
+    /**
+     * Opens the decompressed content of an entry returned by {@link #entries()}.
+     *
+     * @param entry The entry to read
+     * @return the content of the entry
+     * @throws IOException
+     */
+    InputStream getInputStream(ZipEntry entry) throws IOException;
+
+    /**
+     * Gives access to the data of an entry as stored in the archive, i.e. still compressed.
+     *
+     * @param entry An entry returned by {@link #entries()} or {@link #getEntry(String)}
+     * @return the raw data of the entry, or null if it cannot be accessed directly
+     * @throws IOException
+     */
+    ByteBuffer getRawContent(ZipEntry entry) throws IOException;
+}
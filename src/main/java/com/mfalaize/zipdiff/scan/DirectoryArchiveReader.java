@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.ZipEntry;
+
+/**
+ * {@link ArchiveReader} giving access to the files of a directory, such as an exploded web application,
+ * as if they were the entries of an archive. The entries are named after the path of the files relative
+ * to the directory, the names of directories ending with a slash.
+ * <p/>
+ * The tree is walked when the reader is created, each directory being listed by its own fork/join task.
+ * Only the attributes of the files are read: the size and time of an entry are known, but its compressed
+ * size and CRC are left unknown (-1) since computing the CRC takes reading the whole file. It is up to the
+ * caller to read the content of the files it cannot tell apart otherwise. The time of an entry is truncated
+ * to the 2 seconds precision of the zip format, as archivers such as the jar tool do.
+ * <p/>
+ * Symbolic links are followed, as archivers do. A link to one of the directories it is in, which would make
+ * the tree infinite, and a link whose target does not exist are left out with a warning.
+ *
+ * @author Maxime Falaize
+ */
+public class DirectoryArchiveReader implements ArchiveReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryArchiveReader.class);
+
+    private final File directory;
+    private final List<ZipEntry> entries;
+    private final Map<String, ZipEntry> entriesByName;
+
+    /**
+     * Walks the directory.
+     *
+     * @param directory The directory to read
+     * @param pool      The pool listing the directories, or null to walk the tree on the calling thread
+     * @throws IOException if a directory cannot be listed
+     */
+    public DirectoryArchiveReader(File directory, ForkJoinPool pool) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException(directory + " is not a directory");
+        }
+        this.directory = directory;
+
+        WalkTask walk = new WalkTask(directory.toPath(), "", new Ancestor(directory.toPath().toRealPath(), null));
+        List<ZipEntry> list;
+        try {
+            list = pool == null ? walk.compute() : pool.invoke(walk);
+        } catch (WalkException e) {
+            throw unwrap(e);
+        }
+        Collections.sort(list, new Comparator<ZipEntry>() {
+            public int compare(ZipEntry e1, ZipEntry e2) {
+                return e1.getName().compareTo(e2.getName());
+            }
+        });
+        this.entries = list;
+        this.entriesByName = new HashMap<String, ZipEntry>(list.size() * 4 / 3 + 1);
+        for (ZipEntry entry : list) {
+            entriesByName.put(entry.getName(), entry);
+        }
+    }
+
+    public String getName() {
+        return directory.getPath();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entries of the directory, in name order
+     */
+    public Enumeration<? extends ZipEntry> entries() {
+        return Collections.enumeration(entries);
+    }
+
+    public ZipEntry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        if (entry.isDirectory()) {
+            throw new FileNotFoundException(entry.getName() + " is a directory");
+        }
+        return new BufferedInputStream(Files.newInputStream(new File(directory, entry.getName()).toPath()));
+    }
+
+    /**
+     * @return null, the files are not compressed
+     */
+    public ByteBuffer getRawContent(ZipEntry entry) {
+        return null;
+    }
+
+    public void close() {
+        // nothing is kept open
+    }
+
+    /**
+     * Lists a directory and forks a task for each of its subdirectories.
+     */
+    private static class WalkTask extends RecursiveTask<List<ZipEntry>> {
+        private final Path dir;
+        private final String prefix;
+        private final Ancestor ancestors;
+
+        /**
+         * @param dir       The directory to list
+         * @param prefix    The name of the entry of the directory
+         * @param ancestors The real path of the directory, followed by those of its parents
+         */
+        WalkTask(Path dir, String prefix, Ancestor ancestors) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected List<ZipEntry> compute() {
+            final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            final List<WalkTask> subtasks = new ArrayList<WalkTask>();
+            try {
+                // with a depth of 1 the subdirectories are visited as files, and walked by their own task
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        String name = prefix + file.getFileName();
+                        Path realPath = null;
+                        if (attrs.isSymbolicLink()) {
+                            try {
+                                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                            } catch (NoSuchFileException e) {
+                                LOGGER.warn("ignoring " + file + ": broken symbolic link");
+                                return FileVisitResult.CONTINUE;
+                            }
+                            if (attrs.isDirectory()) {
+                                realPath = file.toRealPath();
+                                if (ancestors.contains(realPath)) {
+                                    LOGGER.warn("ignoring " + file + ": symbolic link to a parent directory");
+                                    return FileVisitResult.CONTINUE;
+                                }
+                            }
+                        }
+                        if (attrs.isDirectory()) {
+                            entries.add(createEntry(name + "/", 0, attrs));
+                            Path real = realPath != null ? realPath : ancestors.path.resolve(file.getFileName());
+                            WalkTask task = new WalkTask(file, name + "/", new Ancestor(real, ancestors));
+                            if (inForkJoinPool()) {
+                                task.fork();
+                            }
+                            subtasks.add(task);
+                        } else if (attrs.isRegularFile()) {
+                            entries.add(createEntry(name, attrs.size(), attrs));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                throw new WalkException(e);
+            }
+            for (WalkTask task : subtasks) {
+                entries.addAll(inForkJoinPool() ? task.join() : task.compute());
+            }
+            return entries;
+        }
+
+        private static ZipEntry createEntry(String name, long size, BasicFileAttributes attrs) {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setSize(size);
+            long time = attrs.lastModifiedTime().toMillis();
+            entry.setTime(time - time % 2000);
+            return entry;
+        }
+    }
+
+    /**
+     * The real path of a directory being walked, linked to that of its parent.
+     */
+    private static class Ancestor {
+        private final Path path;
+        private final Ancestor parent;
+
+        Ancestor(Path path, Ancestor parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+
+        boolean contains(Path p) {
+            for (Ancestor a = this; a != null; a = a.parent) {
+                if (a.path.equals(p)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the failure of a walk task, which the pool may have wrapped once more
+     */
+    private static IOException unwrap(RuntimeException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return (IOException) t;
+            }
+        }
+        throw e;
+    }
+
+    private static class WalkException extends RuntimeException {
+        WalkException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates the raw deflate data of a zip entry. Like the stream returned by
+ * {@link java.util.zip.ZipFile#getInputStream(java.util.zip.ZipEntry)}, it feeds the
+ * extra dummy byte required by a "nowrap" {@link Inflater}.
+ * <p/>
+ * It reads the data straight from their buffer, and its Inflater and input buffer are taken
+ * from the {@link InflaterPool} and returned to it when closed, so that opening an entry
+ * allocates little more than this stream.
+ *
+ * @author Maxime Falaize
+ */
+class EntryInflaterInputStream extends InputStream {
+
+    private final ByteBuffer data;
+    private Inflater inflater;
+    private byte[] buffer;
+    private byte[] singleByte;
+    private boolean eof;
+
+    EntryInflaterInputStream(ByteBuffer data) {
+        this.data = data;
+        this.inflater = InflaterPool.getInflater();
+        this.buffer = InflaterPool.getBuffer();
+    }
+
+    public int read() throws IOException {
+        if (singleByte == null) {
+            singleByte = new byte[1];
+        }
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (inflater == null) {
+            throw new IOException("Stream closed");
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            int n;
+            while ((n = inflater.inflate(b, off, len)) == 0) {
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    return -1;
+                }
+                if (inflater.needsInput()) {
+                    fill();
+                }
+            }
+            return n;
+        } catch (DataFormatException e) {
+            String message = e.getMessage();
+            throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+        }
+    }
+
+    private void fill() throws IOException {
+        if (eof) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+        int n = Math.min(buffer.length, data.remaining());
+        if (n == 0) {
+            buffer[0] = 0;
+            n = 1;
+            eof = true;
+        } else {
+            data.get(buffer, 0, n);
+        }
+        inflater.setInput(buffer, 0, n);
+    }
+
+    public long skip(long n) throws IOException {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative skip length");
+        }
+        byte[] b = new byte[(int) Math.min(n, 512)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(b, 0, (int) Math.min(n - skipped, b.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        if (inflater == null) {
+            throw new IOException("Stream closed");
+        }
+        return inflater.finished() ? 0 : 1;
+    }
+
+    public void close() {
+        if (inflater != null) {
+            InflaterPool.release(inflater);
+            InflaterPool.release(buffer);
+            inflater = null;
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of "nowrap" {@link Inflater}s and of the input buffers feeding them, shared by the archives read
+ * with {@link MappedArchiveReader}. Opening an entry then neither allocates the native memory of an
+ * Inflater nor a new buffer, as {@link java.util.zip.ZipFile} does with its own cache of Inflaters.
+ * <p/>
+ * At most {@link #MAX_POOLED} of each are kept, the others are released when returned.
+ *
+ * @author Maxime Falaize
+ */
+final class InflaterPool {
+
+    static final int MAX_POOLED = 64;
+
+    static final int BUFFER_SIZE = 8192;
+
+    private static final Deque<Inflater> INFLATERS = new ArrayDeque<Inflater>();
+    private static final Deque<byte[]> BUFFERS = new ArrayDeque<byte[]>();
+
+    private InflaterPool() {
+    }
+
+    static Inflater getInflater() {
+        synchronized (INFLATERS) {
+            Inflater inflater = INFLATERS.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater(true);
+    }
+
+    static void release(Inflater inflater) {
+        inflater.reset();
+        synchronized (INFLATERS) {
+            if (INFLATERS.size() < MAX_POOLED) {
+                INFLATERS.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    static byte[] getBuffer() {
+        synchronized (BUFFERS) {
+            byte[] buffer = BUFFERS.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    static void release(byte[] buffer) {
+        synchronized (BUFFERS) {
+            if (BUFFERS.size() < MAX_POOLED) {
+                BUFFERS.push(buffer);
+            }
+        }
+    }
+}
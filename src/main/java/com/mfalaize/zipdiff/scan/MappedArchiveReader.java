@@ -0,0 +1,573 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * {@link ArchiveReader} that reads only the End of Central Directory and the central directory
+ * records of an archive, through a memory-mapped {@link FileChannel}. Zip64 archives are supported.
+ * <p/>
+ * Unlike {@link java.util.zip.ZipFile}, nothing is allocated for an entry beyond its {@link ZipEntry}:
+ * the data of an entry is only mapped and inflated when {@link #getInputStream(ZipEntry)} is called.
+ * Archives up to 2GB are mapped at once, larger ones one region at a time.
+ * <p/>
+ * An archive already held in memory, such as a nested archive, can be read the same way from a {@link ByteBuffer}.
+ * A nested archive too large to be held in memory is copied to a temporary file, deleted when the reader is closed.
+ *
+ * @author Maxime Falaize
+ */
+public class MappedArchiveReader implements ArchiveReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int ZIP64_ENDHDR = 56;
+    private static final int ZIP64_LOCHDR = 20;
+    private static final int ZIP64_EXTID = 0x0001;
+
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private static final int FLAG_ENCRYPTED = 0x1;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The size above which {@link #read(String, InputStream, long)} copies an archive to a temporary file.
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 32 * 1024 * 1024;
+
+    private final String name;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer content;
+    private File temporaryFile;
+    private ByteBuffer centralDirectory;
+    private int entryCount;
+    private long base;
+    private Map<String, ZipEntry> entriesByName;
+
+    /**
+     * Opens the archive and reads its End of Central Directory record.
+     *
+     * @param f The archive to read
+     * @throws IOException if the file cannot be read or is not a valid zip archive
+     */
+    public MappedArchiveReader(File f) throws IOException {
+        this(f.getPath(), f);
+    }
+
+    /**
+     * Opens the archive and reads its End of Central Directory record.
+     *
+     * @param name The name of the archive
+     * @param f    The archive to read
+     * @throws IOException if the file cannot be read or is not a valid zip archive
+     */
+    public MappedArchiveReader(String name, File f) throws IOException {
+        this.name = name;
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        // mapped at once when possible, rather than a region for each header and entry read
+        ByteBuffer whole = null;
+        try {
+            long length = channel.size();
+            if (length <= Integer.MAX_VALUE) {
+                whole = channel.map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        content = whole;
+        try {
+            readEndOfCentralDirectory();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads an archive held in memory.
+     *
+     * @param name    The name of the archive
+     * @param content The archive, from its position to its limit
+     * @throws IOException if the content is not a valid zip archive
+     */
+    public MappedArchiveReader(String name, ByteBuffer content) throws IOException {
+        this.name = name;
+        this.file = null;
+        this.channel = null;
+        this.content = content.slice().order(ByteOrder.LITTLE_ENDIAN);
+        readEndOfCentralDirectory();
+    }
+
+    /**
+     * Reads an archive from a stream, typically a nested archive, in memory up to
+     * {@link #DEFAULT_MEMORY_THRESHOLD} bytes.
+     *
+     * @see #read(String, InputStream, long, int)
+     */
+    public static MappedArchiveReader read(String name, InputStream in, long size) throws IOException {
+        return read(name, in, size, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Reads an archive from a stream, typically a nested archive. The archive is held in memory, unless
+     * it is larger than the threshold: it is then copied to a temporary file which is mapped instead.
+     *
+     * @param name            The name of the archive
+     * @param in              The content of the archive. It is read to the end but not closed.
+     * @param size            The size of the archive if known, -1 otherwise
+     * @param memoryThreshold The largest archive held in memory, in bytes
+     * @return the reader of the archive
+     * @throws IOException if the content cannot be read
+     * @throws InvalidArchiveException if the content is not a valid zip archive
+     */
+    public static MappedArchiveReader read(String name, InputStream in, long size, int memoryThreshold)
+            throws IOException {
+        // leave room for the byte telling that the threshold is exceeded
+        memoryThreshold = Math.min(memoryThreshold, Integer.MAX_VALUE - 16);
+        byte[] buffer;
+        int length = 0;
+        if (size > memoryThreshold) {
+            buffer = new byte[BUFFER_SIZE];
+        } else {
+            buffer = new byte[size >= 0 ? (int) size + 1 : Math.min(BUFFER_SIZE, memoryThreshold + 1)];
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += n;
+                if (length == buffer.length) {
+                    if (length > memoryThreshold) {
+                        break;
+                    }
+                    byte[] larger = new byte[(int) Math.min((long) length * 2, memoryThreshold + 1L)];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+            }
+            if (length <= memoryThreshold) {
+                return new MappedArchiveReader(name, ByteBuffer.wrap(buffer, 0, length));
+            }
+        }
+        return spill(name, buffer, length, in);
+    }
+
+    /**
+     * Copies what was already read of an archive then the rest of the stream to a temporary file,
+     * and opens it.
+     */
+    private static MappedArchiveReader spill(String name, byte[] buffer, int length, InputStream in)
+            throws IOException {
+        File f = File.createTempFile("zipdiff", ".zip");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(buffer, 0, length);
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            MappedArchiveReader reader = new MappedArchiveReader(name, f);
+            reader.temporaryFile = f;
+            return reader;
+        } catch (IOException e) {
+            delete(f);
+            throw e;
+        } catch (RuntimeException e) {
+            delete(f);
+            throw e;
+        }
+    }
+
+    private static void delete(File f) {
+        if (!f.delete()) {
+            f.deleteOnExit();
+        }
+    }
+
+    /**
+     * @return true if the archive was copied to a temporary file by {@link #read(String, InputStream, long, int)}
+     */
+    public boolean isTemporary() {
+        return temporaryFile != null;
+    }
+
+    private void readEndOfCentralDirectory() throws IOException {
+        long length = content != null ? content.capacity() : channel.size();
+        if (length < ENDHDR) {
+            throw new InvalidArchiveException("zip file is empty or too short: " + name);
+        }
+
+        int tailLength = (int) Math.min(length, ENDHDR + MAX_COMMENT_LENGTH);
+        long tailOffset = length - tailLength;
+        ByteBuffer tail = map(tailOffset, tailLength);
+        int end = -1;
+        for (int i = tailLength - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG && i + ENDHDR + (tail.getShort(i + 20) & 0xffff) <= tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new InvalidArchiveException("zip END header not found: " + name);
+        }
+
+        long endPosition = tailOffset + end;
+        long total = tail.getShort(end + 10) & 0xffff;
+        long size = tail.getInt(end + 12) & 0xffffffffL;
+        long offset = tail.getInt(end + 16) & 0xffffffffL;
+
+        if (total == ZIP64_MAGICCOUNT || size == ZIP64_MAGICVAL || offset == ZIP64_MAGICVAL) {
+            if (endPosition >= ZIP64_LOCHDR) {
+                ByteBuffer locator = map(endPosition - ZIP64_LOCHDR, ZIP64_LOCHDR);
+                if (locator.getInt(0) == ZIP64_LOCSIG) {
+                    long zip64EndPosition = locator.getLong(8);
+                    if (zip64EndPosition < 0 || zip64EndPosition > length - ZIP64_ENDHDR) {
+                        throw new InvalidArchiveException("invalid zip64 END header offset: " + name);
+                    }
+                    ByteBuffer zip64End = map(zip64EndPosition, ZIP64_ENDHDR);
+                    if (zip64End.getInt(0) != ZIP64_ENDSIG) {
+                        throw new InvalidArchiveException("invalid zip64 END header signature: " + name);
+                    }
+                    total = zip64End.getLong(32);
+                    size = zip64End.getLong(40);
+                    offset = zip64End.getLong(48);
+                    endPosition = zip64EndPosition;
+                }
+            }
+        }
+
+        // data prepended to the archive (e.g. a self-extracting stub) shifts every offset
+        base = endPosition - size - offset;
+        if (base < 0 || size < 0 || offset < 0) {
+            throw new InvalidArchiveException("invalid END header (bad central directory offset): " + name);
+        }
+        if (size > Integer.MAX_VALUE || total > Integer.MAX_VALUE) {
+            throw new InvalidArchiveException("central directory too large to be mapped: " + name);
+        }
+        entryCount = (int) total;
+        centralDirectory = map(base + offset, (int) size);
+        checkCentralDirectory();
+    }
+
+    /**
+     * Walks the headers of the central directory, so that a corrupted one is reported when the archive
+     * is opened rather than while its entries are enumerated.
+     */
+    private void checkCentralDirectory() throws InvalidArchiveException {
+        int pos = 0;
+        int limit = centralDirectory.limit();
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + CENHDR > limit || centralDirectory.getInt(pos) != CENSIG) {
+                throw new InvalidArchiveException("invalid CEN header (bad signature) in " + name);
+            }
+            pos += CENHDR + (centralDirectory.getShort(pos + 28) & 0xffff)
+                    + (centralDirectory.getShort(pos + 30) & 0xffff) + (centralDirectory.getShort(pos + 32) & 0xffff);
+            if (pos > limit) {
+                throw new InvalidArchiveException("invalid CEN header (bad header size) in " + name);
+            }
+        }
+    }
+
+    private ByteBuffer map(long offset, int length) throws IOException {
+        ByteBuffer buffer;
+        if (content != null) {
+            if (offset < 0 || offset + length > content.capacity()) {
+                throw new ZipException("invalid offset in " + name + ": " + offset);
+            }
+            buffer = content.duplicate();
+            buffer.limit((int) offset + length);
+            buffer.position((int) offset);
+            buffer = buffer.slice();
+        } else {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the central directory records of the archive, read-only
+     */
+    public ByteBuffer getCentralDirectory() {
+        return centralDirectory.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    public Enumeration<? extends ZipEntry> entries() {
+        final ByteBuffer cen = centralDirectory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        return new Enumeration<MappedZipEntry>() {
+            private final Calendar calendar = Calendar.getInstance();
+            private byte[] nameBuffer = new byte[256];
+            private int position = 0;
+            private int index = 0;
+
+            public boolean hasMoreElements() {
+                return index < entryCount;
+            }
+
+            public MappedZipEntry nextElement() {
+                if (index >= entryCount) {
+                    throw new NoSuchElementException();
+                }
+                MappedZipEntry entry = readEntry(cen, position);
+                position += CENHDR + entry.headerVariableLength;
+                index++;
+                return entry;
+            }
+
+            private MappedZipEntry readEntry(ByteBuffer cen, int pos) {
+                if (pos + CENHDR > cen.limit() || cen.getInt(pos) != CENSIG) {
+                    throw new IllegalStateException("invalid CEN header (bad signature) in " + name);
+                }
+                int flags = cen.getShort(pos + 8) & 0xffff;
+                int method = cen.getShort(pos + 10) & 0xffff;
+                long dosTime = cen.getInt(pos + 12) & 0xffffffffL;
+                long crc = cen.getInt(pos + 16) & 0xffffffffL;
+                long compressedSize = cen.getInt(pos + 20) & 0xffffffffL;
+                long size = cen.getInt(pos + 24) & 0xffffffffL;
+                int nameLength = cen.getShort(pos + 28) & 0xffff;
+                int extraLength = cen.getShort(pos + 30) & 0xffff;
+                int commentLength = cen.getShort(pos + 32) & 0xffff;
+                long localHeaderOffset = cen.getInt(pos + 42) & 0xffffffffL;
+                if (pos + CENHDR + nameLength + extraLength + commentLength > cen.limit()) {
+                    throw new IllegalStateException("invalid CEN header (bad header size) in " + name);
+                }
+
+                String entryName = decode(cen, pos + CENHDR, nameLength);
+                byte[] extra = null;
+                if (extraLength > 0) {
+                    extra = new byte[extraLength];
+                    cen.position(pos + CENHDR + nameLength);
+                    cen.get(extra);
+                    // the zip64 extended information only holds the fields set to the magic value
+                    int i = 0;
+                    while (i + 4 <= extraLength) {
+                        int tag = (extra[i] & 0xff) | (extra[i + 1] & 0xff) << 8;
+                        int length = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+                        i += 4;
+                        if (tag == ZIP64_EXTID) {
+                            int off = i;
+                            int limit = Math.min(i + length, extraLength);
+                            if (size == ZIP64_MAGICVAL && off + 8 <= limit) {
+                                size = getLong(extra, off);
+                                off += 8;
+                            }
+                            if (compressedSize == ZIP64_MAGICVAL && off + 8 <= limit) {
+                                compressedSize = getLong(extra, off);
+                                off += 8;
+                            }
+                            if (localHeaderOffset == ZIP64_MAGICVAL && off + 8 <= limit) {
+                                localHeaderOffset = getLong(extra, off);
+                            }
+                        }
+                        i += length;
+                    }
+                }
+
+                MappedZipEntry entry = new MappedZipEntry(entryName, base + localHeaderOffset, flags,
+                        nameLength + extraLength + commentLength);
+                entry.setTime(dosToJavaTime(calendar, dosTime));
+                entry.setCrc(crc);
+                entry.setSize(size);
+                entry.setCompressedSize(compressedSize);
+                if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED) {
+                    entry.setMethod(method);
+                }
+                if (extra != null) {
+                    entry.setExtra(extra);
+                }
+                if (commentLength > 0) {
+                    entry.setComment(decode(cen, pos + CENHDR + nameLength + extraLength, commentLength));
+                }
+                return entry;
+            }
+
+            private String decode(ByteBuffer cen, int offset, int length) {
+                if (nameBuffer.length < length) {
+                    nameBuffer = new byte[Math.max(length, nameBuffer.length * 2)];
+                }
+                cen.position(offset);
+                cen.get(nameBuffer, 0, length);
+                return new String(nameBuffer, 0, length, UTF8);
+            }
+        };
+    }
+
+    public synchronized ZipEntry getEntry(String name) {
+        if (entriesByName == null) {
+            Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>(entryCount * 4 / 3 + 1);
+            Enumeration<? extends ZipEntry> e = entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                entries.put(entry.getName(), entry);
+            }
+            entriesByName = entries;
+        }
+        return entriesByName.get(name);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24
+                | (b[off + 4] & 0xffL) << 32 | (b[off + 5] & 0xffL) << 40 | (b[off + 6] & 0xffL) << 48
+                | (b[off + 7] & 0xffL) << 56;
+    }
+
+    /**
+     * Converts an MS-DOS date and time into a Java time, the same way {@link java.util.zip.ZipFile} does.
+     */
+    private static long dosToJavaTime(Calendar calendar, long dosTime) {
+        calendar.clear();
+        calendar.set((int) (((dosTime >> 25) & 0x7f) + 1980),
+                (int) (((dosTime >> 21) & 0x0f) - 1),
+                (int) ((dosTime >> 16) & 0x1f),
+                (int) ((dosTime >> 11) & 0x1f),
+                (int) ((dosTime >> 5) & 0x3f),
+                (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        if ((mappedEntry(entry).flags & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("encrypted entry: " + entry.getName());
+        }
+        long compressedSize = entry.getCompressedSize();
+        if (compressedSize > Integer.MAX_VALUE) {
+            throw new ZipException("entry too large to be mapped: " + entry.getName());
+        }
+
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return new ByteBufferInputStream(getRawContent(entry));
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterInputStream(getRawContent(entry));
+            default:
+                throw new ZipException("invalid compression method for " + entry.getName());
+        }
+    }
+
+    /**
+     * @return the mapped data of the entry, or null if it is larger than 2GB
+     */
+    public ByteBuffer getRawContent(ZipEntry entry) throws IOException {
+        MappedZipEntry mappedEntry = mappedEntry(entry);
+        long compressedSize = entry.getCompressedSize();
+        if (compressedSize > Integer.MAX_VALUE) {
+            return null;
+        }
+        long offset = mappedEntry.localHeaderOffset;
+        int signature;
+        int variableLength;
+        if (content != null && offset >= 0 && offset + LOCHDR <= content.capacity()) {
+            // read in place, without a view of the header
+            signature = content.getInt((int) offset);
+            variableLength = (content.getShort((int) offset + 26) & 0xffff) + (content.getShort((int) offset + 28) & 0xffff);
+        } else {
+            ByteBuffer header = map(offset, LOCHDR);
+            signature = header.getInt(0);
+            variableLength = (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        }
+        if (signature != LOCSIG) {
+            throw new ZipException("invalid LOC header (bad signature) for " + entry.getName());
+        }
+        return map(offset + LOCHDR + variableLength, (int) compressedSize);
+    }
+
+    private MappedZipEntry mappedEntry(ZipEntry entry) throws ZipException {
+        if (!(entry instanceof MappedZipEntry)) {
+            throw new ZipException("entry " + entry.getName() + " does not belong to " + name);
+        }
+        return (MappedZipEntry) entry;
+    }
+
+    public void close() throws IOException {
+        if (file != null) {
+            try {
+                file.close();
+            } finally {
+                if (temporaryFile != null) {
+                    delete(temporaryFile);
+                    temporaryFile = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown when the End of Central Directory of an archive cannot be found or is invalid,
+     * i.e. the content is not a zip archive, or a truncated one.
+     */
+    public static class InvalidArchiveException extends ZipException {
+        InvalidArchiveException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * {@link ZipEntry} keeping what is needed to locate its data.
+     */
+    static class MappedZipEntry extends ZipEntry {
+        final long localHeaderOffset;
+        final int flags;
+        final int headerVariableLength;
+
+        MappedZipEntry(String name, long localHeaderOffset, int flags, int headerVariableLength) {
+            super(name);
+            this.localHeaderOffset = localHeaderOffset;
+            this.flags = flags;
+            this.headerVariableLength = headerVariableLength;
+        }
+    }
+}
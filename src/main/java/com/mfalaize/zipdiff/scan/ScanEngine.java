@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+/**
+ * The available implementations for reading the archives to compare.
+ *
+ * @author Maxime Falaize
+ */
+public enum ScanEngine {
+
+    /**
+     * Reads the archives with {@link java.util.zip.ZipFile}.
+     */
+    ZIP_FILE,
+
+    /**
+     * Reads only the central directory of the archives through a memory-mapped file.
+     * Entry data is mapped on demand, when a nested archive has to be expanded.
+     *
+     * @see MappedArchiveReader
+     */
+    MAPPED
+}
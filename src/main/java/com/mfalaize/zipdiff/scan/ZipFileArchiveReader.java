@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link ArchiveReader} backed by a {@link ZipFile}.
+ *
+ * @author Maxime Falaize
+ */
+public class ZipFileArchiveReader implements ArchiveReader {
+
+    private final ZipFile zipFile;
+    private MappedArchiveReader rawReader;
+
+    public ZipFileArchiveReader(ZipFile zipFile) {
+        this.zipFile = zipFile;
+    }
+
+    public String getName() {
+        return zipFile.getName();
+    }
+
+    public int size() {
+        return zipFile.size();
+    }
+
+    public Enumeration<? extends ZipEntry> entries() {
+        return zipFile.entries();
+    }
+
+    public ZipEntry getEntry(String name) {
+        return zipFile.getEntry(name);
+    }
+
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        return zipFile.getInputStream(entry);
+    }
+
+    /**
+     * {@link ZipFile} has no access to the raw data of its entries, so it is read from a
+     * {@link MappedArchiveReader} opened on the same file the first time.
+     */
+    public ByteBuffer getRawContent(ZipEntry entry) throws IOException {
+        MappedArchiveReader reader;
+        synchronized (this) {
+            if (rawReader == null) {
+                rawReader = new MappedArchiveReader(new File(zipFile.getName()));
+            }
+            reader = rawReader;
+        }
+        ZipEntry rawEntry = reader.getEntry(entry.getName());
+        return rawEntry == null ? null : reader.getRawContent(rawEntry);
+    }
+
+    public void close() throws IOException {
+        try {
+            zipFile.close();
+        } finally {
+            synchronized (this) {
+                if (rawReader != null) {
+                    rawReader.close();
+                    rawReader = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the line differences between two versions of a text with the Myers algorithm, after
+ * the lines they start and end with are set aside. The cost is bounded in both directions:
+ * <ul>
+ * <li>the texts are read up to {@link #getMaxSize()} bytes, the larger ones are not compared;</li>
+ * <li>the search stops after {@link #getMaxEditDistance()} changed lines, which bounds its time
+ * to the number of lines times that distance and its memory to the square of that distance.</li>
+ * </ul>
+ * The texts are decoded as UTF-8, malformed bytes being replaced, and the ones holding a NUL byte
+ * are considered binary and not compared.
+ * <p/>
+ * This class is thread-safe once configured.
+ *
+ * @author Maxime Falaize
+ */
+public class LineDiff {
+
+    public static final int DEFAULT_CONTEXT_LINES = 3;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_EDIT_DISTANCE = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private int contextLines = DEFAULT_CONTEXT_LINES;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int maxEditDistance = DEFAULT_MAX_EDIT_DISTANCE;
+
+    /**
+     * @param lines The number of unchanged lines shown around the changed ones
+     */
+    public void setContextLines(int lines) {
+        if (lines < 0) {
+            throw new IllegalArgumentException("lines must not be negative: " + lines);
+        }
+        contextLines = lines;
+    }
+
+    public int getContextLines() {
+        return contextLines;
+    }
+
+    /**
+     * @param bytes The size of the largest text compared
+     */
+    public void setMaxSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        maxSize = bytes;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param lines The number of added and removed lines after which the texts are no longer compared
+     */
+    public void setMaxEditDistance(int lines) {
+        if (lines < 1) {
+            throw new IllegalArgumentException("lines must be at least 1: " + lines);
+        }
+        maxEditDistance = lines;
+    }
+
+    public int getMaxEditDistance() {
+        return maxEditDistance;
+    }
+
+    /**
+     * Compares two versions of a text. The streams are not closed.
+     *
+     * @param in1 The first version
+     * @param in2 The second version
+     * @return the differences, skipped if a version is too large or binary
+     * @throws IOException if a stream cannot be read
+     */
+    public TextDiff diff(InputStream in1, InputStream in2) throws IOException {
+        byte[][] contents = new byte[2][];
+        int[] lengths = new int[2];
+        InputStream[] streams = {in1, in2};
+        for (int i = 0; i < 2; i++) {
+            contents[i] = read(streams[i], lengths, i);
+            if (contents[i] == null) {
+                return TextDiff.skipped("larger than " + maxSize + " bytes");
+            }
+            if (isBinary(contents[i], lengths[i])) {
+                return TextDiff.skipped("binary content");
+            }
+        }
+        return diff(toLines(contents[0], lengths[0]), toLines(contents[1], lengths[1]));
+    }
+
+    /**
+     * Compares two versions of a text, given as lines.
+     *
+     * @param lines1 The lines of the first version
+     * @param lines2 The lines of the second version
+     * @return the differences, skipped if too many lines changed
+     */
+    public TextDiff diff(List<String> lines1, List<String> lines2) {
+        // the lines are compared by their number in a table of the distinct lines
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] a = toIds(lines1, ids);
+        int[] b = toIds(lines2, ids);
+
+        int prefix = 0;
+        while (prefix < a.length && prefix < b.length && a[prefix] == b[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < a.length - prefix && suffix < b.length - prefix
+                && a[a.length - 1 - suffix] == b[b.length - 1 - suffix]) {
+            suffix++;
+        }
+
+        char[] middle = shortestEdit(Arrays.copyOfRange(a, prefix, a.length - suffix),
+                Arrays.copyOfRange(b, prefix, b.length - suffix));
+        if (middle == null) {
+            return TextDiff.skipped("more than " + maxEditDistance + " changed lines");
+        }
+        char[] ops = new char[prefix + middle.length + suffix];
+        Arrays.fill(ops, '=');
+        System.arraycopy(middle, 0, ops, prefix, middle.length);
+
+        int added = 0;
+        int removed = 0;
+        for (char op : middle) {
+            if (op == '+') {
+                added++;
+            } else if (op == '-') {
+                removed++;
+            }
+        }
+        return new TextDiff(toHunks(ops, lines1, lines2), added, removed);
+    }
+
+    /**
+     * Finds the shortest edit script turning a into b.
+     *
+     * @return the script, one operation per line: <code>'='</code> for a line in both, <code>'-'</code> for
+     * a line of a only and <code>'+'</code> for a line of b only, or null if it is longer than the maximum edit
+     * distance
+     */
+    private char[] shortestEdit(int[] a, int[] b) {
+        int n = a.length;
+        int m = b.length;
+        int max = Math.min(n + m, maxEditDistance);
+        int offset = max + 1;
+        // the furthest x reached on each diagonal k = x - y, and its value after each step
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<int[]>();
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    return backtrack(trace, d, n, m);
+                }
+            }
+            trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+        }
+        return null;
+    }
+
+    private static char[] backtrack(List<int[]> trace, int distance, int n, int m) {
+        char[] ops = new char[n + m];
+        int p = ops.length;
+        int x = n;
+        int y = m;
+        for (int d = distance; d > 0; d--) {
+            // the diagonals of the previous step, from -(d - 1) to d - 1
+            int[] previous = trace.get(d - 1);
+            int k = x - y;
+            int previousK;
+            if (k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1])) {
+                previousK = k + 1;
+            } else {
+                previousK = k - 1;
+            }
+            int previousX = previous[previousK + d - 1];
+            int previousY = previousX - previousK;
+            while (x > previousX && y > previousY) {
+                ops[--p] = '=';
+                x--;
+                y--;
+            }
+            if (x == previousX) {
+                ops[--p] = '+';
+                y--;
+            } else {
+                ops[--p] = '-';
+                x--;
+            }
+        }
+        while (x > 0) {
+            ops[--p] = '=';
+            x--;
+        }
+        return Arrays.copyOfRange(ops, p, ops.length);
+    }
+
+    /**
+     * Groups the changed lines in hunks, with {@link #getContextLines()} unchanged lines around them. The hunks
+     * separated by fewer than twice that number of unchanged lines are merged.
+     */
+    private List<TextDiff.Hunk> toHunks(char[] ops, List<String> lines1, List<String> lines2) {
+        List<TextDiff.Hunk> hunks = new ArrayList<TextDiff.Hunk>();
+        int p = 0;
+        int line1 = 0;
+        int line2 = 0;
+        while (true) {
+            int change = p;
+            while (change < ops.length && ops[change] == '=') {
+                change++;
+            }
+            if (change == ops.length) {
+                return hunks;
+            }
+            int start = Math.max(p, change - contextLines);
+            int start1 = line1 + start - p;
+            int start2 = line2 + start - p;
+
+            int end = change;
+            while (true) {
+                while (end < ops.length && ops[end] != '=') {
+                    end++;
+                }
+                int unchanged = 0;
+                while (end + unchanged < ops.length && ops[end + unchanged] == '=') {
+                    unchanged++;
+                }
+                if (end + unchanged == ops.length || unchanged > 2 * contextLines) {
+                    end += Math.min(unchanged, contextLines);
+                    break;
+                }
+                end += unchanged;
+            }
+
+            List<String> lines = new ArrayList<String>(end - start);
+            line1 = start1;
+            line2 = start2;
+            for (int i = start; i < end; i++) {
+                if (ops[i] == '=') {
+                    lines.add(" " + lines1.get(line1++));
+                    line2++;
+                } else if (ops[i] == '-') {
+                    lines.add("-" + lines1.get(line1++));
+                } else {
+                    lines.add("+" + lines2.get(line2++));
+                }
+            }
+            int count1 = line1 - start1;
+            int count2 = line2 - start2;
+            // as in the unified diff format, an empty range starts at the line before it
+            hunks.add(new TextDiff.Hunk(count1 == 0 ? start1 : start1 + 1, count1,
+                    count2 == 0 ? start2 : start2 + 1, count2, lines));
+            p = end;
+        }
+    }
+
+    private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        int i = 0;
+        for (String line : lines) {
+            Integer id = ids.get(line);
+            if (id == null) {
+                id = ids.size();
+                ids.put(line, id);
+            }
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a stream up to the maximum size.
+     *
+     * @return the content, whose length is stored at the given index of lengths, or null if the stream is larger
+     */
+    private byte[] read(InputStream in, int[] lengths, int index) throws IOException {
+        // one more byte than the maximum size tells whether the stream is larger
+        int limit = maxSize == Integer.MAX_VALUE ? maxSize : maxSize + 1;
+        byte[] content = new byte[Math.min(BUFFER_SIZE, limit)];
+        int length = 0;
+        while (true) {
+            if (length == content.length) {
+                if (length >= limit) {
+                    return null;
+                }
+                content = Arrays.copyOf(content, (int) Math.min(2L * length, limit));
+            }
+            int n = in.read(content, length, content.length - length);
+            if (n < 0) {
+                lengths[index] = length;
+                return content;
+            }
+            length += n;
+        }
+    }
+
+    private static boolean isBinary(byte[] content, int length) {
+        for (int i = 0; i < length; i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a text on line feeds, the carriage return ending a line being dropped. The line feed ending the text
+     * does not start an empty line.
+     */
+    static List<String> toLines(byte[] content, int length) {
+        String text = new String(content, 0, length, UTF_8);
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            int next = end < 0 ? text.length() : end + 1;
+            if (end < 0) {
+                end = text.length();
+            }
+            if (end > start && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+            lines.add(text.substring(start, end));
+            start = next;
+        }
+        return lines;
+    }
+}
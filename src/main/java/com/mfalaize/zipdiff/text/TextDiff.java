@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.text;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The line differences between two versions of a text entry, as computed by {@link LineDiff}. They are
+ * grouped in hunks, in the unified diff format. The diff is skipped when an entry is too large, holds
+ * binary content or has too many changed lines, in which case there is no hunk and the reason is kept.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author Maxime Falaize
+ */
+public class TextDiff {
+
+    private final List<Hunk> hunks;
+    private final String skipReason;
+    private final int addedLines;
+    private final int removedLines;
+
+    /**
+     * @param hunks        The hunks, in the order of the lines
+     * @param addedLines   The number of lines only in the second version
+     * @param removedLines The number of lines only in the first version
+     */
+    public TextDiff(List<Hunk> hunks, int addedLines, int removedLines) {
+        this(hunks, null, addedLines, removedLines);
+    }
+
+    private TextDiff(List<Hunk> hunks, String skipReason, int addedLines, int removedLines) {
+        this.hunks = Collections.unmodifiableList(hunks);
+        this.skipReason = skipReason;
+        this.addedLines = addedLines;
+        this.removedLines = removedLines;
+    }
+
+    /**
+     * @param reason Why the lines were not compared
+     * @return a diff without hunks
+     */
+    public static TextDiff skipped(String reason) {
+        return new TextDiff(Collections.<Hunk>emptyList(), reason, 0, 0);
+    }
+
+    public boolean isSkipped() {
+        return skipReason != null;
+    }
+
+    /**
+     * @return why the lines were not compared, or null if they were
+     */
+    public String getSkipReason() {
+        return skipReason;
+    }
+
+    /**
+     * @return the hunks, empty when the diff is skipped or when only the line endings differ
+     */
+    public List<Hunk> getHunks() {
+        return hunks;
+    }
+
+    public int getAddedLines() {
+        return addedLines;
+    }
+
+    public int getRemovedLines() {
+        return removedLines;
+    }
+
+    @Override
+    public String toString() {
+        if (isSkipped()) {
+            return "skipped: " + skipReason;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Hunk hunk : hunks) {
+            sb.append(hunk.getHeader()).append('\n');
+            for (String line : hunk.getLines()) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A group of changed lines along with the unchanged lines around them. Each line is prefixed by
+     * <code>' '</code> if it is in both versions, <code>'-'</code> if it is only in the first one and
+     * <code>'+'</code> if it is only in the second one.
+     */
+    public static class Hunk {
+        private final int start1;
+        private final int count1;
+        private final int start2;
+        private final int count2;
+        private final List<String> lines;
+
+        /**
+         * @param start1 The number of the first line of the hunk in the first version, starting at 1
+         * @param count1 The number of lines of the hunk in the first version
+         * @param start2 The number of the first line of the hunk in the second version, starting at 1
+         * @param count2 The number of lines of the hunk in the second version
+         * @param lines  The prefixed lines
+         */
+        public Hunk(int start1, int count1, int start2, int count2, List<String> lines) {
+            this.start1 = start1;
+            this.count1 = count1;
+            this.start2 = start2;
+            this.count2 = count2;
+            this.lines = Collections.unmodifiableList(lines);
+        }
+
+        public int getStart1() {
+            return start1;
+        }
+
+        public int getCount1() {
+            return count1;
+        }
+
+        public int getStart2() {
+            return start2;
+        }
+
+        public int getCount2() {
+            return count2;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the header of the hunk in the unified diff format, e.g. <code>@@ -3,7 +3,8 @@</code>
+         */
+        public String getHeader() {
+            return "@@ -" + start1 + "," + count1 + " +" + start2 + "," + count2 + " @@";
+        }
+    }
+}
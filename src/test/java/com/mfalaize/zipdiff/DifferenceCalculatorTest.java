@@ -20,18 +20,43 @@
 
 package com.mfalaize.zipdiff;
 
+import com.mfalaize.zipdiff.output.BatchSummaryBuilder;
 import com.mfalaize.zipdiff.output.Builder;
 import com.mfalaize.zipdiff.output.HtmlBuilder;
+import com.mfalaize.zipdiff.output.PagedHtmlBuilder;
 import com.mfalaize.zipdiff.output.TextBuilder;
 import com.mfalaize.zipdiff.output.XmlBuilder;
+import com.mfalaize.zipdiff.scan.ArchiveReader;
+import com.mfalaize.zipdiff.scan.MappedArchiveReader;
+import com.mfalaize.zipdiff.scan.ScanEngine;
+import com.mfalaize.zipdiff.scan.ZipFileArchiveReader;
+import com.mfalaize.zipdiff.text.TextDiff;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * @author jastewart
@@ -54,6 +79,13 @@ public class DifferenceCalculatorTest {
     private static String testJarTwoEntryAB1Filename;
     private static String testJarTwoEntryAC2Filename;
     private static String testJarOneEntryAContentsChangedFilename;
+    private static String testJarNestedA1Filename;
+    private static String testJarNestedA2Filename;
+    private static String testJarNestedAContentsChangedFilename;
+    private static String testJarDeeplyNestedFilename;
+    private static String testJarOneEntryAStoredLevelFilename;
+    private static String testJarOneEntryAStored1Filename;
+    private static String testJarOneEntryAStoredCorruptedFilename;
 
     {
         testDirPathName = "/Users/maxime/Documents/test";
@@ -70,6 +102,144 @@ public class DifferenceCalculatorTest {
         testJarTwoEntryAB1Filename = testDirPathName + File.separator + "testJarTwoEntryAB1Filename.jar";
         testJarTwoEntryAC2Filename = testDirPathName + File.separator + "testJarTwoEntryAC2Filename.jar";
         testJarOneEntryAContentsChangedFilename = testDirPathName + File.separator + "testJarOneEntryAContentsChangedFilename.jar";
+        testJarNestedA1Filename = testDirPathName + File.separator + "testJarNestedA1Filename.jar";
+        testJarNestedA2Filename = testDirPathName + File.separator + "testJarNestedA2Filename.jar";
+        testJarNestedAContentsChangedFilename = testDirPathName + File.separator + "testJarNestedAContentsChangedFilename.jar";
+        testJarDeeplyNestedFilename = testDirPathName + File.separator + "testJarDeeplyNestedFilename.jar";
+        testJarOneEntryAStoredLevelFilename = testDirPathName + File.separator + "testJarOneEntryAStoredLevelFilename.jar";
+        testJarOneEntryAStored1Filename = testDirPathName + File.separator + "testJarOneEntryAStored1Filename.jar";
+        testJarOneEntryAStoredCorruptedFilename = testDirPathName + File.separator + "testJarOneEntryAStoredCorruptedFilename.jar";
+    }
+
+    /**
+     * Create a jar with only one stored entry A, and a copy of it where one byte of A is changed
+     * without updating the CRC, so that only the data tell them apart
+     *
+     * @throws IOException
+     */
+    public void createJarsOneEntryAStoredAndCorrupted() throws IOException {
+        File testDir = new File(testDirPathName);
+        testDir.mkdirs();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream testJarOS = new JarOutputStream(baos);
+
+        byte data1[] = new byte[2048];
+        for (int i = 0; i < data1.length; i++) {
+            data1[i] = 'a';
+        }
+        JarEntry entry1 = new JarEntry(ENTRYA);
+        entry1.setMethod(JarEntry.STORED);
+        entry1.setSize(data1.length);
+        CRC32 crc = new CRC32();
+        crc.update(data1);
+        entry1.setCrc(crc.getValue());
+        testJarOS.putNextEntry(entry1);
+        testJarOS.write(data1);
+        testJarOS.close();
+
+        byte[] jar = baos.toByteArray();
+        FileOutputStream fos = new FileOutputStream(testJarOneEntryAStored1Filename);
+        fos.write(jar);
+        fos.close();
+
+        int dataOffset = 0;
+        while (jar[dataOffset] != 'a' || jar[dataOffset + 1] != 'a') {
+            dataOffset++;
+        }
+        jar[dataOffset + 1000] = 'b';
+        fos = new FileOutputStream(testJarOneEntryAStoredCorruptedFilename);
+        fos.write(jar);
+        fos.close();
+    }
+
+    /**
+     * Create a jar with only one entry in it, the same A as createJarOneEntryA1 but
+     * written without compression so that its compressed size differs
+     *
+     * @throws IOException
+     */
+    public void createJarOneEntryAStoredLevel() throws IOException {
+        File testDir = new File(testDirPathName);
+        testDir.mkdirs();
+        JarOutputStream testJarOS =
+                new JarOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(testJarOneEntryAStoredLevelFilename)));
+        testJarOS.setLevel(Deflater.NO_COMPRESSION);
+
+        JarEntry entry1 = new JarEntry(ENTRYA);
+        testJarOS.putNextEntry(entry1);
+        byte data1[] = new byte[2048];
+        for (int i = 0; i < data1.length; i++) {
+            data1[i] = 'a';
+        }
+        testJarOS.write(data1);
+
+        testJarOS.flush();
+        testJarOS.close();
+    }
+
+    /**
+     * Create a jar whose content is the given number of entries, each one being a nested jar
+     * built the same way one level deeper, until the given depth is reached
+     *
+     * @throws IOException
+     */
+    private static byte[] createNestedJarContent(int depth, int width) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream jarOS = new JarOutputStream(baos);
+        for (int i = 0; i < width; i++) {
+            jarOS.putNextEntry(new JarEntry("entry" + i + ".txt"));
+            jarOS.write(("level " + depth + " entry " + i).getBytes("UTF-8"));
+            if (depth > 0) {
+                jarOS.putNextEntry(new JarEntry("lib/nested" + i + ".jar"));
+                jarOS.write(createNestedJarContent(depth - 1, width));
+            }
+        }
+        jarOS.close();
+        return baos.toByteArray();
+    }
+
+    public void createJarDeeplyNested() throws IOException {
+        File testDir = new File(testDirPathName);
+        testDir.mkdirs();
+        FileOutputStream fos = new FileOutputStream(testJarDeeplyNestedFilename);
+        fos.write(createNestedJarContent(3, 3));
+        fos.close();
+    }
+
+    /**
+     * Create a jar with an entry B and a nested jar lib/nested.jar holding the entry A,
+     * the last byte of A being the given one
+     *
+     * @throws IOException
+     */
+    public void createJarNested(String filename, byte lastByteOfA) throws IOException {
+        File testDir = new File(testDirPathName);
+        testDir.mkdirs();
+
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        JarOutputStream nestedJarOS = new JarOutputStream(nested);
+        nestedJarOS.putNextEntry(new JarEntry(ENTRYA));
+        byte data1[] = new byte[2048];
+        for (int i = 0; i < data1.length; i++) {
+            data1[i] = 'a';
+        }
+        data1[data1.length - 1] = lastByteOfA;
+        nestedJarOS.write(data1);
+        nestedJarOS.close();
+
+        JarOutputStream testJarOS =
+                new JarOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(filename)));
+        testJarOS.putNextEntry(new JarEntry(ENTRYB));
+        testJarOS.write('b');
+        testJarOS.putNextEntry(new JarEntry("lib/nested.jar"));
+        testJarOS.write(nested.toByteArray());
+
+        testJarOS.flush();
+        testJarOS.close();
     }
 
     /**
@@ -281,6 +451,1334 @@ public class DifferenceCalculatorTest {
 
     }
 
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that indexing both archives concurrently gives the same result as the sequential path.
+     */
+    @Test
+    public void testCalculateDifferencesConcurrentIndexing() throws IOException {
+        createJarOneEntryA1();
+        createJarOneEntryB1();
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+        calc.setThreadCount(2);
+        Differences differences = calc.getDifferences();
+        assertTrue(differences.hasDifferences());
+        assertEquals(1, differences.getAdded().size());
+        assertTrue(differences.getAdded().containsKey("B"));
+        assertEquals(1, differences.getRemoved().size());
+        assertTrue(differences.getRemoved().containsKey("A"));
+        assertTrue(differences.getChanged().isEmpty());
+
+        exerciseOutputBuilders(differences);
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that the memory-mapped engine finds the same differences, including in nested archives.
+     */
+    @Test
+    public void testCalculateDifferencesMappedEngine() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        createJarNested(testJarNestedAContentsChangedFilename, (byte) 'b');
+
+        for (ScanEngine engine : ScanEngine.values()) {
+            DifferenceCalculator calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+            calc.setScanEngine(engine);
+            Differences differences = calc.getDifferences();
+            assertTrue(differences.hasDifferences());
+            assertTrue(differences.getAdded().isEmpty());
+            assertTrue(differences.getRemoved().isEmpty());
+            assertEquals(2, differences.getChanged().size());
+            assertTrue(differences.getChanged().containsKey("lib/nested.jar"));
+            assertTrue(differences.getChanged().containsKey("lib/nested.jar/A"));
+
+            exerciseOutputBuilders(differences);
+        }
+    }
+
+    /*
+     * Test for Map buildZipEntryMap(ZipFile)
+     * Test that the fork/join expansion gives the same entries, in the same order, as the sequential one.
+     */
+    @Test
+    public void testBuildZipEntryMapForkJoinExpansion() throws IOException {
+        createJarDeeplyNested();
+        DifferenceCalculator sequential = new DifferenceCalculator(testJarDeeplyNestedFilename, testJarDeeplyNestedFilename);
+        List<String> expected = new ArrayList<String>(
+                sequential.buildZipEntryMap(new ZipFile(testJarDeeplyNestedFilename)).keySet());
+        assertTrue(expected.contains("lib/nested2.jar/lib/nested1.jar/lib/nested0.jar/entry2.txt"));
+        // the sizes of nested entries are only known once they are read, they must still be indexed
+        ZipEntry nested = sequential.buildZipEntryMap(new ZipFile(testJarDeeplyNestedFilename))
+                .get("lib/nested2.jar/lib/nested1.jar/lib/nested0.jar/entry2.txt");
+        assertTrue(nested.getSize() != -1);
+        assertTrue(nested.getCrc() != -1);
+
+        for (int maxOpen = 1; maxOpen <= 8; maxOpen *= 2) {
+            DifferenceCalculator calc = new DifferenceCalculator(testJarDeeplyNestedFilename, testJarDeeplyNestedFilename);
+            calc.setForkJoinExpansion(true);
+            calc.setThreadCount(4);
+            calc.setMaxOpenNestedArchives(maxOpen);
+            List<String> actual = new ArrayList<String>(
+                    calc.buildZipEntryMap(new ZipFile(testJarDeeplyNestedFilename)).keySet());
+            assertEquals(expected, actual);
+
+            // also releases the private pool
+            assertFalse(calc.getDifferences().hasDifferences());
+        }
+    }
+
+    /*
+     * Test for Map buildZipEntryMap(ArchiveReader)
+     * Test that a failing fork/join expansion waits for its tasks and gives back the permits of those which
+     * did not run, so that the next nested archives can still be buffered.
+     */
+    @Test(timeout = 60000)
+    public void testForkJoinExpansionFailure() throws IOException {
+        byte[] nested = createNestedJarContent(0, 2);
+        ByteArrayOutputStream war = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(war);
+        for (int i = 0; i < 8; i++) {
+            jos.putNextEntry(new JarEntry("lib/x" + i + ".jar"));
+            jos.write(nested);
+        }
+        jos.putNextEntry(new JarEntry("lib/y.jar"));
+        jos.write(nested);
+        jos.close();
+        // an invalid deflate block type makes the data of y.jar unreadable
+        byte[] content = war.toByteArray();
+        byte[] name = "lib/y.jar".getBytes("US-ASCII");
+        for (int i = 0; i + 30 + name.length < content.length; i++) {
+            if (content[i] == 'P' && content[i + 1] == 'K' && content[i + 2] == 3 && content[i + 3] == 4
+                    && new String(content, i + 30, name.length, "US-ASCII").equals("lib/y.jar")) {
+                int extra = (content[i + 28] & 0xff) | (content[i + 29] & 0xff) << 8;
+                content[i + 30 + name.length + extra] = (byte) 0xff;
+                break;
+            }
+        }
+
+        File archive = new File(testDirPathName, "testJarForkJoinFailure.jar");
+        new File(testDirPathName).mkdirs();
+        jos = new JarOutputStream(new FileOutputStream(archive));
+        jos.putNextEntry(new JarEntry("a.war"));
+        jos.write(content);
+        for (int i = 0; i < 8; i++) {
+            jos.putNextEntry(new JarEntry("b" + i + ".jar"));
+            jos.write(nested);
+        }
+        jos.close();
+
+        DifferenceCalculator calc = new DifferenceCalculator(archive, archive);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 20; round++) {
+                ForkJoinIndexer indexer = new ForkJoinIndexer(calc, pool, 4);
+                ArchiveReader reader = new MappedArchiveReader(archive);
+                try {
+                    indexer.buildZipEntryMap(reader);
+                    fail("y.jar cannot be read");
+                } catch (java.util.zip.ZipException e) {
+                    // expected
+                } finally {
+                    reader.close();
+                }
+                assertEquals(4, indexer.availablePermits());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that nested archives identical on both sides are not expanded, while changed ones are.
+     */
+    @Test
+    public void testCalculateDifferencesSkipUnchangedNestedArchives() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        createJarNested(testJarNestedA2Filename, (byte) 'a');
+        createJarNested(testJarNestedAContentsChangedFilename, (byte) 'b');
+
+        DifferenceCalculator calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA2Filename);
+        calc.setSkipUnchangedNestedArchives(true);
+        calc.setIgnoreTimestamps(true);
+        Map<String, ZipEntry> map1 = new HashMap<String, ZipEntry>();
+        Map<String, ZipEntry> map2 = new HashMap<String, ZipEntry>();
+        ArchiveReader reader1 = new ZipFileArchiveReader(new ZipFile(testJarNestedA1Filename));
+        ArchiveReader reader2 = new ZipFileArchiveReader(new ZipFile(testJarNestedA2Filename));
+        calc.buildZipEntryMaps("", reader1, reader2, map1, map2);
+        reader1.close();
+        reader2.close();
+        assertTrue(map1.containsKey("lib/nested.jar"));
+        assertFalse(map1.containsKey("lib/nested.jar/A"));
+        assertFalse(map2.containsKey("lib/nested.jar/A"));
+        assertFalse(calc.getDifferences().hasDifferences());
+
+        calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+        calc.setSkipUnchangedNestedArchives(true);
+        Differences differences = calc.getDifferences();
+        assertTrue(differences.getAdded().isEmpty());
+        assertTrue(differences.getRemoved().isEmpty());
+        assertEquals(2, differences.getChanged().size());
+        assertTrue(differences.getChanged().containsKey("lib/nested.jar"));
+        assertTrue(differences.getChanged().containsKey("lib/nested.jar/A"));
+
+        exerciseOutputBuilders(differences);
+    }
+
+    /*
+     * Test for Differences getDifferences()
+     * Test that a changed nested archive which is not a valid archive is kept as a single entry when unchanged
+     * nested archives are skipped, as it is otherwise.
+     */
+    @Test
+    public void testSkipUnchangedNestedArchivesInvalidArchive() throws IOException {
+        String bad1 = testDirPathName + File.separator + "testJarNestedBad1.jar";
+        String bad2 = testDirPathName + File.separator + "testJarNestedBad2.jar";
+        new File(testDirPathName).mkdirs();
+        String[] names = {bad1, bad2};
+        for (int i = 0; i < 2; i++) {
+            JarOutputStream jos = new JarOutputStream(new FileOutputStream(names[i]));
+            jos.putNextEntry(new JarEntry("lib/bad.jar"));
+            jos.write(("not an archive " + i).getBytes("US-ASCII"));
+            jos.close();
+        }
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+
+        for (int i = 0; i < 2; i++) {
+            DifferenceCalculator calc = new DifferenceCalculator(bad1, bad2);
+            calc.setSkipUnchangedNestedArchives(i == 1);
+            Differences d = calc.getDifferences();
+            assertEquals(1, d.getChanged().size());
+            assertTrue(d.getChanged().containsKey("lib/bad.jar"));
+        }
+
+        // the valid side is expanded alone
+        String mixed = testDirPathName + File.separator + "testJarNestedMixed.jar";
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(mixed));
+        jos.putNextEntry(new JarEntry(ENTRYB));
+        jos.write('b');
+        jos.putNextEntry(new JarEntry("lib/nested.jar"));
+        jos.write("not an archive".getBytes("US-ASCII"));
+        jos.close();
+        for (int i = 0; i < 2; i++) {
+            DifferenceCalculator calc = new DifferenceCalculator(mixed, testJarNestedA1Filename);
+            calc.setSkipUnchangedNestedArchives(i == 1);
+            Differences d = calc.getDifferences();
+            assertTrue(d.getChanged().containsKey("lib/nested.jar"));
+            assertEquals(1, d.getAdded().size());
+            assertTrue(d.getAdded().containsKey("lib/nested.jar/" + ENTRYA));
+        }
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that entries differing only by their compressed size are not changed when comparing contents.
+     */
+    @Test
+    public void testCalculateDifferencesCompareContents() throws IOException {
+        createJarOneEntryA1();
+        createJarOneEntryAStoredLevel();
+        createJarOneEntryAContentsChanged();
+
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAStoredLevelFilename);
+        calc.setIgnoreTimestamps(true);
+        assertTrue(calc.getDifferences().getChanged().containsKey("A"));
+
+        calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAStoredLevelFilename);
+        calc.setIgnoreTimestamps(true);
+        calc.setCompareContents(true);
+        calc.setThreadCount(2);
+        assertFalse(calc.getDifferences().hasDifferences());
+
+        calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename);
+        calc.setIgnoreTimestamps(true);
+        calc.setCompareContents(true);
+        calc.setCompareCRCValues(false);
+        Differences differences = calc.getDifferences();
+        assertTrue(differences.getChanged().containsKey("A"));
+
+        exerciseOutputBuilders(differences);
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that the contents of entries in nested archives are compared as well.
+     */
+    @Test
+    public void testCalculateDifferencesCompareNestedContents() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        createJarNested(testJarNestedAContentsChangedFilename, (byte) 'b');
+
+        DifferenceCalculator calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+        calc.setCompareContents(true);
+        calc.setCompareCRCValues(false);
+        calc.setIgnoreTimestamps(true);
+        Differences differences = calc.getDifferences();
+        assertTrue(differences.getChanged().containsKey("lib/nested.jar/A"));
+        assertFalse(differences.getChanged().containsKey("B"));
+
+        ArchiveReader reader = new ZipFileArchiveReader(new ZipFile(testJarNestedAContentsChangedFilename));
+        EntryContents contents = new EntryContents(reader, calc.buildZipEntryMap(reader));
+        try {
+            InputStream is = contents.getInputStream("lib/nested.jar/A");
+            byte[] data = new byte[4096];
+            int length = 0;
+            int n;
+            while ((n = is.read(data, length, data.length - length)) > 0) {
+                length += n;
+            }
+            is.close();
+            assertEquals(2048, length);
+            assertEquals('b', data[length - 1]);
+        } finally {
+            contents.close();
+            reader.close();
+        }
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that entries with the same metadata but different data are changed when verifying them.
+     */
+    @Test
+    public void testCalculateDifferencesVerifyUnchangedEntries() throws IOException {
+        createJarsOneEntryAStoredAndCorrupted();
+
+        for (ScanEngine engine : ScanEngine.values()) {
+            DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryAStored1Filename, testJarOneEntryAStoredCorruptedFilename);
+            calc.setScanEngine(engine);
+            assertFalse(calc.getDifferences().hasDifferences());
+
+            calc = new DifferenceCalculator(testJarOneEntryAStored1Filename, testJarOneEntryAStoredCorruptedFilename);
+            calc.setScanEngine(engine);
+            calc.setVerifyUnchangedEntries(true);
+            Differences differences = calc.getDifferences();
+            assertEquals(1, differences.getChanged().size());
+            assertTrue(differences.getChanged().containsKey("A"));
+
+            calc = new DifferenceCalculator(testJarOneEntryAStored1Filename, testJarOneEntryAStored1Filename);
+            calc.setScanEngine(engine);
+            calc.setVerifyUnchangedEntries(true);
+            assertFalse(calc.getDifferences().hasDifferences());
+        }
+    }
+
+    @Test
+    public void testCalculateDifferencesMergeAlgorithm() throws IOException {
+        Map<String, ZipEntry> m1 = new HashMap<String, ZipEntry>();
+        Map<String, ZipEntry> m2 = new HashMap<String, ZipEntry>();
+        for (int i = 0; i < 100; i++) {
+            String name = "dir" + (i % 7) + "/entry" + i;
+            ZipEntry entry = new ZipEntry(name);
+            entry.setSize(i);
+            if (i % 3 != 0) {
+                m1.put(name, entry);
+            }
+            if (i % 5 != 0) {
+                ZipEntry other = new ZipEntry(name);
+                other.setSize(i % 4 == 0 ? i + 1 : i);
+                m2.put(name, other);
+            }
+        }
+
+        DifferenceCalculator calc = new DifferenceCalculator("1.zip", "2.zip");
+        Differences hash = calc.calculateDifferences(m1, m2);
+        calc.setDiffAlgorithm(DiffAlgorithm.MERGE);
+        Differences merge = calc.calculateDifferences(m1, m2);
+
+        assertTrue(merge.hasDifferences());
+        assertEquals(hash.getAdded().keySet(), merge.getAdded().keySet());
+        assertEquals(hash.getRemoved().keySet(), merge.getRemoved().keySet());
+        assertEquals(hash.getChanged().keySet(), merge.getChanged().keySet());
+
+        // the differences are reported in name order
+        List<String> names = new ArrayList<String>();
+        names.addAll(merge.getAdded().keySet());
+        List<String> sorted = new ArrayList<String>(names);
+        java.util.Collections.sort(sorted);
+        assertEquals(sorted, names);
+    }
+
+    @Test
+    public void testCalculateDifferencesIndexCache() throws IOException {
+        final String changedFilename = testDirPathName + File.separator + "testJarIndexCache.jar";
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        createJarNested(changedFilename, (byte) 2);
+        File cacheDir = new File(testDirPathName, "indexCache");
+        if (cacheDir.isDirectory()) {
+            for (File f : cacheDir.listFiles()) {
+                f.delete();
+            }
+        }
+
+        final int[] indexed = new int[1];
+        class CountingCalculator extends DifferenceCalculator {
+            CountingCalculator() throws IOException {
+                super(testJarNestedA1Filename, changedFilename);
+                setIndexCache(new IndexCache(new File(testDirPathName, "indexCache")));
+            }
+
+            @Override
+            protected Map<String, ZipEntry> buildZipEntryMap(ArchiveReader reader) throws IOException {
+                indexed[0]++;
+                return super.buildZipEntryMap(reader);
+            }
+        }
+
+        Differences cold = new CountingCalculator().getDifferences();
+        assertEquals(2, indexed[0]);
+        assertEquals(2, cacheDir.listFiles().length);
+
+        Differences warm = new CountingCalculator().getDifferences();
+        assertEquals(2, indexed[0]);
+        assertTrue(warm.hasDifferences());
+        assertEquals(cold.getChanged().keySet(), warm.getChanged().keySet());
+        assertEquals(cold.getAdded().keySet(), warm.getAdded().keySet());
+        assertEquals(cold.getRemoved().keySet(), warm.getRemoved().keySet());
+
+        // other settings give another index
+        CountingCalculator calc = new CountingCalculator();
+        calc.setIgnoreCVSFiles(true);
+        calc.getDifferences();
+        assertEquals(4, indexed[0]);
+
+        // a changed archive is indexed again
+        createJarNested(changedFilename, (byte) 3);
+        new File(changedFilename).setLastModified(System.currentTimeMillis() + 10000);
+        new CountingCalculator().getDifferences();
+        assertEquals(5, indexed[0]);
+    }
+
+    @Test
+    public void testIgnoredNestedArchiveNotExpanded() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        createJarNested(testJarNestedA2Filename, (byte) 2);
+
+        final AtomicInteger expanded = new AtomicInteger();
+        class CountingCalculator extends DifferenceCalculator {
+            CountingCalculator() throws IOException {
+                super(testJarNestedA1Filename, testJarNestedA2Filename);
+            }
+
+            @Override
+            protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m)
+                    throws IOException {
+                expanded.incrementAndGet();
+                super.processEmbeddedZipFile(prefix, is, m);
+            }
+        }
+
+        DifferenceCalculator calc = new CountingCalculator();
+        calc.setIgnoreFilter(new EntryFilter("glob:lib/nested.jar/**"));
+        Differences d = calc.getDifferences();
+        assertEquals(0, expanded.get());
+        assertEquals(1, d.getChanged().size());
+        assertTrue(d.getChanged().containsKey("lib/nested.jar"));
+
+        calc = new CountingCalculator();
+        calc.setIgnoreFilter(new EntryFilter("glob:lib/*.jar"));
+        d = calc.getDifferences();
+        assertEquals(0, expanded.get());
+        assertFalse(d.hasDifferences());
+
+        calc = new CountingCalculator();
+        calc.setIgnoreFilter(new EntryFilter("glob:lib/other.jar/**"));
+        d = calc.getDifferences();
+        assertEquals(2, expanded.get());
+        assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+    }
+
+    @Test
+    public void testIncludeFilter() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        createJarNested(testJarNestedA2Filename, (byte) 2);
+
+        final AtomicInteger expanded = new AtomicInteger();
+        class CountingCalculator extends DifferenceCalculator {
+            CountingCalculator() throws IOException {
+                super(testJarNestedA1Filename, testJarNestedA2Filename);
+            }
+
+            @Override
+            protected void processEmbeddedZipFile(String prefix, InputStream is, Map<String, ZipEntry> m)
+                    throws IOException {
+                expanded.incrementAndGet();
+                super.processEmbeddedZipFile(prefix, is, m);
+            }
+        }
+
+        DifferenceCalculator calc = new CountingCalculator();
+        calc.setIncludeFilter(new EntryFilter(ENTRYB));
+        Differences d = calc.getDifferences();
+        assertEquals(0, expanded.get());
+        assertFalse(d.hasDifferences());
+
+        calc = new CountingCalculator();
+        calc.setIncludeFilter(new EntryFilter("glob:*/*.jar/**"));
+        d = calc.getDifferences();
+        assertEquals(2, expanded.get());
+        assertEquals(1, d.getChanged().size());
+        assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+
+        for (int i = 0; i < 2; i++) {
+            calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA2Filename);
+            calc.setIncludeFilter(new EntryFilter("glob:*/*.jar/**"));
+            calc.setSkipUnchangedNestedArchives(i == 0);
+            calc.setForkJoinExpansion(i == 1);
+            d = calc.getDifferences();
+            assertEquals(1, d.getChanged().size());
+            assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+        }
+
+        // the contents of the entries are read from their nested archive, left out of the indexes
+        for (int i = 0; i < 2; i++) {
+            calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA2Filename);
+            calc.setIncludeFilter(new EntryFilter("glob:*/*.jar/**"));
+            calc.setCompareContents(i == 0);
+            calc.setVerifyUnchangedEntries(i == 1);
+            d = calc.getDifferences();
+            assertEquals(1, d.getChanged().size());
+            assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+        }
+        calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA1Filename);
+        calc.setIncludeFilter(new EntryFilter("glob:*/*.jar/**"));
+        calc.setCheckIdentity(false);
+        calc.setVerifyUnchangedEntries(true);
+        assertFalse(calc.getDifferences().hasDifferences());
+    }
+
+    /*
+     * Test for boolean hasDifferences()
+     * Test that the quick check agrees with the full calculation, whether it is conclusive or not.
+     */
+    @Test
+    public void testHasDifferences() throws IOException {
+        createJarOneEntryA1();
+        createJarOneEntryA2();
+        createJarOneEntryB1();
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        createJarNested(testJarNestedAContentsChangedFilename, (byte) 'b');
+
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryA2Filename);
+        assertFalse(calc.hasDifferences());
+
+        calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+        assertTrue(calc.hasDifferences());
+
+        calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA1Filename);
+        assertFalse(calc.hasDifferences());
+
+        for (int i = 0; i < 2; i++) {
+            calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+            calc.setCompareCRCValues(i == 0);
+            assertTrue(calc.hasDifferences());
+        }
+
+        // the filter rules out the quick check, and every difference
+        calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+        calc.setIgnoreFilter(new EntryFilter("glob:lib/**"));
+        assertFalse(calc.hasDifferences());
+        assertFalse(calc.getDifferences().hasDifferences());
+    }
+
+    /*
+     * Test for Differences calculateDifferences(ZipFile, ZipFile)
+     * Test that identical archives, whatever their comments, are not compared entry by entry.
+     */
+    @Test
+    public void testCalculateDifferencesIdenticalArchives() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        String copy = testDirPathName + File.separator + "testJarNestedA1Copy.jar";
+        copyWithComment(testJarNestedA1Filename, copy, "copy");
+        createJarsOneEntryAStoredAndCorrupted();
+
+        final AtomicInteger compared = new AtomicInteger();
+        class CountingCalculator extends DifferenceCalculator {
+            CountingCalculator(String filename1, String filename2) throws IOException {
+                super(filename1, filename2);
+            }
+
+            @Override
+            protected void calculateDifferences(ArchiveReader reader1, ArchiveReader reader2, DiffListener listener)
+                    throws IOException {
+                compared.incrementAndGet();
+                super.calculateDifferences(reader1, reader2, listener);
+            }
+        }
+
+        DifferenceCalculator calc = new CountingCalculator(testJarNestedA1Filename, copy);
+        assertFalse(calc.getDifferences().hasDifferences());
+        assertEquals(0, compared.get());
+
+        calc = new CountingCalculator(testJarNestedA1Filename, copy);
+        calc.setCheckIdentity(false);
+        assertFalse(calc.getDifferences().hasDifferences());
+        assertEquals(1, compared.get());
+
+        // the whole files are hashed when the data must be checked, and the comments make them differ
+        calc = new CountingCalculator(testJarNestedA1Filename, copy);
+        calc.setVerifyUnchangedEntries(true);
+        calc.setHashWholeArchives(true);
+        assertFalse(calc.getDifferences().hasDifferences());
+        assertEquals(2, compared.get());
+
+        calc = new CountingCalculator(testJarNestedA1Filename, testJarNestedA1Filename);
+        calc.setVerifyUnchangedEntries(true);
+        calc.setHashWholeArchives(true);
+        assertFalse(calc.getDifferences().hasDifferences());
+        assertEquals(2, compared.get());
+
+        // same central directories, different data
+        for (int i = 0; i < 2; i++) {
+            calc = new CountingCalculator(testJarOneEntryAStored1Filename, testJarOneEntryAStoredCorruptedFilename);
+            calc.setVerifyUnchangedEntries(true);
+            calc.setHashWholeArchives(i == 1);
+            assertEquals(1, calc.getDifferences().getChanged().size());
+        }
+        assertEquals(4, compared.get());
+
+        // the ZipFiles given to the calculator are closed even when the archives are not read
+        ZipFile zf1 = new ZipFile(testJarNestedA1Filename);
+        ZipFile zf2 = new ZipFile(copy);
+        assertFalse(new DifferenceCalculator(zf1, zf2).getDifferences().hasDifferences());
+        assertClosed(zf1);
+        assertClosed(zf2);
+
+        zf1 = new ZipFile(testJarNestedA1Filename);
+        zf2 = new ZipFile(copy);
+        assertFalse(new DifferenceCalculator(zf1, zf2).hasDifferences());
+        assertClosed(zf1);
+        assertClosed(zf2);
+
+        zf1 = new ZipFile(testJarNestedA1Filename);
+        zf2 = new ZipFile(testJarOneEntryAStored1Filename);
+        calc = new DifferenceCalculator(zf1, zf2);
+        calc.setCheckIdentity(false);
+        assertTrue(calc.hasDifferences());
+        assertClosed(zf1);
+        assertClosed(zf2);
+        assertTrue(new File(copy).delete());
+    }
+
+    private static void assertClosed(ZipFile zipFile) {
+        try {
+            zipFile.size();
+            fail(zipFile.getName() + " is still open");
+        } catch (IllegalStateException e) {
+            // closed
+        }
+    }
+
+    /*
+     * Test for Map buildZipEntryMap(ZipFile)
+     * Test that nested archives are read from their central directory, in memory or from a temporary file,
+     * and that a nested archive which is not a valid one is kept as a single entry.
+     */
+    @Test
+    public void testNestedArchiveMemoryThreshold() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 'a');
+        createJarNested(testJarNestedAContentsChangedFilename, (byte) 'b');
+
+        for (int i = 0; i < 4; i++) {
+            DifferenceCalculator calc = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedAContentsChangedFilename);
+            calc.setNestedArchiveMemoryThreshold(i % 2 == 0 ? 0 : MappedArchiveReader.DEFAULT_MEMORY_THRESHOLD);
+            calc.setForkJoinExpansion(i >= 2);
+            ZipFile zf = new ZipFile(testJarNestedA1Filename);
+            try {
+                // the nested entry was written with a data descriptor
+                ZipEntry entry = calc.buildZipEntryMap(zf).get("lib/nested.jar/" + ENTRYA);
+                assertEquals(2048, entry.getSize());
+                assertTrue(entry.getCrc() != -1);
+                assertTrue(entry.getCompressedSize() != -1);
+            } finally {
+                zf.close();
+            }
+            Differences d = calc.getDifferences();
+            assertEquals(2, d.getChanged().size());
+            assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+        }
+
+        String broken = testDirPathName + File.separator + "testJarNestedBroken.jar";
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(broken));
+        jos.putNextEntry(new JarEntry("lib/broken.jar"));
+        jos.write("not an archive".getBytes("US-ASCII"));
+        jos.close();
+        DifferenceCalculator calc = new DifferenceCalculator(broken, broken);
+        calc.setCheckIdentity(false);
+        ZipFile zf = new ZipFile(broken);
+        try {
+            assertEquals(1, calc.buildZipEntryMap(zf).size());
+        } finally {
+            zf.close();
+        }
+        assertFalse(calc.getDifferences().hasDifferences());
+
+        // a nested archive whose central directory is corrupted is kept as a single entry too
+        byte[] nested = createNestedJarContent(0, 2);
+        for (int i = nested.length - 4; i >= 0; i--) {
+            if (nested[i] == 'P' && nested[i + 1] == 'K' && nested[i + 2] == 1 && nested[i + 3] == 2) {
+                nested[i + 3] = 0;
+                break;
+            }
+        }
+        jos = new JarOutputStream(new FileOutputStream(broken));
+        jos.putNextEntry(new JarEntry("entry.txt"));
+        jos.putNextEntry(new JarEntry("lib/corrupted.jar"));
+        jos.write(nested);
+        jos.close();
+        for (int i = 0; i < 2; i++) {
+            calc = new DifferenceCalculator(broken, broken);
+            calc.setForkJoinExpansion(i == 1);
+            zf = new ZipFile(broken);
+            try {
+                Map<String, ZipEntry> map = calc.buildZipEntryMap(zf);
+                assertEquals(2, map.size());
+                assertTrue(map.containsKey("lib/corrupted.jar"));
+            } finally {
+                zf.close();
+            }
+        }
+    }
+
+    /*
+     * Test for Differences getDifferences()
+     * Test that the line differences of the changed text entries are computed, including in nested archives,
+     * and that the other changed entries and the large text entries are reported without them.
+     */
+    @Test
+    public void testTextDiff() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append("<line>").append(i).append("</line>\n");
+        }
+        String jar1 = testDirPathName + File.separator + "testJarText1.jar";
+        String jar2 = testDirPathName + File.separator + "testJarText2.jar";
+        writeJar(jar1, "a=1\nb=1\nc=1\n", "x=1\n", "\u0001\u0002", large + "<end/>\n");
+        writeJar(jar2, "a=1\nb=2\nc=1\n", "x=2\n", "\u0001\u0003", large + "<end></end>\n");
+
+        DifferenceCalculator calc = new DifferenceCalculator(jar1, jar2);
+        calc.setIgnoreTimestamps(true);
+        assertEquals(5, calc.getDifferences().getChanged().size());
+        assertTrue(calc.getDifferences().getTextDiffs().isEmpty());
+
+        for (int threads = 1; threads <= 2; threads++) {
+            calc = new DifferenceCalculator(jar1, jar2);
+            calc.setIgnoreTimestamps(true);
+            calc.setTextDiff(true);
+            calc.setThreadCount(threads);
+            calc.getLineDiff().setMaxSize(1000);
+            Differences d = calc.getDifferences();
+            assertEquals(5, d.getChanged().size());
+            assertEquals(3, d.getTextDiffs().size());
+            assertFalse(d.getTextDiffs().containsKey("data.bin"));
+
+            TextDiff diff = d.getTextDiffs().get("conf/app.properties");
+            assertEquals(1, diff.getHunks().size());
+            assertEquals("@@ -1,3 +1,3 @@", diff.getHunks().get(0).getHeader());
+            assertEquals(java.util.Arrays.asList(" a=1", "-b=1", "+b=2", " c=1"), diff.getHunks().get(0).getLines());
+
+            diff = d.getTextDiffs().get("lib/nested.jar/META-INF/MANIFEST.MF");
+            assertEquals(1, diff.getAddedLines());
+            assertEquals(1, diff.getRemovedLines());
+
+            assertTrue(d.getTextDiffs().get("big.xml").isSkipped());
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new TextBuilder().build(baos, d);
+            assertTrue(baos.toString("UTF-8").contains("\t\t+b=2\n"));
+
+            baos = new ByteArrayOutputStream();
+            new XmlBuilder().build(baos, d);
+            Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new ByteArrayInputStream(baos.toByteArray())).getDocumentElement();
+            assertEquals(3, root.getElementsByTagName("textdiff").getLength());
+            assertEquals(5, root.getElementsByTagName("changed").getLength());
+
+            exerciseOutputBuilders(d);
+        }
+    }
+
+    /*
+     * Test for void XmlBuilder.build(OutputStream, Differences)
+     * Test that the characters not allowed in xml, in the changed lines or in the entry names, are replaced so
+     * that the report stays well-formed.
+     */
+    @Test
+    public void testXmlBuilderInvalidCharacters() throws Exception {
+        String jar1 = testDirPathName + File.separator + "testJarXmlInvalid1.jar";
+        String jar2 = testDirPathName + File.separator + "testJarXmlInvalid2.jar";
+        writeJar(jar1, "a=\u0001\tb\n", "x=1\n", "", "<a/>\n");
+        writeJar(jar2, "a=\u0002\uFFFE\uD83D\uDE00\n", "x=1\n", "", "<a/>\n");
+
+        DifferenceCalculator calc = new DifferenceCalculator(jar1, jar2);
+        calc.setIgnoreTimestamps(true);
+        calc.setTextDiff(true);
+        Differences d = calc.getDifferences();
+        assertEquals(1, d.getTextDiffs().size());
+        d.fileAdded("bell\u0007.txt", new ZipEntry("bell\u0007.txt"));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new XmlBuilder().build(baos, d);
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(baos.toByteArray())).getDocumentElement();
+        NodeList lines = root.getElementsByTagName("line");
+        assertEquals(2, lines.getLength());
+        assertEquals("a=\uFFFD\tb", lines.item(0).getTextContent());
+        assertEquals("a=\uFFFD\uFFFD\uD83D\uDE00", lines.item(1).getTextContent());
+        assertEquals("bell\uFFFD.txt", root.getElementsByTagName("added").item(0).getTextContent());
+    }
+
+    /**
+     * Writes a jar holding a properties file, a manifest in a nested jar, a binary file and an xml file.
+     */
+    private void writeJar(String filename, String properties, String manifest, String binary, String xml)
+            throws IOException {
+        new File(testDirPathName).mkdirs();
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        JarOutputStream jos = new JarOutputStream(nested);
+        jos.putNextEntry(new JarEntry("META-INF/MANIFEST.MF"));
+        jos.write(manifest.getBytes("UTF-8"));
+        jos.close();
+
+        jos = new JarOutputStream(new FileOutputStream(filename));
+        try {
+            jos.putNextEntry(new JarEntry("conf/app.properties"));
+            jos.write(properties.getBytes("UTF-8"));
+            jos.putNextEntry(new JarEntry("lib/nested.jar"));
+            jos.write(nested.toByteArray());
+            jos.putNextEntry(new JarEntry("data.bin"));
+            jos.write(binary.getBytes("UTF-8"));
+            jos.putNextEntry(new JarEntry("big.xml"));
+            jos.write(xml.getBytes("UTF-8"));
+        } finally {
+            jos.close();
+        }
+    }
+
+    /*
+     * Test for Statistics getStatistics()
+     * Test that the entries and nested archives of a run are counted, its phases timed, and its statistics
+     * published as an MBean replaced by the next run.
+     */
+    @Test
+    public void testStatistics() throws Exception {
+        String jar1 = testDirPathName + File.separator + "testJarStatistics1.jar";
+        String jar2 = testDirPathName + File.separator + "testJarStatistics2.jar";
+        new File(testDirPathName).mkdirs();
+        byte[] content = createNestedJarContent(2, 2);
+        for (String jar : new String[]{jar1, jar2}) {
+            FileOutputStream out = new FileOutputStream(jar);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+
+        javax.management.ObjectName name = new javax.management.ObjectName("com.mfalaize.zipdiff:type=StatisticsTest");
+        javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int threads = 1; threads <= 2; threads++) {
+            DifferenceCalculator calc = new DifferenceCalculator(jar1, jar2);
+            calc.setCheckIdentity(false);
+            calc.setCompareContents(true);
+            calc.setVerifyUnchangedEntries(true);
+            calc.setThreadCount(threads);
+            calc.setStatisticsObjectName(name);
+            Differences d = calc.getDifferences();
+            assertFalse(d.hasDifferences());
+
+            Statistics stats = d.getStatistics();
+            assertSame(calc.getStatistics(), stats);
+            assertEquals(20, stats.getEntries1());
+            assertEquals(20, stats.getEntries2());
+            assertEquals(40, stats.getPeakIndexSize());
+            assertEquals(12, stats.getNestedArchivesExpanded());
+            assertEquals(2, stats.getMaxDepth());
+            assertTrue(stats.getBytesRead() > 0);
+            assertTrue(stats.getBytesInflated() > 0);
+            assertTrue(stats.getWallTime(Statistics.Phase.INDEX) > 0);
+            assertTrue(stats.getWallTime(Statistics.Phase.COMPARISON) > 0);
+            assertTrue(stats.getWallTime(Statistics.Phase.CONTENTS) > 0);
+            assertEquals(0, stats.getWallTime(Statistics.Phase.TEXT_DIFF));
+            assertTrue(stats.toString().contains("Nested archives expanded: 12 (max depth 2)"));
+
+            assertEquals(12L, server.getAttribute(name, "NestedArchivesExpanded"));
+        }
+        server.unregisterMBean(name);
+        assertEquals(3, DifferenceCalculator.nestingDepth("a.ear/lib/b.war/WEB-INF/lib/c.jar"));
+    }
+
+    /*
+     * Test for TimingDiffListener
+     * Test that a report written as the differences are found is timed as the report phase, and left out of
+     * the comparison it is called from.
+     */
+    @Test
+    public void testStatisticsStreamingReport() throws IOException {
+        createJarOneEntryA1();
+        createJarOneEntryB1();
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+        DifferenceCounter counter = new DifferenceCounter();
+        calc.getDifferences(new TimingDiffListener(calc, new CompositeDiffListener(counter, new Differences() {
+            @Override
+            public void fileAdded(String fqn, ZipEntry ze) {
+                sleep();
+            }
+
+            @Override
+            public void fileRemoved(String fqn, ZipEntry ze) {
+                sleep();
+            }
+
+            private void sleep() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        })));
+        assertEquals(1, counter.getAddedCount());
+        assertEquals(1, counter.getRemovedCount());
+
+        Statistics stats = calc.getStatistics();
+        assertTrue(stats.getWallTime(Statistics.Phase.REPORT) >= 200000000L);
+        assertTrue(stats.getWallTime(Statistics.Phase.COMPARISON) < 100000000L);
+    }
+
+    /*
+     * Test for Map buildZipEntryMap(ArchiveReader)
+     * Test that the scan of a flat archive allocates less than the targets of ScanAllocationBenchmark in the
+     * benchmarks module: 700 bytes per entry to index it and 1000 bytes per entry to read its contents.
+     */
+    @Test
+    public void testScanAllocation() throws IOException {
+        // the allocated bytes are only counted by HotSpot
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported()
+                && threads.isThreadAllocatedMemoryEnabled());
+
+        int count = 20000;
+        File archive = new File(testDirPathName, "testJarManyEntries.jar");
+        JarOutputStream jos = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        for (int i = 0; i < count; i++) {
+            jos.putNextEntry(new JarEntry("dir" + (i % 100) + "/entry" + i + ".class"));
+            jos.write(("content of entry " + i).getBytes("US-ASCII"));
+        }
+        jos.close();
+
+        DifferenceCalculator calc = new DifferenceCalculator(archive, archive);
+        MappedArchiveReader reader = new MappedArchiveReader(archive);
+        try {
+            long index = Long.MAX_VALUE;
+            long read = Long.MAX_VALUE;
+            // the first rounds warm up the pools and the JIT, the minimum of the others leaves out the noise
+            for (int round = 0; round < 8; round++) {
+                long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                Map<String, ZipEntry> map = calc.buildZipEntryMap(reader);
+                long indexed = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                Enumeration<? extends ZipEntry> entries = reader.entries();
+                while (entries.hasMoreElements()) {
+                    DifferenceCalculator.hashContent(reader.getInputStream(entries.nextElement()));
+                }
+                long end = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                assertEquals(count, map.size());
+                if (round >= 3) {
+                    index = Math.min(index, (indexed - start) / count);
+                    read = Math.min(read, (end - indexed) / count);
+                }
+            }
+            assertTrue("indexing allocates " + index + " bytes per entry", index < 700);
+            assertTrue("reading allocates " + read + " bytes per entry", read < 1000);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copy an archive, replacing its empty comment
+     *
+     * @throws IOException
+     */
+    private void copyWithComment(String source, String destination, String comment) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        byte[] content;
+        try {
+            content = new byte[(int) in.length()];
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        byte[] bytes = comment.getBytes("US-ASCII");
+        // the comment length is the last field of the End of Central Directory record
+        content[content.length - 2] = (byte) bytes.length;
+        content[content.length - 1] = (byte) (bytes.length >> 8);
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            out.write(content);
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Extract the entries of a jar into a directory
+     *
+     * @throws IOException
+     */
+    private void explodeJar(String filename, File dir) throws IOException {
+        ZipFile zf = new ZipFile(filename);
+        try {
+            for (ZipEntry entry : java.util.Collections.list(zf.entries())) {
+                File f = new File(dir, entry.getName());
+                f.getParentFile().mkdirs();
+                InputStream is = zf.getInputStream(entry);
+                FileOutputStream fos = new FileOutputStream(f);
+                try {
+                    byte[] buffer = new byte[1024];
+                    int n;
+                    while ((n = is.read(buffer)) != -1) {
+                        fos.write(buffer, 0, n);
+                    }
+                } finally {
+                    fos.close();
+                    is.close();
+                }
+            }
+        } finally {
+            zf.close();
+        }
+    }
+
+    @Test
+    public void testCalculateDifferencesDirectory() throws IOException {
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        File dir1 = new File(testDirPathName, "testDirNested1");
+        File dir2 = new File(testDirPathName, "testDirNested2");
+        explodeJar(testJarNestedA1Filename, dir1);
+        explodeJar(testJarNestedA1Filename, dir2);
+        for (String link : new String[]{"link", "lib/parent", "broken"}) {
+            java.nio.file.Files.deleteIfExists(new File(dir2, link).toPath());
+        }
+
+        // the jar has no entry for the directory lib, so it is left out, and the files are younger than its entries
+        DifferenceCalculator calc = new DifferenceCalculator(new File(testJarNestedA1Filename), dir1);
+        calc.setIgnoreTimestamps(true);
+        assertFalse(calc.getDifferences().hasDifferences());
+
+        // the times of the files are compared with the 2 seconds precision of the jar
+        ZipFile zf = new ZipFile(testJarNestedA1Filename);
+        try {
+            for (ZipEntry entry : java.util.Collections.list(zf.entries())) {
+                assertTrue(new File(dir1, entry.getName()).setLastModified(entry.getTime() + 1500));
+            }
+        } finally {
+            zf.close();
+        }
+        for (int i = 0; i < 2; i++) {
+            calc = new DifferenceCalculator(new File(testJarNestedA1Filename), dir1);
+            calc.setIndexCache(i == 0 ? null : new IndexCache(new File(testDirPathName, "testDirCache")));
+            assertFalse(calc.getDifferences().hasDifferences());
+        }
+
+        // the directories of the directory are reported when the jar has entries for its directories
+        String withDirectories = testDirPathName + File.separator + "testJarNestedDirectories.jar";
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(withDirectories));
+        jos.putNextEntry(new JarEntry("META-INF/"));
+        jos.close();
+        calc = new DifferenceCalculator(new File(withDirectories), dir1);
+        Differences d = calc.getDifferences();
+        assertTrue(d.getAdded().containsKey("lib/"));
+        assertTrue(d.getRemoved().containsKey("META-INF/"));
+
+        calc = new DifferenceCalculator(dir1, dir2);
+        calc.setIgnoreTimestamps(true);
+        calc.setForkJoinExpansion(true);
+        assertFalse(calc.getDifferences().hasDifferences());
+
+        // same size, other content
+        FileOutputStream fos = new FileOutputStream(new File(dir2, ENTRYB));
+        fos.write('c');
+        fos.close();
+        calc = new DifferenceCalculator(dir1, dir2);
+        calc.setIgnoreTimestamps(true);
+        d = calc.getDifferences();
+        assertEquals(1, d.getChanged().size());
+        assertTrue(d.getChanged().containsKey(ENTRYB));
+
+        calc = new DifferenceCalculator(new File(testJarNestedA1Filename), dir2);
+        calc.setIgnoreTimestamps(true);
+        d = calc.getDifferences();
+        assertTrue(d.getChanged().containsKey(ENTRYB));
+        assertEquals(1, d.getChanged().size());
+
+        // the nested archive of the directory is expanded too
+        createJarNested(testJarNestedA2Filename, (byte) 2);
+        calc = new DifferenceCalculator(new File(testJarNestedA2Filename), dir1);
+        calc.setIgnoreTimestamps(true);
+        d = calc.getDifferences();
+        assertTrue(d.getChanged().containsKey("lib/nested.jar/" + ENTRYA));
+
+        // the symbolic links are followed, except those making the tree infinite
+        java.nio.file.Path[] links = {new File(dir2, "link").toPath(), new File(dir2, "lib/parent").toPath(),
+                new File(dir2, "broken").toPath()};
+        try {
+            java.nio.file.Files.createSymbolicLink(links[0], new File(dir2, ENTRYB).toPath());
+            java.nio.file.Files.createSymbolicLink(links[1], dir2.toPath());
+            java.nio.file.Files.createSymbolicLink(links[2], new File(dir2, "none").toPath());
+        } catch (UnsupportedOperationException e) {
+            assumeTrue(false);
+        } catch (IOException e) {
+            assumeTrue(false);
+        }
+        try {
+            calc = new DifferenceCalculator(dir1, dir2);
+            calc.setIgnoreTimestamps(true);
+            d = calc.getDifferences();
+            assertEquals(1, d.getAdded().size());
+            assertEquals(1, d.getAdded().get("link").getSize());
+        } finally {
+            for (java.nio.file.Path link : links) {
+                java.nio.file.Files.deleteIfExists(link);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchCalculator() throws IOException {
+        String variant1 = testDirPathName + File.separator + "testJarBatch1.jar";
+        String variant2 = testDirPathName + File.separator + "testJarBatch2.jar";
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        createJarNested(variant1, (byte) 1);
+        createJarNested(variant2, (byte) 2);
+        File manifest = new File(testDirPathName, "testBatch.txt");
+        FileOutputStream fos = new FileOutputStream(manifest);
+        try {
+            fos.write(("# variants\n" + variant1 + "\n\n" + variant2 + "\n"
+                    + testJarNestedA1Filename + "\ttestJarBatchMissing.jar\n").getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+
+        final AtomicInteger indexed = new AtomicInteger();
+        DifferenceCalculator calc = new DifferenceCalculator() {
+            @Override
+            protected Map<String, ZipEntry> buildZipEntryMap(ArchiveReader reader) throws IOException {
+                indexed.incrementAndGet();
+                return super.buildZipEntryMap(reader);
+            }
+        };
+        BatchCalculator batch = new BatchCalculator(calc);
+        batch.addPairs(manifest, new File(testJarNestedA1Filename));
+        batch.setParallelism(2);
+        assertEquals(3, batch.getPairs().size());
+
+        final Map<Integer, Differences> reports = new ConcurrentHashMap<Integer, Differences>();
+        List<BatchCalculator.Result> results = batch.calculate(new BatchCalculator.ListenerFactory() {
+            public DiffListener createListener(int pair, File file1, File file2) {
+                Differences d = new Differences();
+                reports.put(pair, d);
+                return d;
+            }
+        });
+
+        assertEquals(3, results.size());
+        assertFalse(results.get(0).hasDifferences());
+        assertNull(results.get(0).getError());
+        assertTrue(results.get(1).hasDifferences());
+        assertNotNull(results.get(2).getError());
+        assertEquals(new File(variant2), results.get(1).getFile2());
+
+        Differences expected = new DifferenceCalculator(testJarNestedA1Filename, variant2).getDifferences();
+        Differences d = reports.get(1);
+        assertEquals(expected.getChanged().keySet(), d.getChanged().keySet());
+        assertEquals(expected.getAdded().keySet(), d.getAdded().keySet());
+        assertEquals(expected.getRemoved().keySet(), d.getRemoved().keySet());
+        assertEquals(results.get(1).getCounter().getChangedCount(), d.getChanged().size());
+
+        // the baseline is indexed once for all its pairs
+        assertEquals(3, indexed.get());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new BatchSummaryBuilder().build(baos, results);
+        String summary = baos.toString("UTF-8");
+        assertTrue(summary, summary.contains("3 pairs compared, 1 different, 1 failed"));
+
+        // a listener failing does not stop the other pairs
+        results = batch.calculate(new BatchCalculator.ListenerFactory() {
+            public DiffListener createListener(int pair, File file1, File file2) {
+                if (pair != 1) {
+                    return null;
+                }
+                return new Differences() {
+                    @Override
+                    public void fileChanged(String fqn, ZipEntry z1, ZipEntry z2) {
+                        throw new IllegalStateException("cannot write " + fqn);
+                    }
+                };
+            }
+        });
+        assertEquals(3, results.size());
+        assertNull(results.get(0).getError());
+        assertTrue(results.get(1).getError() instanceof IllegalStateException);
+        assertFalse(results.get(1).hasDifferences());
+        assertTrue(results.get(2).getError() instanceof IOException);
+
+        // the calculator only holds the settings of the batch
+        try {
+            calc.getDifferences();
+            fail("no archives to compare");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCalculateDifferencesSnapshot() throws IOException {
+        String changedFilename = testDirPathName + File.separator + "testJarSnapshot.jar";
+        File snapshotFile = new File(testDirPathName, "testJarSnapshot.snapshot");
+        createJarNested(testJarNestedA1Filename, (byte) 1);
+        createJarNested(changedFilename, (byte) 2);
+
+        DifferenceCalculator exporter = new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA1Filename);
+        Snapshot snapshot = Snapshot.export(exporter, new File(testJarNestedA1Filename), snapshotFile, true);
+        assertTrue(snapshot.hasContentHashes());
+        assertEquals(new DifferenceCalculator(testJarNestedA1Filename, testJarNestedA1Filename)
+                .buildZipEntryMap(new ZipFile(testJarNestedA1Filename)).keySet(), snapshot.getIndex().keySet());
+
+        Differences same = new DifferenceCalculator(new Snapshot(snapshotFile), new File(testJarNestedA1Filename))
+                .getDifferences();
+        assertFalse(same.hasDifferences());
+
+        Differences expected = new DifferenceCalculator(testJarNestedA1Filename, changedFilename).getDifferences();
+        Differences d = new DifferenceCalculator(new Snapshot(snapshotFile), new File(changedFilename))
+                .getDifferences();
+        assertTrue(d.hasDifferences());
+        assertEquals(expected.getChanged().keySet(), d.getChanged().keySet());
+        assertEquals(expected.getAdded().keySet(), d.getAdded().keySet());
+        assertEquals(expected.getRemoved().keySet(), d.getRemoved().keySet());
+
+        // the content hashes stand in for the content of the first archive
+        DifferenceCalculator calc = new DifferenceCalculator(testJarNestedA1Filename, changedFilename);
+        calc.setCompareContents(true);
+        expected = calc.getDifferences();
+        calc = new DifferenceCalculator(new Snapshot(snapshotFile), new File(changedFilename));
+        calc.setCompareContents(true);
+        d = calc.getDifferences();
+        assertEquals(expected.getChanged().keySet(), d.getChanged().keySet());
+    }
+
+    @Test
+    public void testGetDifferencesStreaming() throws IOException {
+        createJarOneEntryA1();
+        createJarOneEntryB1();
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+        DifferenceCounter counter = new DifferenceCounter();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        calc.getDifferences(new CompositeDiffListener(new TextBuilder().createListener(baos), counter));
+
+        assertTrue(counter.hasDifferences());
+        assertEquals(1, counter.getAddedCount());
+        assertEquals(1, counter.getRemovedCount());
+        assertEquals(0, counter.getChangedCount());
+
+        String text = baos.toString("UTF-8");
+        assertTrue(text.contains("[added] B"));
+        assertTrue(text.contains("[removed] A"));
+
+        // the collected differences replay the same events
+        calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryB1Filename);
+        Differences differences = calc.getDifferences();
+        DifferenceCounter replayed = new DifferenceCounter();
+        differences.accept(replayed);
+        assertEquals(counter.getAddedCount(), replayed.getAddedCount());
+        assertEquals(counter.getRemovedCount(), replayed.getRemovedCount());
+        assertEquals(counter.getChangedCount(), replayed.getChangedCount());
+    }
+
+    @Test
+    public void testXmlBuilderStreaming() throws Exception {
+        createJarOneEntryA1();
+        createJarOneEntryAContentsChanged();
+        DifferenceCalculator calc = new DifferenceCalculator(testJarOneEntryA1Filename, testJarOneEntryAContentsChangedFilename);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        calc.getDifferences(new XmlBuilder().createListener(baos));
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(baos.toByteArray()));
+        Element root = doc.getDocumentElement();
+        assertEquals("zipdiff", root.getTagName());
+        assertEquals(testJarOneEntryA1Filename, root.getAttribute("filename1"));
+        assertEquals(1, root.getElementsByTagName("differences").getLength());
+
+        NodeList changed = root.getElementsByTagName("changed");
+        assertEquals(1, changed.getLength());
+        Element a = (Element) changed.item(0);
+        assertEquals("A", a.getTextContent());
+        ZipFile zf1 = new ZipFile(testJarOneEntryA1Filename);
+        ZipFile zf2 = new ZipFile(testJarOneEntryAContentsChangedFilename);
+        try {
+            assertEquals(Long.toString(zf1.getEntry("A").getSize()), a.getAttribute("size1"));
+            assertEquals(Long.toHexString(zf1.getEntry("A").getCrc()), a.getAttribute("crc1"));
+            assertEquals(Long.toString(zf2.getEntry("A").getSize()), a.getAttribute("size2"));
+            assertEquals(Long.toHexString(zf2.getEntry("A").getCrc()), a.getAttribute("crc2"));
+        } finally {
+            zf1.close();
+            zf2.close();
+        }
+    }
+
+    @Test
+    public void testPagedHtmlBuilder() throws IOException {
+        new File(testDirPathName).mkdirs();
+        Differences differences = new Differences();
+        differences.setFilename1("a.zip");
+        differences.setFilename2("b.zip");
+        for (int i = 0; i < 4; i++) {
+            differences.fileAdded("added" + i, new ZipEntry("added" + i));
+        }
+        differences.fileRemoved("</script>\"", new ZipEntry("removed"));
+
+        String index = testDirPathName + File.separator + "testPagedHtmlBuilder.html";
+        PagedHtmlBuilder builder = new PagedHtmlBuilder(2);
+        builder.build(index, differences);
+
+        File dataDirectory = PagedHtmlBuilder.getDataDirectory(new File(index));
+        assertEquals("testPagedHtmlBuilder_files", dataDirectory.getName());
+        assertTrue(new File(dataDirectory, "page-0.js").isFile());
+        assertTrue(new File(dataDirectory, "page-2.js").isFile());
+        assertFalse(new File(dataDirectory, "page-3.js").exists());
+        assertTrue(readFile(index).contains("pages: 3"));
+
+        String lastPage = readFile(new File(dataDirectory, "page-2.js").getPath());
+        assertTrue(lastPage.startsWith("zipdiff.load(2, [[\"r\","));
+        assertTrue(lastPage.contains("\\u003c/script\\u003e\\\""));
+
+        // a smaller report does not leave the pages of the previous one
+        builder = new PagedHtmlBuilder(10);
+        builder.build(index, differences);
+        assertTrue(new File(dataDirectory, "page-0.js").isFile());
+        assertFalse(new File(dataDirectory, "page-1.js").exists());
+    }
+
+    private String readFile(String filename) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(filename), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            int n;
+            while ((n = reader.read(buf)) != -1) {
+                sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
     private void exerciseHtmlBuilder(Differences differences) {
         assertNotNull(differences);
 
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Maxime Falaize
+ */
+public class EntryFilterTest {
+
+    private static final String[] NAMES = {
+            "A", "B", "META-INF/", "META-INF/MANIFEST.MF", "META-INF/maven/pom.xml", "WEB-INF/", "WEB-INF/web.xml",
+            "WEB-INF/lib/", "WEB-INF/lib/a.jar", "WEB-INF/lib/a.jar/x/Y.class", "WEB-INF/lib2/b.jar", "x.y.z",
+            "xaybz", "CVS/Root", "lib/nested.jar/A", "lib/nested.jar"
+    };
+
+    @Test
+    public void testSameMatchesAsRegularExpressions() {
+        String[] regexes = {"A", "META-INF/MANIFEST\\.MF", "WEB-INF/lib/.*", "x\\.y.z", ".*\\.class",
+                "(?i)meta-inf/.*", "WEB-INF/lib2?/.*\\.jar", "B|C", "lib/nested\\.jar/.*", "[A-Z]"};
+        for (String regex : regexes) {
+            EntryFilter filter = new EntryFilter(regex);
+            Pattern pattern = Pattern.compile(regex);
+            for (String name : NAMES) {
+                assertEquals(regex + " against " + name, pattern.matcher(name).matches(), filter.matches(name));
+            }
+        }
+
+        EntryFilter all = new EntryFilter(regexes);
+        for (String name : NAMES) {
+            boolean expected = false;
+            for (String regex : regexes) {
+                expected |= Pattern.matches(regex, name);
+            }
+            assertEquals(name, expected, all.matches(name));
+        }
+    }
+
+    @Test
+    public void testGlobs() {
+        EntryFilter filter = new EntryFilter("glob:WEB-INF/lib/**", "glob:*.jar", "glob:META-INF/*.MF",
+                "glob:x?y?z", "glob:CVS/Root");
+        assertTrue(filter.matches("WEB-INF/lib/"));
+        assertTrue(filter.matches("WEB-INF/lib/a.jar/x/Y.class"));
+        assertFalse(filter.matches("WEB-INF/lib2/b.jar"));
+        assertTrue(filter.matches("a.jar"));
+        assertFalse(filter.matches("lib/nested.jar"));
+        assertTrue(filter.matches("META-INF/MANIFEST.MF"));
+        assertFalse(filter.matches("META-INF/maven/pom.MF"));
+        assertTrue(filter.matches("xaybz"));
+        assertFalse(filter.matches("xa/bz"));
+        assertTrue(filter.matches("CVS/Root"));
+        assertFalse(filter.matches("CVS/Rootx"));
+
+        assertTrue(EntryFilter.globMatches("**/*.class", 0, "a/b/C.class", 0));
+        assertFalse(EntryFilter.globMatches("**/*.class", 0, "C.class", 0));
+        assertTrue(EntryFilter.globMatches("a/**/c", 0, "a/b/b/c", 0));
+        assertTrue(EntryFilter.globMatches("a\\*", 0, "a*", 0));
+        assertFalse(EntryFilter.globMatches("a\\*", 0, "ab", 0));
+    }
+
+    @Test
+    public void testMatchesAll() {
+        EntryFilter filter = new EntryFilter("WEB-INF/lib/.*", "glob:lib/nested.jar/**", ".*\\.class");
+        assertTrue(filter.matchesAll("WEB-INF/lib/"));
+        assertTrue(filter.matchesAll("WEB-INF/lib/a.jar/"));
+        assertTrue(filter.matchesAll("lib/nested.jar/"));
+        assertFalse(filter.matchesAll("WEB-INF/"));
+        assertFalse(filter.matchesAll("lib/"));
+        assertFalse(filter.matchesAll("lib/other.jar/"));
+
+        assertTrue(new EntryFilter(".*").matchesAll(""));
+        assertFalse(new EntryFilter("A").matchesAll(""));
+    }
+
+    @Test
+    public void testMayMatchBelow() {
+        EntryFilter filter = new EntryFilter("glob:*.war/WEB-INF/classes/**", "WEB-INF/lib/.*", "META-INF/MANIFEST\\.MF",
+                "lib/[a-z]+\\.jar/.*\\.class");
+        assertTrue(filter.mayMatchBelow(""));
+        assertTrue(filter.mayMatchBelow("app.war/"));
+        assertTrue(filter.mayMatchBelow("app.war/WEB-INF/"));
+        assertFalse(filter.mayMatchBelow("app.war/META-INF/"));
+        assertFalse(filter.mayMatchBelow("app.ear/"));
+        assertTrue(filter.mayMatchBelow("WEB-INF/lib/a.jar/"));
+        assertTrue(filter.mayMatchBelow("META-INF/"));
+        assertTrue(filter.mayMatchBelow("lib/nested.jar/"));
+        assertFalse(filter.mayMatchBelow("lib/nested2.jar/"));
+        assertFalse(filter.mayMatchBelow("other/"));
+
+        assertTrue(EntryFilter.globMayMatchBelow("**/*.class", 0, "a/b/", 0));
+        assertFalse(EntryFilter.globMayMatchBelow("*.jar", 0, "lib/", 0));
+    }
+}
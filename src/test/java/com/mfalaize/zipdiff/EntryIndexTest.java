@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Maxime Falaize
+ */
+public class EntryIndexTest {
+
+    private static ZipEntry entry(String name, long size) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setSize(size);
+        entry.setCompressedSize(size / 2);
+        entry.setCrc(size * 31);
+        entry.setTime(1000000000000L + size * 2000);
+        entry.setMethod(ZipEntry.DEFLATED);
+        return entry;
+    }
+
+    @Test
+    public void testSameContentAsLinkedHashMap() {
+        Map<String, ZipEntry> expected = new LinkedHashMap<String, ZipEntry>();
+        EntryIndex index = new EntryIndex(1);
+        for (int i = 0; i < 5000; i++) {
+            String name = (i % 3 == 0 ? "répertoire/" : "dir/") + "entry" + i + (i % 7 == 0 ? "/" : "");
+            expected.put(name, entry(name, i));
+            assertNull(index.put(name, entry(name, i)));
+        }
+
+        assertEquals(expected.size(), index.size());
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(index.keySet()));
+        for (Map.Entry<String, ZipEntry> e : expected.entrySet()) {
+            ZipEntry actual = index.get(e.getKey());
+            assertNotNull(actual);
+            assertEquals(e.getKey(), actual.getName());
+            assertEquals(e.getValue().isDirectory(), actual.isDirectory());
+            assertEquals(e.getValue().getSize(), actual.getSize());
+            assertEquals(e.getValue().getCompressedSize(), actual.getCompressedSize());
+            assertEquals(e.getValue().getCrc(), actual.getCrc());
+            assertEquals(e.getValue().getTime(), actual.getTime());
+            assertEquals(e.getValue().getMethod(), actual.getMethod());
+        }
+        assertFalse(index.containsKey("dir/entry5000"));
+        assertFalse(index.containsKey("répertoire/entry1"));
+        assertNull(index.get(new Object()));
+    }
+
+    @Test
+    public void testUnknownAttributes() {
+        EntryIndex index = new EntryIndex();
+        index.put("A", new ZipEntry("A"));
+        ZipEntry entry = index.get("A");
+        assertEquals(-1, entry.getSize());
+        assertEquals(-1, entry.getCompressedSize());
+        assertEquals(-1, entry.getCrc());
+        assertEquals(-1, entry.getTime());
+        assertEquals(-1, entry.getMethod());
+    }
+
+    @Test
+    public void testPutExistingKeepsPosition() {
+        EntryIndex index = new EntryIndex();
+        index.put("A", entry("A", 1));
+        index.put("B", entry("B", 2));
+        ZipEntry previous = index.put("A", entry("A", 3));
+        assertEquals(1, previous.getSize());
+        assertEquals(3, index.get("A").getSize());
+        assertEquals(Arrays.asList("A", "B"), new ArrayList<String>(index.keySet()));
+    }
+
+    @Test
+    public void testSortedOrder() {
+        EntryIndex index = new EntryIndex();
+        List<String> names = Arrays.asList("b/c", "b", "a", "é", "z", "b/", "ab");
+        for (String name : names) {
+            index.put(name, entry(name, 1));
+        }
+        List<String> sorted = new ArrayList<String>();
+        for (int i : index.sortedOrder()) {
+            sorted.add(index.getName(i));
+        }
+        assertEquals(Arrays.asList("a", "ab", "b", "b/", "b/c", "z", "é"), sorted);
+
+        EntryIndex other = new EntryIndex();
+        other.put("b", entry("b", 1));
+        assertEquals(0, index.compareNames(index.indexOf("b"), other, 0));
+        assertTrue(index.compareNames(index.indexOf("a"), other, 0) < 0);
+        assertTrue(index.compareNames(index.indexOf("b/"), other, 0) > 0);
+    }
+
+    @Test
+    public void testDirectoriesAreShared() {
+        EntryIndex index = new EntryIndex();
+        String prefix = "app.ear/lib/app.war/WEB-INF/lib/foo.jar/com/example/";
+        int nameLength = 0;
+        for (int i = 0; i < 1000; i++) {
+            String name = prefix + "Class" + i + ".class";
+            index.put(name, entry(name, i));
+            nameLength += name.length();
+        }
+        index.put(prefix, new ZipEntry(prefix));
+        index.put("app.ear/lib/app.war", entry("app.ear/lib/app.war", 1));
+
+        assertTrue(index.getNameBytes() < nameLength / 4);
+        assertEquals(prefix + "Class42.class", index.get(prefix + "Class42.class").getName());
+        assertTrue(index.get(prefix).isDirectory());
+        assertEquals(prefix, index.getName(1000));
+        assertEquals(1, index.get("app.ear/lib/app.war").getSize());
+        assertFalse(index.containsKey("app.ear/lib/other.war/WEB-INF/lib/foo.jar/com/example/Class42.class"));
+        assertFalse(index.containsKey("app.ear/lib/app.war/"));
+        assertFalse(index.containsKey(prefix + "Class42"));
+
+        int[] order = index.sortedOrder();
+        assertEquals("app.ear/lib/app.war", index.getName(order[0]));
+        assertEquals(prefix, index.getName(order[1]));
+        assertEquals(prefix + "Class0.class", index.getName(order[2]));
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        EntryIndex index = new EntryIndex();
+        for (int i = 0; i < 100; i++) {
+            String name = "lib/a" + (i % 5) + ".jar/é" + i;
+            index.put(name, entry(name, i));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        index.write(out);
+        out.close();
+
+        EntryIndex read = EntryIndex.read(ByteBuffer.wrap(baos.toByteArray()));
+        assertEquals(new ArrayList<String>(index.keySet()), new ArrayList<String>(read.keySet()));
+        assertEquals(42, read.get("lib/a2.jar/é42").getSize());
+        assertEquals(index.get("lib/a2.jar/é42").getTime(), read.get("lib/a2.jar/é42").getTime());
+
+        // the index read can still grow
+        for (int i = 100; i < 200; i++) {
+            String name = "lib/b" + (i % 5) + ".jar/" + i;
+            read.put(name, entry(name, i));
+        }
+        assertEquals(200, read.size());
+        assertEquals(150, read.get("lib/b0.jar/150").getSize());
+        assertEquals(42, read.get("lib/a2.jar/é42").getSize());
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.hash;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Maxime Falaize
+ */
+public class FileHasherTest {
+
+    private static File write(byte[] data) throws IOException {
+        File f = File.createTempFile("filehasher", ".bin");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testHash() throws IOException {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+        File f1 = write(data);
+        File f2 = write(data);
+        data[data.length - 1]++;
+        File f3 = write(data);
+        File empty = write(new byte[0]);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[]{1000, 3000, FileHasher.DEFAULT_CHUNK_SIZE}) {
+                FileHasher hasher = new FileHasher(pool, chunkSize);
+                long[] hashes = hasher.hash(f1, f2, f3, empty);
+                assertEquals(hashes[0], hashes[1]);
+                assertFalse(hashes[0] == hashes[2]);
+                assertFalse(hashes[0] == hashes[3]);
+                assertEquals(hashes[0], hasher.hash(f1)[0]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.hash;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Maxime Falaize
+ */
+public class XxHash64Test {
+
+    private static long hash(String s) throws Exception {
+        XxHash64 h = new XxHash64();
+        h.update(s.getBytes("US-ASCII"));
+        return h.getValue();
+    }
+
+    @Test
+    public void testReferenceValues() throws Exception {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+    }
+
+    @Test
+    public void testStreamingMatchesOneShot() {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+        XxHash64 oneShot = new XxHash64();
+        oneShot.update(data);
+
+        XxHash64 streaming = new XxHash64();
+        int off = 0;
+        int step = 1;
+        while (off < data.length) {
+            int len = Math.min(step, data.length - off);
+            streaming.update(data, off, len);
+            off += len;
+            step = step * 3 % 41 + 1;
+        }
+        assertEquals(oneShot.getValue(), streaming.getValue());
+        assertEquals(data.length, streaming.getLength());
+
+        streaming.reset();
+        for (byte b : data) {
+            streaming.update(b);
+        }
+        assertEquals(oneShot.getValue(), streaming.getValue());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.scan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Maxime Falaize
+ */
+public class MappedArchiveReaderTest {
+
+    private File archive;
+
+    @Before
+    public void setUp() throws IOException {
+        archive = File.createTempFile("MappedArchiveReaderTest", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        archive.delete();
+    }
+
+    @Test
+    public void testEntriesMatchZipFile() throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive));
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry("dir/deflated.txt"));
+        zos.write(data);
+        ZipEntry stored = new ZipEntry("dir/stored.bin");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        stored.setCrc(crc.getValue());
+        zos.putNextEntry(stored);
+        zos.write(data);
+        zos.putNextEntry(new ZipEntry("été.txt"));
+        zos.setComment("archive comment");
+        zos.close();
+
+        ZipFile zipFile = new ZipFile(archive);
+        MappedArchiveReader reader = new MappedArchiveReader(archive);
+        try {
+            assertEquals(zipFile.size(), reader.size());
+            Enumeration<? extends ZipEntry> expected = zipFile.entries();
+            Enumeration<? extends ZipEntry> actual = reader.entries();
+            while (expected.hasMoreElements()) {
+                ZipEntry e1 = expected.nextElement();
+                ZipEntry e2 = actual.nextElement();
+                assertEquals(e1.getName(), e2.getName());
+                assertEquals(e1.isDirectory(), e2.isDirectory());
+                assertEquals(e1.getSize(), e2.getSize());
+                assertEquals(e1.getCompressedSize(), e2.getCompressedSize());
+                assertEquals(e1.getCrc(), e2.getCrc());
+                assertEquals(e1.getTime(), e2.getTime());
+                assertEquals(e1.getMethod(), e2.getMethod());
+                assertArrayEquals(readFully(zipFile.getInputStream(e1)), readFully(reader.getInputStream(e2)));
+            }
+            assertFalse(actual.hasMoreElements());
+        } finally {
+            reader.close();
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        // more than 65535 entries forces the zip64 END header
+        int count = 70000;
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        for (int i = 0; i < count; i++) {
+            zos.putNextEntry(new ZipEntry("e" + i));
+        }
+        zos.close();
+
+        MappedArchiveReader reader = new MappedArchiveReader(archive);
+        try {
+            assertEquals(count, reader.size());
+            Set<String> names = new HashSet<String>();
+            Enumeration<? extends ZipEntry> entries = reader.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+            assertEquals(count, names.size());
+            assertTrue(names.contains("e69999"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = java.util.zip.ZipException.class)
+    public void testNotAnArchive() throws IOException {
+        FileOutputStream fos = new FileOutputStream(archive);
+        fos.write(new byte[100]);
+        fos.close();
+        new MappedArchiveReader(archive);
+    }
+
+    @Test
+    public void testReadStream() throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive));
+        for (int i = 0; i < 100; i++) {
+            zos.putNextEntry(new ZipEntry("e" + i));
+            zos.write(("content of " + i).getBytes("US-ASCII"));
+        }
+        zos.close();
+        byte[] content = readFully(new FileInputStream(archive));
+
+        // in memory, spilled as soon as the threshold is exceeded, and spilled from the start
+        int[] thresholds = {content.length, content.length - 1, 0};
+        long[] sizes = {-1, -1, content.length};
+        for (int i = 0; i < thresholds.length; i++) {
+            MappedArchiveReader reader = MappedArchiveReader.read("nested.zip", new ByteArrayInputStream(content),
+                    sizes[i], thresholds[i]);
+            try {
+                assertEquals(i > 0, reader.isTemporary());
+                assertEquals("nested.zip", reader.getName());
+                assertEquals(100, reader.size());
+                ZipEntry entry = reader.getEntry("e42");
+                // known from the central directory, unlike when read with a ZipInputStream
+                assertTrue(entry.getCrc() != -1);
+                assertArrayEquals("content of 42".getBytes("US-ASCII"), readFully(reader.getInputStream(entry)));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test(expected = MappedArchiveReader.InvalidArchiveException.class)
+    public void testReadNotAnArchive() throws IOException {
+        MappedArchiveReader.read("nested.zip", new ByteArrayInputStream(new byte[100]), -1, 10);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 Maxime Falaize (maxime.falaize@gmail.com)
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mfalaize.zipdiff.text;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Maxime Falaize
+ */
+public class LineDiffTest {
+
+    private static TextDiff diff(LineDiff lineDiff, String text1, String text2) throws Exception {
+        return lineDiff.diff(new ByteArrayInputStream(text1.getBytes("UTF-8")),
+                new ByteArrayInputStream(text2.getBytes("UTF-8")));
+    }
+
+    private static List<String> lines(int from, int to) {
+        List<String> lines = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            lines.add("line " + i);
+        }
+        return lines;
+    }
+
+    @Test
+    public void testHunks() throws Exception {
+        LineDiff lineDiff = new LineDiff();
+        assertTrue(diff(lineDiff, "a\nb\n", "a\r\nb").getHunks().isEmpty());
+
+        TextDiff diff = diff(lineDiff, "", "a\n");
+        assertEquals(1, diff.getAddedLines());
+        assertEquals("@@ -0,0 +1,1 @@", diff.getHunks().get(0).getHeader());
+
+        // two changes far apart make two hunks, close ones are merged
+        List<String> lines1 = lines(0, 30);
+        List<String> lines2 = lines(0, 30);
+        lines2.set(2, "changed 2");
+        lines2.remove(20);
+        diff = lineDiff.diff(lines1, lines2);
+        assertEquals(2, diff.getHunks().size());
+        assertEquals("@@ -1,6 +1,6 @@", diff.getHunks().get(0).getHeader());
+        assertEquals("@@ -18,7 +18,6 @@", diff.getHunks().get(1).getHeader());
+        assertEquals(Arrays.asList(" line 17", " line 18", " line 19", "-line 20", " line 21", " line 22", " line 23"),
+                diff.getHunks().get(1).getLines());
+        assertEquals(1, diff.getAddedLines());
+        assertEquals(2, diff.getRemovedLines());
+
+        lines2.set(9, "changed 9");
+        diff = lineDiff.diff(lines1, lines2);
+        assertEquals(2, diff.getHunks().size());
+        assertEquals("@@ -1,13 +1,13 @@", diff.getHunks().get(0).getHeader());
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(42);
+        LineDiff lineDiff = new LineDiff();
+        lineDiff.setContextLines(0);
+        for (int run = 0; run < 200; run++) {
+            List<String> lines1 = new ArrayList<String>();
+            List<String> lines2 = new ArrayList<String>();
+            int n = random.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                lines1.add(Integer.toString(random.nextInt(5)));
+                lines2.add(Integer.toString(random.nextInt(5)));
+            }
+            // applying the hunks to the first version gives the second one
+            TextDiff diff = lineDiff.diff(lines1, lines2);
+            List<String> patched = new ArrayList<String>();
+            int next = 0;
+            for (TextDiff.Hunk hunk : diff.getHunks()) {
+                int start = hunk.getCount1() == 0 ? hunk.getStart1() : hunk.getStart1() - 1;
+                patched.addAll(lines1.subList(next, start));
+                for (String line : hunk.getLines()) {
+                    if (line.charAt(0) == '+') {
+                        patched.add(line.substring(1));
+                    }
+                }
+                next = start + hunk.getCount1();
+            }
+            patched.addAll(lines1.subList(next, lines1.size()));
+            assertEquals(lines2, patched);
+            assertEquals(lines1.size() + diff.getAddedLines() - diff.getRemovedLines(), lines2.size());
+        }
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        LineDiff lineDiff = new LineDiff();
+        lineDiff.setMaxSize(4);
+        assertFalse(diff(lineDiff, "a\n", "abcd").isSkipped());
+        assertTrue(diff(lineDiff, "a\n", "abcde").isSkipped());
+        lineDiff.setMaxSize(LineDiff.DEFAULT_MAX_SIZE);
+        assertEquals("binary content", diff(lineDiff, "a\n", "a\u0000").getSkipReason());
+
+        lineDiff.setMaxEditDistance(10);
+        assertFalse(lineDiff.diff(lines(0, 100), lines(5, 105)).isSkipped());
+        assertTrue(lineDiff.diff(lines(0, 100), lines(50, 150)).isSkipped());
+    }
+}